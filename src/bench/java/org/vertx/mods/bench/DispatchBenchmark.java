@@ -0,0 +1,108 @@
+package org.vertx.mods.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.mods.CouchbasePersistor;
+import org.vertx.mods.DocumentCache;
+import org.vertx.mods.PersistorMetrics;
+
+/**
+ * Cost of dispatching a message through {@link CouchbasePersistor#handle} on the paths
+ * that reply without a couchbase round trip: a document cache hit and an invalid action.
+ * Messages are stubbed so the event bus isn't measured.
+ *
+ * @author Juan Manuel Musacchio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+  @Param({ "true", "false" })
+  public boolean metrics;
+
+  private BenchPersistor persistor;
+  private Message<JsonObject> cachedFind;
+  private Message<JsonObject> invalidAction;
+
+  @Setup
+  public void setup() {
+    persistor = new BenchPersistor(metrics);
+    cachedFind = message(new JsonObject().putString("action", "find_by_id").putString("id", "doc1"));
+    invalidAction = message(new JsonObject().putString("action", "find_by_key"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    persistor.stop();
+  }
+
+  @Benchmark
+  public Message<JsonObject> findByIdCached() {
+    persistor.handle(cachedFind);
+    return cachedFind;
+  }
+
+  @Benchmark
+  public Message<JsonObject> invalidAction() {
+    persistor.handle(invalidAction);
+    return invalidAction;
+  }
+
+  /**
+   * Message stub which just exposes its body, replies are discarded
+   */
+  @SuppressWarnings("unchecked")
+  private static Message<JsonObject> message(final JsonObject body) {
+    return (Message<JsonObject>)Proxy.newProxyInstance(Message.class.getClassLoader(), new Class<?>[] { Message.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+          case "body":
+            return body;
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            return null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Persistor wired up without a verticle container nor a couchbase client
+   */
+  private static class BenchPersistor extends CouchbasePersistor {
+
+    BenchPersistor(boolean withMetrics) {
+      String name = BenchPersistor.class.getName();
+      // errors are logged on every reply, keep them out of the measurement
+      java.util.logging.Logger.getLogger(name).setLevel(Level.OFF);
+      logger = LoggerFactory.getLogger(name);
+
+      documentCache = new DocumentCache(1000, 0);
+      documentCache.put("doc1", "{\"id\":\"doc1\",\"name\":\"name\",\"age\":30}", 1);
+      if (withMetrics) {
+        metrics = new PersistorMetrics("org.vertx.mods:type=DispatchBenchmark,instance="
+          + Integer.toHexString(System.identityHashCode(this)), logger);
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package org.vertx.mods.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Json encoding and decoding of documents, done on every store and every read
+ *
+ * @author Juan Manuel Musacchio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmark {
+
+  // number of fields of the document
+  @Param({ "10", "100" })
+  public int fields;
+
+  private JsonObject document;
+  private String encoded;
+
+  @Setup
+  public void setup() {
+    document = document(fields);
+    encoded = document.encode();
+  }
+
+  @Benchmark
+  public String encode() {
+    return document.encode();
+  }
+
+  @Benchmark
+  public JsonObject decode() {
+    return new JsonObject(encoded);
+  }
+
+  /**
+   * Document with a mix of strings, numbers, booleans, nested objects and arrays
+   */
+  static JsonObject document(int fields) {
+    JsonObject document = new JsonObject().putString("id", "doc-" + fields);
+    for (int i = 0; i < fields; i++) {
+      switch (i % 5) {
+        case 0:
+          document.putString("string" + i, "value of field " + i);
+          break;
+        case 1:
+          document.putNumber("number" + i, i * 1000L);
+          break;
+        case 2:
+          document.putBoolean("boolean" + i, i % 2 == 0);
+          break;
+        case 3:
+          document.putObject("object" + i, new JsonObject().putString("name", "nested " + i).putNumber("value", i / 3.0));
+          break;
+        default:
+          document.putArray("array" + i, new JsonArray().addString("a").addNumber(i).addBoolean(true));
+      }
+    }
+    return document;
+  }
+}
@@ -0,0 +1,199 @@
+package org.vertx.mods.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+import org.vertx.mods.CouchbasePersistor;
+import org.vertx.mods.CouchbaseStandIn;
+
+/**
+ * End to end throughput of the persistor actions: the message goes through the event
+ * bus to a persistor deployed as in mod.json, which talks to an in-process
+ * {@link CouchbaseStandIn}. Each benchmark thread waits for its reply before sending
+ * the next message, so the concurrency is the number of threads (-t).
+ *
+ * @author Juan Manuel Musacchio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ThroughputBenchmark {
+
+  private static final String ADDRESS = "bench.couchbasepersistor";
+  private static final String HOST = "127.0.0.1";
+  private static final long TIMEOUT = 10;
+
+  // number of documents stored before measuring
+  @Param({ "1000" })
+  public int documents;
+
+  // number of couchbase clients of the persistor
+  @Param({ "1" })
+  public int clientPoolSize;
+
+  private PlatformManager platform;
+  private CouchbaseStandIn standIn;
+  private EventBus eb;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    platform = PlatformLocator.factory.createPlatformManager();
+    eb = platform.vertx().eventBus();
+
+    int httpPort = freePort();
+    standIn = new CouchbaseStandIn(platform.vertx(), HOST, httpPort, freePort(), "default");
+    standIn.putDesignDoc("bench", new JsonObject().putObject("views", new JsonObject()
+      .putObject("all", new JsonObject().putString("map", "function (doc, meta) { emit(meta.id, null); }"))));
+
+    final AtomicReference<AsyncResult<?>> started = new AtomicReference<AsyncResult<?>>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    standIn.start(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        started.set(result);
+        latch.countDown();
+      }
+    });
+    await(latch, started);
+
+    JsonObject config = new JsonObject()
+      .putString("address", ADDRESS)
+      .putString("host", HOST)
+      .putNumber("port", httpPort)
+      .putString("bucket_password", "")
+      .putNumber("client_pool_size", clientPoolSize);
+
+    final AtomicReference<AsyncResult<?>> deployed = new AtomicReference<AsyncResult<?>>();
+    final CountDownLatch deployLatch = new CountDownLatch(1);
+    URL classpath = CouchbasePersistor.class.getProtectionDomain().getCodeSource().getLocation();
+    platform.deployVerticle(CouchbasePersistor.class.getName(), config, new URL[] { classpath }, 1, null, new Handler<AsyncResult<String>>() {
+      public void handle(AsyncResult<String> result) {
+        deployed.set(result);
+        deployLatch.countDown();
+      }
+    });
+    await(deployLatch, deployed);
+
+    for (int i = 0; i < documents; i++) {
+      send(new JsonObject().putString("action", "save").putObject("document", document(i)));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    platform.undeployAll(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        latch.countDown();
+      }
+    });
+    latch.await(TIMEOUT, TimeUnit.SECONDS);
+    standIn.stop();
+    platform.stop();
+  }
+
+  @Benchmark
+  public JsonObject save() throws Exception {
+    return send(new JsonObject().putString("action", "save").putObject("document", document(randomId())));
+  }
+
+  @Benchmark
+  public JsonObject findById() throws Exception {
+    return send(new JsonObject().putString("action", "find_by_id").putString("id", "doc" + randomId()));
+  }
+
+  @Benchmark
+  public JsonObject findByIds() throws Exception {
+    JsonArray ids = new JsonArray();
+    for (int i = 0; i < 10; i++) {
+      ids.addString("doc" + randomId());
+    }
+    return send(new JsonObject().putString("action", "find_by_ids").putArray("ids", ids));
+  }
+
+  @Benchmark
+  public JsonObject findByView() throws Exception {
+    JsonObject query = new JsonObject().putString("rangeStart", "doc" + randomId()).putNumber("limit", 10);
+    return send(new JsonObject()
+      .putString("action", "find_by_view")
+      .putString("designDoc", "bench")
+      .putString("viewName", "all")
+      .putObject("query", query));
+  }
+
+  @Benchmark
+  public JsonObject counter() throws Exception {
+    return send(new JsonObject()
+      .putString("action", "counter")
+      .putString("key", "counter" + randomId() % 10)
+      .putString("operation", "increment")
+      .putNumber("by", 1));
+  }
+
+  private int randomId() {
+    return ThreadLocalRandom.current().nextInt(documents);
+  }
+
+  private static JsonObject document(int id) {
+    return JsonBenchmark.document(10).putString("id", "doc" + id);
+  }
+
+  /**
+   * Sends the message to the persistor and waits for its reply
+   */
+  private JsonObject send(JsonObject message) throws Exception {
+    final AtomicReference<JsonObject> reply = new AtomicReference<JsonObject>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    eb.send(ADDRESS, message, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        reply.set(message.body());
+        latch.countDown();
+      }
+    });
+
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("No reply for " + message.getString("action"));
+    }
+    if (!"ok".equals(reply.get().getString("status"))) {
+      throw new IllegalStateException("Failed " + message.getString("action") + ": " + reply.get().getString("message"));
+    }
+    return reply.get();
+  }
+
+  private static void await(CountDownLatch latch, AtomicReference<AsyncResult<?>> result) throws Exception {
+    if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Timed out starting the benchmark");
+    }
+    if (result.get().failed()) {
+      throw new IllegalStateException("Failed to start the benchmark", result.get().cause());
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.vertx.mods.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.ViewQueryBuilder;
+
+import com.couchbase.client.protocol.views.Query;
+
+/**
+ * Construction of the view query of find_by_view, from its json parameters
+ * to the query string sent to the view engine
+ *
+ * @author Juan Manuel Musacchio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ViewQueryBenchmark {
+
+  private JsonObject simple;
+  private JsonObject complex;
+
+  @Setup
+  public void setup() {
+    simple = new JsonObject()
+      .putString("key", "doc1")
+      .putNumber("limit", 10);
+    complex = new JsonObject("{\"rangeStart\":[\"user\",2014],\"rangeEnd\":[\"user\",2015,{}],"
+      + "\"startkeyDocID\":\"doc1\",\"limit\":100,\"skip\":1,\"descending\":false,"
+      + "\"inclusiveEnd\":true,\"stale\":\"OK\",\"reduce\":false}");
+  }
+
+  @Benchmark
+  public String simpleQuery() {
+    return ViewQueryBuilder.build(simple).toString();
+  }
+
+  @Benchmark
+  public String complexQuery() {
+    return ViewQueryBuilder.build(complex).toString();
+  }
+
+  @Benchmark
+  public Query buildOnly() {
+    return ViewQueryBuilder.build(complex);
+  }
+}
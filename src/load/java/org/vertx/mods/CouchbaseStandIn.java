@@ -0,0 +1,1180 @@
+package org.vertx.mods;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+import org.vertx.java.core.net.NetServer;
+import org.vertx.java.core.net.NetSocket;
+
+/**
+ * In-process stand-in of a single node couchbase bucket, meant to run benchmarks and
+ * load tests offline. It serves the REST endpoints the client bootstraps from, the
+ * memcached binary protocol operations used by the persistor and the design document
+ * and view endpoints.
+ * <p>
+ * Documents are kept in memory. Views can't run javascript, so every view behaves
+ * as <code>emit(meta.id, null)</code> over all the documents, and a view with a
+ * reduce function reduces as <code>_count</code>.
+ * <p>
+ * Writes are reported persisted by observe right away, or once the configured
+ * {@link #setPersistenceDelay(long) persistence delay} elapses so the durability
+ * requirements can be exercised.
+ * <p>
+ * The memcached protocol can be served on a second port too, advertised as the replica
+ * node of every vbucket, so replica reads can be told apart from the active ones.
+ * <p>
+ * The client always tries the carrier bootstrap on port 11210 first, so starting the
+ * stand-in sets the <code>cbclient.disableCarrierBootstrap</code> system property to
+ * bootstrap straight from the REST endpoints, it's restored once the stand-in stops.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class CouchbaseStandIn {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int HEADER_LENGTH = 24;
+  private static final byte REQUEST_MAGIC = (byte)0x80;
+  private static final byte RESPONSE_MAGIC = (byte)0x81;
+
+  // memcached binary opcodes
+  private static final byte GET = 0x00;
+  private static final byte SET = 0x01;
+  private static final byte ADD = 0x02;
+  private static final byte REPLACE = 0x03;
+  private static final byte DELETE = 0x04;
+  private static final byte INCREMENT = 0x05;
+  private static final byte DECREMENT = 0x06;
+  private static final byte GETQ = 0x09;
+  private static final byte NOOP = 0x0a;
+  private static final byte VERSION = 0x0b;
+  private static final byte STAT = 0x10;
+  private static final byte TOUCH = 0x1c;
+  private static final byte GAT = 0x1d;
+  private static final byte SASL_LIST_MECHS = 0x20;
+  private static final byte SASL_AUTH = 0x21;
+  private static final byte SASL_STEP = 0x22;
+  private static final byte REPLICA_GET = (byte)0x83;
+  private static final byte OBSERVE = (byte)0x92;
+  private static final byte GET_AND_LOCK = (byte)0x94;
+  private static final byte UNLOCK = (byte)0x95;
+
+  // memcached binary status codes
+  private static final short SUCCESS = 0x00;
+  private static final short KEY_NOT_FOUND = 0x01;
+  private static final short KEY_EXISTS = 0x02;
+  private static final short NON_NUMERIC = 0x06;
+  private static final short UNKNOWN_COMMAND = 0x81;
+  private static final short INTERNAL_ERROR = 0x84;
+  private static final short TEMPORARY_FAILURE = 0x86;
+
+  // observe key states
+  private static final byte NOT_PERSISTED = 0x00;
+  private static final byte PERSISTED = 0x01;
+  private static final byte NOT_FOUND = (byte)0x80;
+  private static final byte DELETED_NOT_PERSISTED = (byte)0x81;
+
+  private static final String CARRIER_BOOTSTRAP_PROPERTY = "cbclient.disableCarrierBootstrap";
+
+  private static final int VBUCKETS = 64;
+  private static final long RELATIVE_EXPIRATION_LIMIT = 30L * 24 * 60 * 60;
+  private static final int DEFAULT_LOCK_TIME = 15;
+  private static final int MAX_LOCK_TIME = 30;
+
+  private final Vertx vertx;
+  private final String host;
+  private final int httpPort;
+  private final int memcachedPort;
+  private final int replicaPort;
+  private final String bucketName;
+
+  // documents sorted by id, views walk them in key order
+  private final ConcurrentSkipListMap<String, Item> items = new ConcurrentSkipListMap<String, Item>();
+  // documents the views are answered from while the index is frozen, null when the views are up to date
+  private volatile ConcurrentSkipListMap<String, Item> frozenIndex;
+  private final ConcurrentMap<String, JsonObject> designDocs = new ConcurrentHashMap<String, JsonObject>();
+  private final AtomicLong casSequence = new AtomicLong();
+  // time each written key is reported persisted at, keys without one are persisted
+  private final ConcurrentMap<String, Long> persistedAt = new ConcurrentHashMap<String, Long>();
+  // time in milliseconds writes take to be persisted, negative means never
+  private volatile long persistenceDelay;
+  // whether the gets are answered with an internal error
+  private volatile boolean failingReads;
+  // number of the next counter mutations of each key answered with a temporary failure
+  private final ConcurrentMap<String, AtomicInteger> counterFailures = new ConcurrentHashMap<String, AtomicInteger>();
+  // value of the carrier bootstrap property before the stand-in started
+  private String carrierBootstrap;
+  private boolean started;
+  // bucket settings reported by the REST API and changed by bucket updates
+  private volatile JsonObject bucketSettings = new JsonObject()
+    .putString("ramQuotaMB", "512")
+    .putString("authType", "sasl")
+    .putString("saslPassword", "")
+    .putString("flushEnabled", "1");
+  private final AtomicInteger bucketUpdates = new AtomicInteger();
+  private final AtomicInteger designDocUploads = new AtomicInteger();
+  private final AtomicInteger viewQueries = new AtomicInteger();
+  private final AtomicInteger reads = new AtomicInteger();
+  private final AtomicInteger replicaReads = new AtomicInteger();
+  // while set the memcached responses of the active node are held back, in order, until they're released
+  private volatile boolean holdingResponses;
+  private final Set<MemcachedConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<MemcachedConnection, Boolean>());
+
+  private HttpServer httpServer;
+  private NetServer memcachedServer;
+  private NetServer replicaServer;
+
+  /**
+   * @param vertx vertx instance the servers run on
+   * @param host host to listen on and to advertise in the bucket configuration
+   * @param httpPort port of the REST and view endpoints, the persistor <code>port</code>
+   * @param memcachedPort port of the memcached binary protocol
+   * @param bucketName name of the single bucket served
+   */
+  public CouchbaseStandIn(Vertx vertx, String host, int httpPort, int memcachedPort, String bucketName) {
+    this(vertx, host, httpPort, memcachedPort, 0, bucketName);
+  }
+
+  /**
+   * @param vertx vertx instance the servers run on
+   * @param host host to listen on and to advertise in the bucket configuration
+   * @param httpPort port of the REST and view endpoints, the persistor <code>port</code>
+   * @param memcachedPort port of the memcached binary protocol
+   * @param replicaPort port of the memcached binary protocol advertised as the replica node,
+   * serving the same documents, 0 to advertise the active node as its own replica
+   * @param bucketName name of the single bucket served
+   */
+  public CouchbaseStandIn(Vertx vertx, String host, int httpPort, int memcachedPort, int replicaPort, String bucketName) {
+    this.vertx = vertx;
+    this.host = host;
+    this.httpPort = httpPort;
+    this.memcachedPort = memcachedPort;
+    this.replicaPort = replicaPort;
+    this.bucketName = bucketName;
+  }
+
+  /**
+   * Starts listening on every port, the handler is called once all the servers are bound
+   */
+  public void start(final Handler<AsyncResult<Void>> doneHandler) {
+    carrierBootstrap = System.setProperty(CARRIER_BOOTSTRAP_PROPERTY, "true");
+    started = true;
+
+    final AtomicInteger pending = new AtomicInteger(replicaPort > 0 ? 3 : 2);
+    final Handler<AsyncResult<?>> listened = new Handler<AsyncResult<?>>() {
+      public void handle(AsyncResult<?> result) {
+        if (result.failed()) {
+          if (pending.getAndSet(-1) > 0) {
+            doneHandler.handle(new DefaultFutureResult<Void>(result.cause()));
+          }
+        }
+        else if (pending.decrementAndGet() == 0) {
+          doneHandler.handle(new DefaultFutureResult<Void>((Void)null));
+        }
+      }
+    };
+
+    memcachedServer = listenMemcached(memcachedPort, true, listened);
+    if (replicaPort > 0) {
+      replicaServer = listenMemcached(replicaPort, false, listened);
+    }
+
+    httpServer = vertx.createHttpServer()
+      .requestHandler(new Handler<HttpServerRequest>() {
+        public void handle(HttpServerRequest request) {
+          handleHttp(request);
+        }
+      })
+      .listen(httpPort, host, new AsyncResultHandler<HttpServer>() {
+        public void handle(AsyncResult<HttpServer> result) {
+          listened.handle(result);
+        }
+      });
+  }
+
+  private NetServer listenMemcached(int port, final boolean active, final Handler<AsyncResult<?>> listened) {
+    return vertx.createNetServer()
+      .setTCPNoDelay(true)
+      .connectHandler(new Handler<NetSocket>() {
+        public void handle(NetSocket socket) {
+          final MemcachedConnection connection = new MemcachedConnection(socket, vertx.currentContext(), active);
+          connections.add(connection);
+          socket.dataHandler(connection);
+          socket.closeHandler(new Handler<Void>() {
+            public void handle(Void event) {
+              connections.remove(connection);
+            }
+          });
+        }
+      })
+      .listen(port, host, new AsyncResultHandler<NetServer>() {
+        public void handle(AsyncResult<NetServer> result) {
+          listened.handle(result);
+        }
+      });
+  }
+
+  public void stop() {
+    if (memcachedServer != null) {
+      memcachedServer.close();
+    }
+    if (replicaServer != null) {
+      replicaServer.close();
+    }
+    if (httpServer != null) {
+      httpServer.close();
+    }
+    if (started) {
+      if (carrierBootstrap == null) {
+        System.clearProperty(CARRIER_BOOTSTRAP_PROPERTY);
+      }
+      else {
+        System.setProperty(CARRIER_BOOTSTRAP_PROPERTY, carrierBootstrap);
+      }
+      started = false;
+    }
+  }
+
+  /**
+   * Sets the time writes take to be reported persisted by observe, so a store waiting
+   * for its durability requirements waits for it too. A negative delay means writes
+   * are never persisted and the durability requirements can't be met.
+   */
+  public void setPersistenceDelay(long persistenceDelay) {
+    this.persistenceDelay = persistenceDelay;
+  }
+
+  /**
+   * Answers the next increments and decrements of the key with a temporary failure,
+   * without applying them
+   */
+  public void failCounter(String key, int times) {
+    counterFailures.put(key, new AtomicInteger(times));
+  }
+
+  /**
+   * Holds back the responses of the memcached operations sent to the active node, they're
+   * executed but the clients don't get their results until the responses are released.
+   * The replica node, when there is one, keeps answering.
+   */
+  public void holdResponses() {
+    holdingResponses = true;
+  }
+
+  /**
+   * Writes the held responses and stops holding them
+   */
+  public void releaseResponses() {
+    holdingResponses = false;
+    for (MemcachedConnection connection : connections) {
+      connection.release();
+    }
+  }
+
+  /**
+   * Answers the gets and replica gets with an internal error while set
+   */
+  public void failReads(boolean failingReads) {
+    this.failingReads = failingReads;
+  }
+
+  /**
+   * Number of gets, replica gets and quiet gets received
+   */
+  public int reads() {
+    return reads.get();
+  }
+
+  /**
+   * Number of replica gets received
+   */
+  public int replicaReads() {
+    return replicaReads.get();
+  }
+
+  /**
+   * Freezes the view index, the views keep answering with the documents live at this point whatever
+   * the stale parameter, like an index that isn't updated yet
+   */
+  public void freezeViews() {
+    frozenIndex = new ConcurrentSkipListMap<String, Item>(items);
+  }
+
+  /**
+   * The views are answered with the live documents again
+   */
+  public void thawViews() {
+    frozenIndex = null;
+  }
+
+  /**
+   * Stores a design document the same way a PUT to its endpoint does
+   *
+   * @param name design document name, without the <code>_design/</code> prefix
+   * @param designDoc design document with its <code>views</code>
+   */
+  public void putDesignDoc(String name, JsonObject designDoc) {
+    designDocs.put(name, designDoc);
+  }
+
+  /**
+   * Number of live documents of the bucket
+   */
+  public int size() {
+    int size = 0;
+    long now = System.currentTimeMillis();
+    for (Item item : items.values()) {
+      if (!item.isExpired(now)) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  public void clear() {
+    items.clear();
+    persistedAt.clear();
+    counterFailures.clear();
+    failingReads = false;
+    frozenIndex = null;
+  }
+
+  /*
+   * Memcached binary protocol
+   */
+
+  private class MemcachedConnection implements Handler<Buffer> {
+    private final NetSocket socket;
+    // context of the socket, writes from elsewhere would be queued behind the ones it makes
+    private final Context context;
+    private final boolean active;
+    private Buffer pending = new Buffer(0);
+    private Buffer held = new Buffer(0);
+
+    MemcachedConnection(NetSocket socket, Context context, boolean active) {
+      this.socket = socket;
+      this.context = context;
+      this.active = active;
+    }
+
+    public void handle(Buffer data) {
+      pending = pending.length() == 0 ? data : pending.appendBuffer(data);
+
+      // requests are usually pipelined, their responses are written at once
+      Buffer out = new Buffer();
+      int position = 0;
+      while (pending.length() - position >= HEADER_LENGTH) {
+        int bodyLength = pending.getInt(position + 8);
+        if (pending.length() - position < HEADER_LENGTH + bodyLength) {
+          break;
+        }
+        if (pending.getByte(position) != REQUEST_MAGIC) {
+          socket.close();
+          return;
+        }
+        execute(new Request(pending, position), out);
+        position += HEADER_LENGTH + bodyLength;
+      }
+
+      pending = position == pending.length() ? new Buffer(0) : pending.getBuffer(position, pending.length());
+      if (out.length() > 0) {
+        write(out);
+      }
+    }
+
+    /**
+     * Writes the held responses from the context of the socket, so they keep their order
+     * with the responses written meanwhile
+     */
+    void release() {
+      context.runOnContext(new Handler<Void>() {
+        public void handle(Void event) {
+          write(null);
+        }
+      });
+    }
+
+    /**
+     * Writes the responses after the held ones, or holds them as well
+     */
+    synchronized void write(Buffer out) {
+      if (out != null) {
+        held.appendBuffer(out);
+      }
+      if (!(holdingResponses && active) && held.length() > 0) {
+        socket.write(held);
+        held = new Buffer(0);
+      }
+    }
+  }
+
+  private void execute(Request request, Buffer out) {
+    switch (request.opcode) {
+    case GET:
+    case GETQ:
+    case REPLICA_GET:
+      get(request, out);
+      break;
+    case GAT:
+      getAndTouch(request, out);
+      break;
+    case GET_AND_LOCK:
+      getAndLock(request, out);
+      break;
+    case SET:
+    case ADD:
+    case REPLACE:
+      store(request, out);
+      break;
+    case DELETE:
+      delete(request, out);
+      break;
+    case INCREMENT:
+    case DECREMENT:
+      mutate(request, out);
+      break;
+    case TOUCH:
+      touch(request, out);
+      break;
+    case UNLOCK:
+      unlock(request, out);
+      break;
+    case OBSERVE:
+      observe(request, out);
+      break;
+    case NOOP:
+    case STAT:
+    case SASL_AUTH:
+    case SASL_STEP:
+      respond(out, request, SUCCESS, 0, null, null);
+      break;
+    case VERSION:
+      respond(out, request, SUCCESS, 0, null, "2.5.1-standin".getBytes(UTF8));
+      break;
+    case SASL_LIST_MECHS:
+      respond(out, request, SUCCESS, 0, null, "PLAIN".getBytes(UTF8));
+      break;
+    default:
+      error(out, request, UNKNOWN_COMMAND, "Unknown command");
+    }
+  }
+
+  private void get(Request request, Buffer out) {
+    reads.incrementAndGet();
+    if (request.opcode == REPLICA_GET) {
+      replicaReads.incrementAndGet();
+    }
+    if (failingReads) {
+      error(out, request, INTERNAL_ERROR, "Internal error");
+      return;
+    }
+    Item item = lookup(request.key);
+    if (item == null) {
+      // quiet gets don't report misses
+      if (request.opcode != GETQ) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+      }
+      return;
+    }
+    respondItem(out, request, item);
+  }
+
+  private void getAndTouch(Request request, Buffer out) {
+    Item item;
+    synchronized (items) {
+      item = lookup(request.key);
+      if (item != null) {
+        item = item.withExpiry(expiry(request.extras.getInt(0)));
+        items.put(request.key, item);
+      }
+    }
+
+    if (item == null) {
+      error(out, request, KEY_NOT_FOUND, "Not found");
+    }
+    else {
+      respondItem(out, request, item);
+    }
+  }
+
+  private void getAndLock(Request request, Buffer out) {
+    int lockTime = request.extras.length() >= 4 ? request.extras.getInt(0) : 0;
+    if (lockTime <= 0 || lockTime > MAX_LOCK_TIME) {
+      lockTime = DEFAULT_LOCK_TIME;
+    }
+
+    Item item;
+    synchronized (items) {
+      item = lookup(request.key);
+      if (item == null) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+        return;
+      }
+      if (item.isLocked()) {
+        error(out, request, TEMPORARY_FAILURE, "Temporary failure");
+        return;
+      }
+      item = item.lock(nextCas(), System.currentTimeMillis() + lockTime * 1000L);
+      items.put(request.key, item);
+    }
+    respondItem(out, request, item);
+  }
+
+  private void store(Request request, Buffer out) {
+    int flags = request.extras.getInt(0);
+    long expiry = expiry(request.extras.getInt(4));
+    long cas;
+
+    synchronized (items) {
+      Item current = lookup(request.key);
+
+      if (request.opcode == ADD && current != null) {
+        error(out, request, KEY_EXISTS, "Data exists for key");
+        return;
+      }
+      if ((request.opcode == REPLACE || request.cas != 0) && current == null) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+        return;
+      }
+      if (current != null && !current.allows(request.cas)) {
+        error(out, request, KEY_EXISTS, "Data exists for key");
+        return;
+      }
+
+      cas = nextCas();
+      items.put(request.key, new Item(request.value, flags, cas, expiry, 0));
+      written(request.key);
+    }
+    respond(out, request, SUCCESS, cas, null, null);
+  }
+
+  private void delete(Request request, Buffer out) {
+    synchronized (items) {
+      Item current = lookup(request.key);
+      if (current == null) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+        return;
+      }
+      if (!current.allows(request.cas)) {
+        error(out, request, KEY_EXISTS, "Data exists for key");
+        return;
+      }
+      items.remove(request.key);
+      written(request.key);
+    }
+    respond(out, request, SUCCESS, nextCas(), null, null);
+  }
+
+  private void mutate(Request request, Buffer out) {
+    AtomicInteger failures = counterFailures.get(request.key);
+    if (failures != null && failures.getAndDecrement() > 0) {
+      error(out, request, TEMPORARY_FAILURE, "Temporary failure");
+      return;
+    }
+
+    long delta = request.extras.getLong(0);
+    long initial = request.extras.getLong(8);
+    int expiration = request.extras.getInt(16);
+
+    long value;
+    long cas;
+    synchronized (items) {
+      Item current = lookup(request.key);
+
+      if (current == null) {
+        // an expiration of all ones means the counter must not be created
+        if (expiration == -1) {
+          error(out, request, KEY_NOT_FOUND, "Not found");
+          return;
+        }
+        value = initial;
+        current = new Item(null, 0, 0, expiry(expiration), 0);
+      }
+      else {
+        if (current.isLocked()) {
+          error(out, request, KEY_EXISTS, "Data exists for key");
+          return;
+        }
+        try {
+          value = Long.parseLong(new String(current.value, UTF8).trim());
+        } catch (NumberFormatException e) {
+          error(out, request, NON_NUMERIC, "Non-numeric server-side value for incr or decr");
+          return;
+        }
+        if (request.opcode == INCREMENT) {
+          value += delta;
+        }
+        else {
+          value = Math.max(0, value - delta);
+        }
+      }
+
+      cas = nextCas();
+      items.put(request.key, new Item(String.valueOf(value).getBytes(UTF8), current.flags, cas, current.expiry, 0));
+      written(request.key);
+    }
+    respond(out, request, SUCCESS, cas, null, new Buffer(8).appendLong(value).getBytes());
+  }
+
+  private void touch(Request request, Buffer out) {
+    long cas;
+    synchronized (items) {
+      Item item = lookup(request.key);
+      if (item == null) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+        return;
+      }
+      cas = item.cas;
+      items.put(request.key, item.withExpiry(expiry(request.extras.getInt(0))));
+    }
+    respond(out, request, SUCCESS, cas, null, null);
+  }
+
+  private void unlock(Request request, Buffer out) {
+    synchronized (items) {
+      Item item = lookup(request.key);
+      if (item == null) {
+        error(out, request, KEY_NOT_FOUND, "Not found");
+        return;
+      }
+      if (!item.isLocked() || item.cas != request.cas) {
+        error(out, request, TEMPORARY_FAILURE, "Temporary failure");
+        return;
+      }
+      items.put(request.key, item.lock(item.cas, 0));
+    }
+    respond(out, request, SUCCESS, 0, null, null);
+  }
+
+  /**
+   * Writes are reported as persisted once the persistence delay elapsed, the body lists
+   * vbucket, key length and key of each key, the response adds the key state and the cas.
+   * The client sends the body as extras, so the whole request body is read.
+   */
+  private void observe(Request request, Buffer out) {
+    Buffer body = new Buffer();
+    Buffer keys = request.extras.copy().appendBytes(request.key.getBytes(UTF8)).appendBytes(request.value);
+    int position = 0;
+    while (position + 4 <= keys.length()) {
+      short vbucket = keys.getShort(position);
+      int keyLength = keys.getShort(position + 2) & 0xffff;
+      byte[] key = keys.getBytes(position + 4, position + 4 + keyLength);
+      position += 4 + keyLength;
+
+      String id = new String(key, UTF8);
+      Item item = lookup(id);
+      boolean persisted = isPersisted(id);
+      byte state = item == null ? (persisted ? NOT_FOUND : DELETED_NOT_PERSISTED) : (persisted ? PERSISTED : NOT_PERSISTED);
+      body.appendShort(vbucket)
+        .appendShort((short)keyLength)
+        .appendBytes(key)
+        .appendByte(state)
+        .appendLong(item == null ? 0 : item.cas);
+    }
+    respond(out, request, SUCCESS, 0, null, body.getBytes());
+  }
+
+  private Item lookup(String key) {
+    Item item = items.get(key);
+    if (item != null && item.isExpired(System.currentTimeMillis())) {
+      items.remove(key, item);
+      return null;
+    }
+    return item;
+  }
+
+  /**
+   * Records a write of the key, which isn't persisted until the persistence delay elapses
+   */
+  private void written(String key) {
+    long delay = persistenceDelay;
+    if (delay == 0) {
+      persistedAt.remove(key);
+    }
+    else {
+      persistedAt.put(key, delay < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + delay);
+    }
+  }
+
+  private boolean isPersisted(String key) {
+    Long at = persistedAt.get(key);
+    return at == null || at <= System.currentTimeMillis();
+  }
+
+  private long nextCas() {
+    return casSequence.incrementAndGet();
+  }
+
+  /**
+   * Memcached expirations up to 30 days are relative seconds, bigger ones an unix time
+   */
+  private static long expiry(int expiration) {
+    if (expiration == 0) {
+      return 0;
+    }
+    long seconds = expiration & 0xffffffffL;
+    if (seconds <= RELATIVE_EXPIRATION_LIMIT) {
+      return System.currentTimeMillis() + seconds * 1000;
+    }
+    return seconds * 1000;
+  }
+
+  private static void respondItem(Buffer out, Request request, Item item) {
+    respond(out, request, SUCCESS, item.cas, new Buffer(4).appendInt(item.flags), item.value);
+  }
+
+  private static void error(Buffer out, Request request, short status, String message) {
+    respond(out, request, status, 0, null, message.getBytes(UTF8));
+  }
+
+  private static void respond(Buffer out, Request request, short status, long cas, Buffer extras, byte[] value) {
+    int extrasLength = extras == null ? 0 : extras.length();
+    int valueLength = value == null ? 0 : value.length;
+
+    out.appendByte(RESPONSE_MAGIC)
+      .appendByte(request.opcode)
+      .appendShort((short)0)
+      .appendByte((byte)extrasLength)
+      .appendByte((byte)0)
+      .appendShort(status)
+      .appendInt(extrasLength + valueLength)
+      .appendInt(request.opaque)
+      .appendLong(cas);
+    if (extras != null) {
+      out.appendBuffer(extras);
+    }
+    if (value != null) {
+      out.appendBytes(value);
+    }
+  }
+
+  private static class Request {
+    final byte opcode;
+    final int opaque;
+    final long cas;
+    final Buffer extras;
+    final String key;
+    final byte[] value;
+
+    Request(Buffer buffer, int position) {
+      opcode = buffer.getByte(position + 1);
+      int keyLength = buffer.getShort(position + 2) & 0xffff;
+      int extrasLength = buffer.getByte(position + 4) & 0xff;
+      int bodyLength = buffer.getInt(position + 8);
+      opaque = buffer.getInt(position + 12);
+      cas = buffer.getLong(position + 16);
+
+      int start = position + HEADER_LENGTH;
+      extras = buffer.getBuffer(start, start + extrasLength);
+      key = new String(buffer.getBytes(start + extrasLength, start + extrasLength + keyLength), UTF8);
+      value = buffer.getBytes(start + extrasLength + keyLength, start + bodyLength);
+    }
+  }
+
+  /**
+   * Immutable stored document, every change replaces the item under the store lock
+   */
+  private static class Item {
+    final byte[] value;
+    final int flags;
+    final long cas;
+    final long expiry;
+    final long lockedUntil;
+
+    Item(byte[] value, int flags, long cas, long expiry, long lockedUntil) {
+      this.value = value;
+      this.flags = flags;
+      this.cas = cas;
+      this.expiry = expiry;
+      this.lockedUntil = lockedUntil;
+    }
+
+    boolean isExpired(long now) {
+      return expiry != 0 && expiry <= now;
+    }
+
+    boolean isLocked() {
+      return lockedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Whether a mutation with the given cas may change the item, a locked item
+     * can only be changed by the lock owner
+     */
+    boolean allows(long cas) {
+      if (isLocked()) {
+        return cas == this.cas;
+      }
+      return cas == 0 || cas == this.cas;
+    }
+
+    Item withExpiry(long expiry) {
+      return new Item(value, flags, cas, expiry, lockedUntil);
+    }
+
+    Item lock(long cas, long lockedUntil) {
+      return new Item(value, flags, cas, expiry, lockedUntil);
+    }
+  }
+
+  /*
+   * REST, design document and view endpoints
+   */
+
+  private void handleHttp(final HttpServerRequest request) {
+    String path = request.path();
+    String designPrefix = "/" + bucketName + "/_design/";
+
+    if (path.equals("/pools")) {
+      JsonObject pool = new JsonObject()
+        .putString("name", "default")
+        .putString("uri", "/pools/default")
+        .putString("streamingUri", "/poolsStreaming/default");
+      sendJson(request, 200, new JsonObject().putArray("pools", new JsonArray().addObject(pool)).encode());
+    }
+    else if (path.equals("/pools/default")) {
+      JsonObject buckets = new JsonObject().putString("uri", "/pools/default/buckets");
+      sendJson(request, 200, new JsonObject().putString("name", "default").putObject("buckets", buckets).encode());
+    }
+    else if (path.equals("/pools/default/buckets") || path.equals("/pools/default/buckets/")) {
+      sendJson(request, 200, new JsonArray().addObject(bucketConfig()).encode());
+    }
+    else if (path.equals("/pools/default/buckets/" + bucketName) && request.method().equals("POST")) {
+      updateBucket(request);
+    }
+    else if (path.equals("/pools/default/buckets/" + bucketName)) {
+      sendJson(request, 200, bucketConfig().encode());
+    }
+    else if (path.equals("/pools/default/bucketsStreaming/" + bucketName)) {
+      // the configuration never changes, the connection is just kept open after it
+      request.response().setChunked(true).putHeader("Content-Type", "application/json");
+      request.response().write(bucketConfig().encode());
+      request.response().write("\n\n\n\n");
+    }
+    else if (path.startsWith(designPrefix)) {
+      String name = path.substring(designPrefix.length());
+      int viewIndex = name.indexOf("/_view/");
+      if (viewIndex >= 0) {
+        queryView(request, name.substring(0, viewIndex), name.substring(viewIndex + "/_view/".length()));
+      }
+      else {
+        handleDesignDoc(request, name);
+      }
+    }
+    else {
+      sendError(request, 404, "not_found", "missing");
+    }
+  }
+
+  /**
+   * Bucket settings are posted as a form, the ones given replace the current ones
+   */
+  private void updateBucket(final HttpServerRequest request) {
+    request.bodyHandler(new Handler<Buffer>() {
+      public void handle(Buffer body) {
+        JsonObject settings = bucketSettings.copy();
+        for (String parameter : body.toString().split("&")) {
+          int separator = parameter.indexOf('=');
+          if (separator > 0) {
+            try {
+              settings.putString(parameter.substring(0, separator), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        }
+        bucketSettings = settings;
+        bucketUpdates.incrementAndGet();
+        request.response().setStatusCode(200).end();
+      }
+    });
+  }
+
+  /**
+   * Number of bucket settings updates received
+   */
+  public int bucketUpdates() {
+    return bucketUpdates.get();
+  }
+
+  /**
+   * Number of design documents uploaded through the REST API
+   */
+  public int designDocUploads() {
+    return designDocUploads.get();
+  }
+
+  /**
+   * Design document stored under the given name, null whether there's none
+   */
+  public JsonObject designDoc(String name) {
+    return designDocs.get(name);
+  }
+
+  private void handleDesignDoc(final HttpServerRequest request, final String name) {
+    String method = request.method();
+
+    if (method.equals("GET")) {
+      JsonObject designDoc = designDocs.get(name);
+      if (designDoc == null) {
+        sendError(request, 404, "not_found", "missing");
+      }
+      else {
+        sendJson(request, 200, designDoc.encode());
+      }
+    }
+    else if (method.equals("PUT")) {
+      request.bodyHandler(new Handler<Buffer>() {
+        public void handle(Buffer body) {
+          try {
+            designDocs.put(name, new JsonObject(body.toString()));
+            designDocUploads.incrementAndGet();
+            sendJson(request, 201, new JsonObject().putBoolean("ok", true).putString("id", "_design/" + name).encode());
+          } catch (DecodeException e) {
+            sendError(request, 400, "bad_request", "invalid UTF-8 JSON");
+          }
+        }
+      });
+    }
+    else if (method.equals("DELETE")) {
+      if (designDocs.remove(name) == null) {
+        sendError(request, 404, "not_found", "missing");
+      }
+      else {
+        sendJson(request, 200, new JsonObject().putBoolean("ok", true).encode());
+      }
+    }
+    else {
+      sendError(request, 405, "method_not_allowed", "Only GET, PUT and DELETE are allowed");
+    }
+  }
+
+  /**
+   * Number of view queries received
+   */
+  public int viewQueries() {
+    return viewQueries.get();
+  }
+
+  private void queryView(HttpServerRequest request, String designDocName, String viewName) {
+    viewQueries.incrementAndGet();
+    JsonObject designDoc = designDocs.get(designDocName);
+    JsonObject views = designDoc == null ? null : designDoc.getObject("views");
+    JsonObject view = views == null ? null : views.getObject(viewName);
+    if (view == null) {
+      sendError(request, 404, "not_found", "missing");
+      return;
+    }
+
+    MultiMap params = request.params();
+    List<String> ids;
+    try {
+      ids = viewIds(params);
+    } catch (DecodeException | ClassCastException e) {
+      sendError(request, 400, "query_parse_error", "Invalid view query");
+      return;
+    }
+
+    boolean reduce = view.getString("reduce") != null && !view.getString("reduce").isEmpty() && !"false".equals(params.get("reduce"));
+    JsonArray rows = new JsonArray();
+
+    if (reduce) {
+      boolean group = "true".equals(params.get("group")) || params.get("group_level") != null;
+      if (group) {
+        for (String id : ids) {
+          rows.addObject(new JsonObject().putString("key", id).putNumber("value", 1));
+        }
+      }
+      else if (!ids.isEmpty()) {
+        rows.addObject(new JsonObject().putString("key", null).putNumber("value", ids.size()));
+      }
+      sendJson(request, 200, new JsonObject().putArray("rows", rows).encode());
+      return;
+    }
+
+    for (String id : ids) {
+      rows.addObject(new JsonObject().putString("id", id).putString("key", id).putString("value", null));
+    }
+    sendJson(request, 200, new JsonObject().putNumber("total_rows", size()).putArray("rows", rows).encode());
+  }
+
+  /**
+   * Document ids matching the view query, keys are the document ids
+   */
+  private List<String> viewIds(MultiMap params) {
+    List<String> ids = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    ConcurrentSkipListMap<String, Item> index = frozenIndex != null ? frozenIndex : items;
+
+    String key = params.get("key");
+    String keys = params.get("keys");
+    if (key != null || keys != null) {
+      List<Object> wanted = new ArrayList<Object>();
+      if (key != null) {
+        wanted.add(Json.decodeValue(key, Object.class));
+      }
+      else {
+        for (Object value : new JsonArray(keys)) {
+          wanted.add(value);
+        }
+      }
+      for (Object id : wanted) {
+        // just string keys match the document ids
+        Item item = id instanceof String ? index.get(id) : null;
+        if (item != null && !item.isExpired(now)) {
+          ids.add((String)id);
+        }
+      }
+      return page(ids, params);
+    }
+
+    boolean descending = "true".equals(params.get("descending"));
+    boolean inclusiveEnd = !"false".equals(params.get("inclusive_end"));
+    String startDocId = params.get("startkey_docid");
+    String endDocId = params.get("endkey_docid");
+    String startKey = null;
+    String endKey = null;
+
+    NavigableMap<String, Item> range = descending ? index.descendingMap() : index;
+    if (params.get("startkey") != null) {
+      Object start = Json.decodeValue(params.get("startkey"), Object.class);
+      if (start instanceof String) {
+        startKey = (String)start;
+        range = range.tailMap(startKey, true);
+      }
+      else if (collatesAfterStrings(start) != descending) {
+        range = new ConcurrentSkipListMap<String, Item>();
+      }
+    }
+    if (params.get("endkey") != null) {
+      Object end = Json.decodeValue(params.get("endkey"), Object.class);
+      if (end instanceof String) {
+        endKey = (String)end;
+        range = range.headMap(endKey, true);
+      }
+      else if (collatesAfterStrings(end) == descending) {
+        range = new ConcurrentSkipListMap<String, Item>();
+      }
+    }
+
+    for (Map.Entry<String, Item> entry : range.entrySet()) {
+      String id = entry.getKey();
+      if (entry.getValue().isExpired(now)) {
+        continue;
+      }
+      // rows sharing the start or end key are bounded by their document id
+      if (id.equals(startKey) && startDocId != null && (descending ? id.compareTo(startDocId) > 0 : id.compareTo(startDocId) < 0)) {
+        continue;
+      }
+      if (id.equals(endKey)) {
+        if (!inclusiveEnd || endDocId != null && (descending ? id.compareTo(endDocId) < 0 : id.compareTo(endDocId) > 0)) {
+          continue;
+        }
+      }
+      ids.add(id);
+    }
+    return page(ids, params);
+  }
+
+  private static List<String> page(List<String> ids, MultiMap params) {
+    int skip = params.get("skip") == null ? 0 : Integer.parseInt(params.get("skip"));
+    int limit = params.get("limit") == null ? Integer.MAX_VALUE : Integer.parseInt(params.get("limit"));
+
+    int from = Math.min(skip, ids.size());
+    int to = (int)Math.min((long)from + limit, ids.size());
+    return ids.subList(from, to);
+  }
+
+  /**
+   * Whether a view key that isn't a string collates after the string keys, the document
+   * ids. Like in couchbase null, booleans and numbers collate before strings while arrays
+   * and objects collate after them.
+   */
+  private static boolean collatesAfterStrings(Object key) {
+    return key instanceof List || key instanceof Map;
+  }
+
+  private JsonObject bucketConfig() {
+    JsonArray vBucketMap = new JsonArray();
+    for (int i = 0; i < VBUCKETS; i++) {
+      // without a replica node the single node acts as the replica too, so replica reads can be exercised
+      vBucketMap.addArray(new JsonArray().addNumber(0).addNumber(replicaPort > 0 ? 1 : 0));
+    }
+
+    JsonObject node = new JsonObject()
+      .putString("hostname", host + ":" + httpPort)
+      .putString("couchApiBase", "http://" + host + ":" + httpPort + "/" + bucketName)
+      .putString("status", "healthy")
+      .putObject("ports", new JsonObject().putNumber("direct", memcachedPort).putNumber("proxy", memcachedPort));
+
+    JsonArray serverList = new JsonArray().addString(host + ":" + memcachedPort);
+    if (replicaPort > 0) {
+      serverList.addString(host + ":" + replicaPort);
+    }
+
+    JsonObject serverMap = new JsonObject()
+      .putString("hashAlgorithm", "CRC")
+      .putNumber("numReplicas", 1)
+      .putArray("serverList", serverList)
+      .putArray("vBucketMap", vBucketMap);
+
+    JsonObject settings = bucketSettings;
+    long ram = Long.parseLong(settings.getString("ramQuotaMB")) * 1024 * 1024;
+    JsonObject controllers = new JsonObject();
+    if ("1".equals(settings.getString("flushEnabled"))) {
+      controllers.putString("flush", "/pools/default/buckets/" + bucketName + "/controller/doFlush");
+    }
+
+    return new JsonObject()
+      .putString("name", bucketName)
+      .putObject("quota", new JsonObject().putNumber("ram", ram).putNumber("rawRAM", ram))
+      .putNumber("replicaNumber", 1)
+      .putString("authType", settings.getString("authType"))
+      .putString("saslPassword", settings.getString("saslPassword"))
+      .putObject("controllers", controllers)
+      .putNumber("rev", 1)
+      .putString("bucketType", "membase")
+      .putString("nodeLocator", "vbucket")
+      .putString("uri", "/pools/default/buckets/" + bucketName)
+      .putString("streamingUri", "/pools/default/bucketsStreaming/" + bucketName)
+      .putArray("nodes", new JsonArray().addObject(node))
+      .putObject("vBucketServerMap", serverMap);
+  }
+
+  private static void sendJson(HttpServerRequest request, int status, String json) {
+    request.response()
+      .setStatusCode(status)
+      .putHeader("Content-Type", "application/json")
+      .end(json);
+  }
+
+  private static void sendError(HttpServerRequest request, int status, String error, String reason) {
+    sendJson(request, status, new JsonObject().putString("error", error).putString("reason", reason).encode());
+  }
+}
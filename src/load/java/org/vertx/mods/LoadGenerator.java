@@ -0,0 +1,490 @@
+package org.vertx.mods;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.eventbus.ReplyException;
+import org.vertx.java.core.eventbus.ReplyFailure;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Load generator verticle sending a weighted mix of persistor actions to the module
+ * address, either at a target rate or with a fixed number of requests in flight, and
+ * reporting the throughput and latency percentiles per action. It can start its own
+ * {@link CouchbaseStandIn} and persistor to measure the persistor offline.
+ * <p>
+ * In rate mode latencies are measured from the time each request was due rather than
+ * from the time it was actually sent, so a persistor that falls behind shows up in the
+ * percentiles instead of slowing down the generator.
+ * <p>
+ * Please see the README.md for the configuration.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class LoadGenerator extends BusModBase {
+
+  private static final String DESIGN_DOC = "load";
+  private static final String VIEW_NAME = "all";
+  // prefix of the ids of the preloaded documents
+  private static final String ID_PREFIX = "doc";
+  private static final String[] ACTIONS = { "insert", "save", "find_by_id", "find_by_ids", "find_by_view", "counter" };
+
+  // persistor address the load is sent to
+  protected String address;
+  // target requests per second, 0 to keep a fixed concurrency instead
+  protected int rate;
+  // requests in flight when there isn't a target rate
+  protected int concurrency;
+  // time in milliseconds the load is sent, not counting the warmup
+  protected long duration;
+  // time in milliseconds the load is sent before the statistics are reset
+  protected long warmup;
+  // max requests waiting for a reply in rate mode, the ones due beyond it are dropped
+  protected int maxOutstanding;
+  // time in milliseconds a request waits for its reply
+  protected long timeout;
+  // number of distinct documents read and written
+  protected int documents;
+  // number of fields of the generated documents
+  protected int documentFields;
+  protected int idsPerRequest;
+  protected int viewLimit;
+  protected String designDoc;
+  protected String viewName;
+  // action of each slot of the weighted mix
+  protected String[] mix;
+
+  protected CouchbaseStandIn standIn;
+  private final String insertPrefix = "load-" + UUID.randomUUID() + "-";
+  private final AtomicLong inserts = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private volatile Stats stats = new Stats();
+  private volatile boolean sending;
+  private long startTime;
+  private long sent;
+  private long timerId = -1;
+
+  @Override
+  public void start() {
+    super.start();
+
+    address = getOptionalStringConfig("address", "vertx.couchbasepersistor");
+    rate = getOptionalIntConfig("rate", 0);
+    concurrency = Math.max(1, getOptionalIntConfig("concurrency", 16));
+    duration = getOptionalLongConfig("duration", 30000);
+    warmup = getOptionalLongConfig("warmup", 5000);
+    maxOutstanding = getOptionalIntConfig("max_outstanding", 10000);
+    timeout = getOptionalLongConfig("timeout", 10000);
+    documents = Math.max(1, getOptionalIntConfig("documents", 1000));
+    documentFields = getOptionalIntConfig("document_fields", 10);
+    idsPerRequest = getOptionalIntConfig("ids_per_request", 10);
+    viewLimit = getOptionalIntConfig("view_limit", 10);
+    designDoc = getOptionalStringConfig("design_doc", DESIGN_DOC);
+    viewName = getOptionalStringConfig("view_name", VIEW_NAME);
+    mix = mix(getOptionalObjectConfig("mix", new JsonObject()
+      .putNumber("find_by_id", 50)
+      .putNumber("save", 20)
+      .putNumber("insert", 5)
+      .putNumber("find_by_ids", 10)
+      .putNumber("find_by_view", 5)
+      .putNumber("counter", 10)));
+
+    if (getOptionalBooleanConfig("stand_in", false)) {
+      startStandIn();
+    }
+    else {
+      preload();
+    }
+  }
+
+  @Override
+  public void stop() {
+    sending = false;
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+    }
+    if (standIn != null) {
+      standIn.stop();
+    }
+  }
+
+  /**
+   * Expands the action weights into slots, so picking an action is a single random index
+   */
+  private static String[] mix(JsonObject weights) {
+    List<String> slots = new ArrayList<String>();
+    for (String action : ACTIONS) {
+      int weight = weights.getInteger(action, 0);
+      for (int i = 0; i < weight; i++) {
+        slots.add(action);
+      }
+    }
+    for (String action : weights.getFieldNames()) {
+      if (!slots.contains(action) && weights.getInteger(action) > 0) {
+        throw new IllegalArgumentException("Unsupported action in mix: " + action);
+      }
+    }
+    if (slots.isEmpty()) {
+      throw new IllegalArgumentException("mix must have an action with a positive weight");
+    }
+    return slots.toArray(new String[slots.size()]);
+  }
+
+  /**
+   * Starts a stand-in bucket on free ports and deploys the persistor against it
+   */
+  private void startStandIn() {
+    final int httpPort = freePort();
+    standIn = new CouchbaseStandIn(vertx, "127.0.0.1", httpPort, freePort(), "default");
+    standIn.putDesignDoc(DESIGN_DOC, new JsonObject().putObject("views", new JsonObject()
+      .putObject(VIEW_NAME, new JsonObject().putString("map", "function (doc, meta) { emit(meta.id, null); }"))));
+
+    standIn.start(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        if (result.failed()) {
+          fail("Failed to start the couchbase stand-in", result.cause());
+          return;
+        }
+
+        JsonObject persistorConfig = getOptionalObjectConfig("persistor", new JsonObject()).copy()
+          .putString("address", address)
+          .putString("host", "127.0.0.1")
+          .putNumber("port", httpPort)
+          .putString("bucket_name", "default")
+          .putString("bucket_password", "");
+
+        container.deployVerticle(CouchbasePersistor.class.getName(), persistorConfig, 1, new AsyncResultHandler<String>() {
+          public void handle(AsyncResult<String> deployed) {
+            if (deployed.failed()) {
+              fail("Failed to deploy the persistor", deployed.cause());
+              return;
+            }
+            preload();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Saves the documents read by the load before starting it
+   */
+  private void preload() {
+    if (!getOptionalBooleanConfig("preload", true)) {
+      startLoad();
+      return;
+    }
+
+    final AtomicInteger pending = new AtomicInteger(documents);
+    for (int i = 0; i < documents; i++) {
+      JsonObject message = new JsonObject().putString("action", "save").putObject("document", document(ID_PREFIX + i));
+      eb.sendWithTimeout(address, message, timeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+        public void handle(AsyncResult<Message<JsonObject>> reply) {
+          if (reply.failed() || !"ok".equals(reply.result().body().getString("status"))) {
+            logger.warn("Failed to preload a document: " + (reply.failed() ? reply.cause().getMessage() : reply.result().body()));
+          }
+          if (pending.decrementAndGet() == 0) {
+            startLoad();
+          }
+        }
+      });
+    }
+  }
+
+  private void startLoad() {
+    logger.info("Sending load to " + address + (rate > 0 ? " at " + rate + " requests/s" : " with " + concurrency + " requests in flight")
+      + " for " + duration + " ms after a " + warmup + " ms warmup");
+
+    sending = true;
+    startTime = System.nanoTime();
+
+    if (rate > 0) {
+      timerId = vertx.setPeriodic(1, new Handler<Long>() {
+        public void handle(Long timerId) {
+          sendDue();
+        }
+      });
+    }
+    else {
+      for (int i = 0; i < concurrency; i++) {
+        sendNext();
+      }
+    }
+
+    if (warmup > 0) {
+      vertx.setTimer(warmup, new Handler<Long>() {
+        public void handle(Long timerId) {
+          stats = new Stats();
+        }
+      });
+    }
+
+    vertx.setTimer(warmup + duration, new Handler<Long>() {
+      public void handle(Long timerId) {
+        finish();
+      }
+    });
+
+    final long reportInterval = getOptionalLongConfig("report_interval", 5000);
+    if (reportInterval > 0) {
+      vertx.setPeriodic(reportInterval, new Handler<Long>() {
+        public void handle(Long timerId) {
+          if (!sending) {
+            vertx.cancelTimer(timerId);
+            return;
+          }
+          logger.info("Load progress: " + stats.toJson().encode());
+        }
+      });
+    }
+  }
+
+  /**
+   * Sends every request due since the start at the target rate
+   */
+  private void sendDue() {
+    if (!sending) {
+      return;
+    }
+
+    long intervalNanos = 1000000000L / rate;
+    long due = (System.nanoTime() - startTime) / intervalNanos;
+    for (; sent < due; sent++) {
+      long scheduled = startTime + sent * intervalNanos;
+      stats.scheduled.incrementAndGet();
+      if (outstanding.get() >= maxOutstanding) {
+        stats.dropped.incrementAndGet();
+        continue;
+      }
+      send(scheduled, null);
+    }
+  }
+
+  private void sendNext() {
+    if (sending) {
+      stats.scheduled.incrementAndGet();
+      send(System.nanoTime(), new Handler<Void>() {
+        public void handle(Void event) {
+          sendNext();
+        }
+      });
+    }
+  }
+
+  private void send(final long scheduled, final Handler<Void> next) {
+    final String action = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    final Stats current = stats;
+    outstanding.incrementAndGet();
+
+    eb.sendWithTimeout(address, request(action), timeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+      public void handle(AsyncResult<Message<JsonObject>> reply) {
+        outstanding.decrementAndGet();
+        // replies of requests sent before the statistics were reset aren't recorded
+        if (current == stats) {
+          current.record(action, System.nanoTime() - scheduled, reply);
+        }
+        if (next != null) {
+          next.handle(null);
+        }
+      }
+    });
+  }
+
+  private JsonObject request(String action) {
+    JsonObject request = new JsonObject().putString("action", action);
+
+    switch (action) {
+      case "insert":
+        return request.putObject("document", document(insertPrefix + inserts.incrementAndGet()));
+      case "save":
+        return request.putObject("document", document(randomId()));
+      case "find_by_id":
+        return request.putString("id", randomId());
+      case "find_by_ids":
+        JsonArray ids = new JsonArray();
+        for (int i = 0; i < idsPerRequest; i++) {
+          ids.addString(randomId());
+        }
+        return request.putArray("ids", ids);
+      case "find_by_view":
+        return request
+          .putString("designDoc", designDoc)
+          .putString("viewName", viewName)
+          .putObject("query", new JsonObject()
+            .putString("rangeStart", randomId())
+            // just the preloaded documents, not the inserted ones nor the counters
+            .putString("rangeEnd", ID_PREFIX + "\uffff")
+            .putNumber("limit", viewLimit));
+      default:
+        return request
+          .putString("key", "load-counter-" + ThreadLocalRandom.current().nextInt(10))
+          .putString("operation", "increment")
+          .putNumber("by", 1);
+    }
+  }
+
+  private String randomId() {
+    return ID_PREFIX + ThreadLocalRandom.current().nextInt(documents);
+  }
+
+  private JsonObject document(String id) {
+    JsonObject document = new JsonObject().putString("id", id);
+    for (int i = 0; i < documentFields; i++) {
+      document.putString("field" + i, "value " + i + " of " + id);
+    }
+    return document;
+  }
+
+  /**
+   * Stops sending and reports once the outstanding requests are replied or timed out
+   */
+  private void finish() {
+    sending = false;
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+      timerId = -1;
+    }
+
+    final Stats measured = stats;
+    final long elapsed = measured.elapsedMillis();
+    final long deadline = System.currentTimeMillis() + timeout;
+
+    vertx.setPeriodic(10, new Handler<Long>() {
+      public void handle(Long id) {
+        if (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+          return;
+        }
+        vertx.cancelTimer(id);
+        report(measured.toJson(elapsed));
+      }
+    });
+  }
+
+  private void report(JsonObject report) {
+    report.putString("mode", rate > 0 ? "rate" : "concurrency");
+    report.putNumber(rate > 0 ? "rate" : "concurrency", rate > 0 ? rate : concurrency);
+    logger.info("Load report: " + report.encode());
+
+    String reportAddress = getOptionalStringConfig("report_address", null);
+    if (reportAddress != null) {
+      eb.publish(reportAddress, report);
+    }
+    if (getOptionalBooleanConfig("exit", false)) {
+      container.exit();
+    }
+  }
+
+  private void fail(String error, Throwable cause) {
+    logger.error(error, cause);
+    String reportAddress = getOptionalStringConfig("report_address", null);
+    if (reportAddress != null) {
+      eb.publish(reportAddress, new JsonObject().putString("status", "error").putString("message", error + ": " + cause.getMessage()));
+    }
+  }
+
+  private static int freePort() {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new IllegalStateException("No free port for the couchbase stand-in", e);
+    }
+  }
+
+  /**
+   * Results of the requests replied since the start or the end of the warmup
+   */
+  private static class Stats {
+    final long start = System.nanoTime();
+    final ConcurrentHashMap<String, ActionStats> actions = new ConcurrentHashMap<String, ActionStats>();
+    // latency in microseconds of every action
+    final Histogram latency = new Histogram();
+    // requests due, the dropped ones included
+    final AtomicLong scheduled = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    void record(String action, long nanos, AsyncResult<Message<JsonObject>> reply) {
+      ActionStats stats = actions.get(action);
+      if (stats == null) {
+        actions.putIfAbsent(action, new ActionStats());
+        stats = actions.get(action);
+      }
+
+      stats.latency.record(nanos / 1000);
+      latency.record(nanos / 1000);
+      if (reply.failed()) {
+        boolean timeout = reply.cause() instanceof ReplyException
+          && ((ReplyException)reply.cause()).failureType() == ReplyFailure.TIMEOUT;
+        (timeout ? stats.timeout : stats.error).incrementAndGet();
+      }
+      else if (!"ok".equals(reply.result().body().getString("status"))) {
+        stats.error.incrementAndGet();
+      }
+    }
+
+    long elapsedMillis() {
+      return (System.nanoTime() - start) / 1000000;
+    }
+
+    JsonObject toJson() {
+      return toJson(elapsedMillis());
+    }
+
+    JsonObject toJson(long elapsed) {
+      long errors = 0;
+      long timeouts = 0;
+      JsonObject json = new JsonObject();
+
+      for (Map.Entry<String, ActionStats> entry : actions.entrySet()) {
+        ActionStats stats = entry.getValue();
+        errors += stats.error.get();
+        timeouts += stats.timeout.get();
+        json.putObject(entry.getKey(), stats.toJson(elapsed));
+      }
+
+      return new JsonObject()
+        .putNumber("elapsed", elapsed)
+        .putNumber("scheduled", scheduled.get())
+        .putNumber("completed", latency.getCount())
+        .putNumber("errors", errors)
+        .putNumber("timeouts", timeouts)
+        .putNumber("dropped", dropped.get())
+        .putNumber("throughput", throughput(latency.getCount(), elapsed))
+        .putObject("latency", latency.toJson(1000))
+        .putObject("actions", json);
+    }
+  }
+
+  private static class ActionStats {
+    // latency in microseconds
+    final Histogram latency = new Histogram();
+    final AtomicLong error = new AtomicLong();
+    final AtomicLong timeout = new AtomicLong();
+
+    JsonObject toJson(long elapsed) {
+      return new JsonObject()
+        .putNumber("completed", latency.getCount())
+        .putNumber("errors", error.get())
+        .putNumber("timeouts", timeout.get())
+        .putNumber("throughput", throughput(latency.getCount(), elapsed))
+        .putObject("latency", latency.toJson(1000));
+    }
+  }
+
+  private static double throughput(long count, long elapsedMillis) {
+    return elapsedMillis > 0 ? count * 1000.0 / elapsedMillis : 0;
+  }
+}
@@ -0,0 +1,143 @@
+package org.vertx.mods;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Counters and latency histograms of a single persistor action. Latencies are
+ * recorded in microseconds: the whole request, the time waiting on couchbase and
+ * the time a completed operation waits to be handled in the verticle context.
+ * Each latency is kept both since the module started and within a sliding window,
+ * the latter so a recent slowdown isn't hidden by the lifetime samples.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class ActionMetrics implements ActionMetricsMBean {
+
+  private static final double MILLIS = 1000;
+
+  final AtomicLong success = new AtomicLong();
+  final AtomicLong error = new AtomicLong();
+  final AtomicLong timeout = new AtomicLong();
+  final AtomicLong overloaded = new AtomicLong();
+  final AtomicLong inFlight = new AtomicLong();
+
+  final Histogram latency = new Histogram();
+  final Histogram couchbaseLatency = new Histogram();
+  final Histogram queueLatency = new Histogram();
+
+  final SlidingHistogram recentLatency;
+  final SlidingHistogram recentCouchbaseLatency;
+  final SlidingHistogram recentQueueLatency;
+
+  /**
+   * @param windowMillis time in milliseconds the recent latencies are kept
+   */
+  public ActionMetrics(long windowMillis) {
+    recentLatency = new SlidingHistogram(windowMillis);
+    recentCouchbaseLatency = new SlidingHistogram(windowMillis);
+    recentQueueLatency = new SlidingHistogram(windowMillis);
+  }
+
+  void recordLatency(long micros) {
+    latency.record(micros);
+    recentLatency.record(micros);
+  }
+
+  void recordCouchbaseLatency(long micros) {
+    couchbaseLatency.record(micros);
+    recentCouchbaseLatency.record(micros);
+  }
+
+  void recordQueueLatency(long micros) {
+    queueLatency.record(micros);
+    recentQueueLatency.record(micros);
+  }
+
+  public JsonObject toJson(long uptime) {
+    long completed = success.get() + error.get();
+
+    return new JsonObject()
+      .putNumber("success", success.get())
+      .putNumber("error", error.get())
+      .putNumber("timeout", timeout.get())
+      .putNumber("overloaded", overloaded.get())
+      .putNumber("in_flight", inFlight.get())
+      .putNumber("throughput", uptime > 0 ? completed * 1000.0 / uptime : 0)
+      .putObject("latency", latency.toJson(MILLIS))
+      .putObject("couchbase_latency", couchbaseLatency.toJson(MILLIS))
+      .putObject("queue_latency", queueLatency.toJson(MILLIS))
+      .putObject("recent_latency", recentLatency.snapshot().toJson(MILLIS))
+      .putObject("recent_couchbase_latency", recentCouchbaseLatency.snapshot().toJson(MILLIS))
+      .putObject("recent_queue_latency", recentQueueLatency.snapshot().toJson(MILLIS));
+  }
+
+  public long getSuccessCount() {
+    return success.get();
+  }
+
+  public long getErrorCount() {
+    return error.get();
+  }
+
+  public long getTimeoutCount() {
+    return timeout.get();
+  }
+
+  public long getOverloadedCount() {
+    return overloaded.get();
+  }
+
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
+  public double getLatencyMean() {
+    return latency.getMean() / MILLIS;
+  }
+
+  public double getLatencyP50() {
+    return latency.getPercentile(50) / MILLIS;
+  }
+
+  public double getLatencyP99() {
+    return latency.getPercentile(99) / MILLIS;
+  }
+
+  public double getLatencyP999() {
+    return latency.getPercentile(99.9) / MILLIS;
+  }
+
+  public double getLatencyMax() {
+    return latency.getMax() / MILLIS;
+  }
+
+  public double getCouchbaseLatencyP99() {
+    return couchbaseLatency.getPercentile(99) / MILLIS;
+  }
+
+  public double getQueueLatencyP99() {
+    return queueLatency.getPercentile(99) / MILLIS;
+  }
+
+  public double getRecentLatencyP50() {
+    return recentLatency.snapshot().getPercentile(50) / MILLIS;
+  }
+
+  public double getRecentLatencyP99() {
+    return recentLatency.snapshot().getPercentile(99) / MILLIS;
+  }
+
+  public double getRecentLatencyMax() {
+    return recentLatency.snapshot().getMax() / MILLIS;
+  }
+
+  public double getRecentCouchbaseLatencyP99() {
+    return recentCouchbaseLatency.snapshot().getPercentile(99) / MILLIS;
+  }
+
+  public double getRecentQueueLatencyP99() {
+    return recentQueueLatency.snapshot().getPercentile(99) / MILLIS;
+  }
+}
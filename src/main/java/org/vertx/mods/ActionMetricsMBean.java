@@ -0,0 +1,44 @@
+package org.vertx.mods;
+
+/**
+ * JMX view of the metrics of a persistor action, latencies are in milliseconds,
+ * the recent ones within the sliding window of the metrics
+ *
+ * @author Juan Manuel Musacchio
+ */
+public interface ActionMetricsMBean {
+
+  long getSuccessCount();
+
+  long getErrorCount();
+
+  long getTimeoutCount();
+
+  long getOverloadedCount();
+
+  long getInFlight();
+
+  double getLatencyMean();
+
+  double getLatencyP50();
+
+  double getLatencyP99();
+
+  double getLatencyP999();
+
+  double getLatencyMax();
+
+  double getCouchbaseLatencyP99();
+
+  double getQueueLatencyP99();
+
+  double getRecentLatencyP50();
+
+  double getRecentLatencyP99();
+
+  double getRecentLatencyMax();
+
+  double getRecentCouchbaseLatencyP99();
+
+  double getRecentQueueLatencyP99();
+}
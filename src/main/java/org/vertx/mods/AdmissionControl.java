@@ -0,0 +1,122 @@
+package org.vertx.mods;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Bounds the number of requests of each action being executed at once. Requests
+ * over the limit wait in a bounded queue and are rejected once the queue is full,
+ * so a slow cluster turns into fast overload replies instead of piling up work.
+ * <p>
+ * A request holds its slot until it's released, then the slot is handed over to
+ * the oldest request waiting for the same action.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class AdmissionControl<T> {
+
+  public enum Admission {
+    ADMITTED,
+    QUEUED,
+    REJECTED
+  }
+
+  private final int defaultLimit;
+  private final JsonObject limits;
+  private final int maxQueued;
+
+  private final Map<String, Limiter<T>> limiters = new HashMap<String, Limiter<T>>();
+  // admitted requests, compared by identity, along with the limiter they hold a slot of
+  private final Map<T, Limiter<T>> admitted = new IdentityHashMap<T, Limiter<T>>();
+
+  /**
+   * @param defaultLimit max in flight requests of the actions without an specific limit, 0 means no limit
+   * @param limits max in flight requests by action name
+   * @param maxQueued max number of requests waiting per action
+   */
+  public AdmissionControl(int defaultLimit, JsonObject limits, int maxQueued) {
+    this.defaultLimit = defaultLimit;
+    this.limits = limits != null ? limits : new JsonObject();
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Takes a slot of the action for the request, or queues it whether there isn't any available
+   */
+  public synchronized Admission admit(String action, T request) {
+    Limiter<T> limiter = limiter(action);
+    if (limiter == null) {
+      return Admission.ADMITTED;
+    }
+
+    if (limiter.inFlight < limiter.limit) {
+      limiter.inFlight++;
+      admitted.put(request, limiter);
+      return Admission.ADMITTED;
+    }
+    if (limiter.queue.size() < maxQueued) {
+      limiter.queue.add(request);
+      return Admission.QUEUED;
+    }
+    return Admission.REJECTED;
+  }
+
+  /**
+   * Releases the slot of a completed request, requests that don't hold one are ignored
+   *
+   * @return the queued request the slot was handed over to, which must be executed now, or null
+   */
+  public synchronized T release(T request) {
+    Limiter<T> limiter = admitted.remove(request);
+    if (limiter == null) {
+      return null;
+    }
+
+    T next = limiter.queue.poll();
+    if (next != null) {
+      admitted.put(next, limiter);
+    }
+    else {
+      limiter.inFlight--;
+    }
+    return next;
+  }
+
+  public synchronized int inFlight(String action) {
+    Limiter<T> limiter = limiters.get(action);
+    return limiter != null ? limiter.inFlight : 0;
+  }
+
+  public synchronized int queued(String action) {
+    Limiter<T> limiter = limiters.get(action);
+    return limiter != null ? limiter.queue.size() : 0;
+  }
+
+  private Limiter<T> limiter(String action) {
+    Limiter<T> limiter = limiters.get(action);
+    if (limiter == null) {
+      int limit = limits.getInteger(action, defaultLimit);
+      if (limit <= 0) {
+        return null;
+      }
+      limiter = new Limiter<T>(limit);
+      limiters.put(action, limiter);
+    }
+    return limiter;
+  }
+
+  private static class Limiter<T> {
+    final int limit;
+    final Deque<T> queue = new ArrayDeque<T>();
+    int inFlight;
+
+    Limiter(int limit) {
+      this.limit = limit;
+    }
+  }
+}
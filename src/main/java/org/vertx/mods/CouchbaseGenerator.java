@@ -3,13 +3,24 @@ package org.vertx.mods;
 import static java.util.Arrays.asList;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.codec.binary.Base64;
 import org.vertx.java.busmods.BusModBase;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
@@ -20,6 +31,8 @@ import com.couchbase.client.CouchbaseConnectionFactoryBuilder;
 import com.couchbase.client.clustermanager.AuthType;
 import com.couchbase.client.clustermanager.BucketType;
 import com.couchbase.client.protocol.views.DesignDocument;
+import com.couchbase.client.protocol.views.InvalidViewException;
+import com.couchbase.client.protocol.views.View;
 import com.couchbase.client.protocol.views.ViewDesign;
 
 /**
@@ -33,6 +46,10 @@ public abstract class CouchbaseGenerator extends BusModBase {
 
   private static final String MODE_PRODUCTION = "production";
   private static final String DEV_PREFIX = "dev_";
+  private static final int REPLICAS = 1;
+  private static final long MB = 1024 * 1024;
+  private static final long READY_POLL_INTERVAL = 100;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
   
   // host and port
   protected String host;
@@ -48,6 +65,8 @@ public abstract class CouchbaseGenerator extends BusModBase {
   protected String bucketPassword;
   protected int bucketMemorySize;
   protected JsonArray views;
+  // max time in milliseconds init waits for the bucket to be ready
+  protected long initTimeout;
   
   // timeouts
   protected int operationTimeout;
@@ -55,9 +74,21 @@ public abstract class CouchbaseGenerator extends BusModBase {
   protected int observerTimeout;
   protected int viewConnsPerNode;
   
-  // client and cluster manager
+  // document format and compression
+  protected DocumentTranscoder.Format documentFormat = DocumentTranscoder.Format.JSON;
+  protected int compressionThreshold;
+  
+  // number of clients key value operations are striped across
+  protected int clientPoolSize = 1;
+  
+  // client and cluster manager, client is the first one of the pool
   protected ClusterManager manager;
-  protected CouchbaseClient client;
+  protected PersistorClient client;
+  protected PersistorClient[] clients;
+  private final AtomicInteger nextClient = new AtomicInteger();
+  
+  // resolved views by design document and view name, a view is dropped once a query of it fails
+  protected final ConcurrentMap<String, View> resolvedViews = new ConcurrentHashMap<String, View>();
   
   /**
    * Method that starts couchbase initialization process
@@ -68,6 +99,7 @@ public abstract class CouchbaseGenerator extends BusModBase {
     password = getOptionalStringConfig("password", null);
     bucketMemorySize = getOptionalIntConfig("bucket_memory_size", 512);
     views = getOptionalArrayConfig("views", null);
+    initTimeout = getOptionalLongConfig("init_timeout", 30000);
     
     try {
       // execute generation
@@ -83,9 +115,18 @@ public abstract class CouchbaseGenerator extends BusModBase {
   }
   
   /**
-   * Method to instance the couchbase client that will interact with the server
+   * Method to instance the couchbase clients that will interact with the server,
+   * each one has its own connections and IO thread
    */
   protected void createClient() {
+    clients = new PersistorClient[Math.max(1, clientPoolSize)];
+    for (int i = 0; i < clients.length; i++) {
+      clients[i] = newClient();
+    }
+    client = clients[0];
+  }
+  
+  private PersistorClient newClient() {
     try {
       CouchbaseConnectionFactoryBuilder builder = new CouchbaseConnectionFactoryBuilder();
       builder.setOpTimeout(operationTimeout);
@@ -95,14 +136,50 @@ public abstract class CouchbaseGenerator extends BusModBase {
       // normally the worker size should be equal to the number of processors
       // org.apache.http.impl.nio.reactor.IOReactorConfig.AVAIL_PROCS
       builder.setViewWorkerSize(Runtime.getRuntime().availableProcessors());
+      builder.setTranscoder(new DocumentTranscoder(documentFormat, compressionThreshold));
 
-      client = new CouchbaseClient(builder.buildCouchbaseConnection(bootstrapUris(), bucketName, bucketPassword));
+      return new PersistorClient(builder.buildCouchbaseConnection(bootstrapUris(), bucketName, bucketPassword));
     } catch (Exception e) {
       logger.error("Failed to connect to couchbase server", e);
       throw new RuntimeException(e);
     }
   }
   
+  /**
+   * Returns the client of the pool the operations on the given key go through,
+   * always the same one so the operations on a key keep their order
+   */
+  protected PersistorClient clientFor(String key) {
+    if (clients.length == 1) {
+      return client;
+    }
+    return clients[(key.hashCode() & Integer.MAX_VALUE) % clients.length];
+  }
+  
+  /**
+   * Returns the clients of the pool in turn, for operations that aren't
+   * bound to a single key such as view queries
+   */
+  protected PersistorClient nextClient() {
+    if (clients.length == 1) {
+      return client;
+    }
+    return clients[(nextClient.getAndIncrement() & Integer.MAX_VALUE) % clients.length];
+  }
+  
+  /**
+   * Shuts down every client of the pool, waiting up to the operation timeout
+   * for the operations already issued
+   */
+  protected void shutdownClients() {
+    if (clients == null) {
+      return;
+    }
+    for (CouchbaseClient c : clients) {
+      c.shutdown(operationTimeout, TimeUnit.MILLISECONDS);
+    }
+  }
+  
   /**
    * Method that orchestrate the couchbase server initialization
    * 
@@ -119,12 +196,16 @@ public abstract class CouchbaseGenerator extends BusModBase {
     if (!buckets.contains(bucketName)) {
       // Create a bucket with authentication.
       createBucket();
-      // TODO improve this, give sometime to create the bucket
-      Thread.sleep(5000);
-    } else {
-      // Update a bucket
+    }
+    // update it just when its settings changed, updates can restart the bucket
+    else if (isBucketChanged(bucketInfo())) {
       updateBucket();
     }
+    else {
+      logger.info("Bucket " + bucketName + " is up to date");
+    }
+    
+    awaitBucketReady();
 
     // generate views whether are requested
     if (views != null) {
@@ -152,6 +233,89 @@ public abstract class CouchbaseGenerator extends BusModBase {
     manager.updateBucket(bucketName, bucketMemorySize, AuthType.SASL, 1, 11212, bucketPassword, true);
   }
   
+  /**
+   * Checks whether the bucket settings differ from the configured ones,
+   * settings not reported by the server are considered changed
+   */
+  private boolean isBucketChanged(JsonObject bucket) {
+    if (bucket == null) {
+      return true;
+    }
+    
+    JsonObject quota = bucket.getObject("quota");
+    JsonObject controllers = bucket.getObject("controllers");
+    Number ram = quota != null ? quota.getNumber("rawRAM") : null;
+    Number replicas = bucket.getNumber("replicaNumber");
+    String password = bucketPassword != null ? bucketPassword : "";
+    
+    return ram == null || ram.longValue() != bucketMemorySize * MB
+      || replicas == null || replicas.intValue() != REPLICAS
+      || !"sasl".equals(bucket.getString("authType"))
+      || !password.equals(bucket.getString("saslPassword"))
+      || controllers == null || controllers.getString("flush") == null;
+  }
+  
+  /**
+   * Polls the bucket until every node reports it healthy, instead of waiting a fixed time
+   */
+  private void awaitBucketReady() throws Exception {
+    long deadline = System.currentTimeMillis() + initTimeout;
+    
+    while (!isBucketReady(bucketInfo())) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IllegalStateException("Bucket " + bucketName + " not ready after " + initTimeout + "ms");
+      }
+      Thread.sleep(READY_POLL_INTERVAL);
+    }
+  }
+  
+  private static boolean isBucketReady(JsonObject bucket) {
+    JsonArray nodes = bucket != null ? bucket.getArray("nodes") : null;
+    if (nodes == null || nodes.size() == 0) {
+      return false;
+    }
+    
+    for (Object node : nodes) {
+      if (!"healthy".equals(((JsonObject)node).getString("status"))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Fetches the bucket details through the REST API, null whether it doesn't exist yet
+   */
+  private JsonObject bucketInfo() throws IOException {
+    URL url = new URL("http://" + host + ":" + port + "/pools/default/buckets/" + bucketName);
+    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+    connection.setConnectTimeout(operationTimeout);
+    connection.setReadTimeout(operationTimeout);
+    
+    if (username != null) {
+      String credentials = username + ":" + (password != null ? password : "");
+      connection.setRequestProperty("Authorization", "Basic " + Base64.encodeBase64String(credentials.getBytes(UTF8)));
+    }
+    
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return null;
+      }
+      
+      StringBuilder body = new StringBuilder();
+      try (InputStream in = connection.getInputStream(); Reader reader = new InputStreamReader(in, UTF8)) {
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+          body.append(buffer, 0, read);
+        }
+      }
+      return new JsonObject(body.toString());
+    } finally {
+      connection.disconnect();
+    }
+  }
+  
   /**
    * Method to generate couchbase views
    * @throws IOException
@@ -195,12 +359,47 @@ public abstract class CouchbaseGenerator extends BusModBase {
     // instance client
     createClient();
     
-    // create the design documents
+    // create the design documents whose views changed, uploading a design document rebuilds its indexes
     for (DesignDocument designDoc : docs.values()) {
+      if (isDesignDocChanged(designDoc)) {
         client.createDesignDoc(designDoc);
+      }
+      else {
+        logger.info("Design document " + designDoc.getName() + " is up to date");
+      }
     }
   }
   
+  /**
+   * Compares the views of the design document with the ones in the server
+   */
+  private boolean isDesignDocChanged(DesignDocument designDoc) {
+    DesignDocument current;
+    try {
+      current = client.getDesignDoc(designDoc.getName());
+    } catch (InvalidViewException e) {
+      return true;
+    }
+    
+    return !viewDefinitions(designDoc).equals(viewDefinitions(current));
+  }
+  
+  private static Map<String, List<String>> viewDefinitions(DesignDocument designDoc) {
+    Map<String, List<String>> definitions = new HashMap<String, List<String>>();
+    for (ViewDesign view : designDoc.getViews()) {
+      definitions.put(view.getName(), asList(trim(view.getMap()), trim(view.getReduce())));
+    }
+    return definitions;
+  }
+  
+  private static String trim(String function) {
+    return function != null ? function.trim() : "";
+  }
+  
+  protected static String viewKey(String designDoc, String viewName) {
+    return designDoc + "/" + viewName;
+  }
+  
   private List<URI> bootstrapUris() throws URISyntaxException {
     return asList(new URI(getURL()));
   }
@@ -1,27 +1,61 @@
 package org.vertx.mods;
 
-import static org.apache.commons.beanutils.MethodUtils.invokeMethod;
-import static org.apache.commons.lang.StringUtils.capitalize;
-
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
 
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
 import net.spy.memcached.PersistTo;
 import net.spy.memcached.ReplicateTo;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
 
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.DecodeException;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
 
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.internal.HttpCompletionListener;
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.internal.ReplicaGetCompletionListener;
+import com.couchbase.client.internal.ReplicaGetFuture;
 import com.couchbase.client.protocol.views.Query;
-import com.couchbase.client.protocol.views.Stale;
 import com.couchbase.client.protocol.views.View;
 import com.couchbase.client.protocol.views.ViewResponse;
 import com.couchbase.client.protocol.views.ViewRow;
@@ -34,14 +68,78 @@ import com.couchbase.client.protocol.views.ViewRow;
  */
 public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Message<JsonObject>> {
 
+  // supported actions, used to name the metrics
+  private static final Set<String> ACTIONS = new HashSet<String>(Arrays.asList(
+    "insert", "save", "update", "delete", "bulk_store", "find_by_id", "find_by_view", "find_by_ids",
+    "cas", "counter", "unlock", "touch", "mutate", "bulk_touch", "bulk_lock", "bulk_unlock", "delete_by_view",
+    "touch_by_view"));
+
+  // error code of the requests rejected because their action is overloaded
+  public static final String OVERLOADED = "overloaded";
+  // max number of times the write of an aggregated counter delta is attempted
+  private static final int COUNTER_FLUSH_ATTEMPTS = 5;
+  // time in milliseconds before the first retry of a counter delta, doubled on each of the next ones
+  private static final long COUNTER_RETRY_DELAY = 100;
+
   // used to specify whether the couchbase server should be initialized
   protected boolean init;
   // event bus address
   protected String address;
+  // verticle context where couchbase completions are handled
+  protected Context context;
+  // max number of documents fetched per bulk get when resolving view rows
+  protected int viewFetchChunkSize;
+  // max number of documents fetched per bulk get by find_by_ids
+  protected int idsFetchChunkSize;
+  // time in milliseconds a streamed reply waits for the sender to request the next chunk
+  protected long streamTimeout;
+  // local read-through cache for find_by_id and find_by_ids, null when disabled
+  protected DocumentCache documentCache;
+  // whether concurrent standard find_by_id reads of the same document share a single read
+  protected boolean coalesceReads;
+  // standard find_by_id reads being executed by document id, joined by the concurrent ones
+  protected final ConcurrentMap<String, SharedRead> pendingReads = new ConcurrentHashMap<String, SharedRead>();
+  // stores being observed until they meet their durability requirements, failed when the module stops
+  protected final Set<DurabilityWait> durabilityWaits = Collections.newSetFromMap(new ConcurrentHashMap<DurabilityWait, Boolean>());
+  // cache of the find_by_view replies that accept stale results, null when disabled
+  protected ViewResultCache<Message<JsonObject>> viewCache;
+  // key of the cacheable find_by_view requests being executed, whose waiters get their reply
+  protected final Map<Message<JsonObject>, String> viewCacheLeaders = new ConcurrentHashMap<Message<JsonObject>, String>();
+  // per action metrics, null when disabled
+  protected PersistorMetrics metrics;
+  // bounds the in flight requests per action, null when disabled
+  protected AdmissionControl<Message<JsonObject>> admission;
+  // time in milliseconds a find_by_id waits before reading from a replica as well, 0 disables hedged reads
+  protected long hedgedReadDelay;
+  // percentile of the find_by_id latency used as the hedged read delay once it's learned, 0 to always use the fixed delay
+  protected double hedgedReadPercentile;
+  // latency in microseconds of the hedged find_by_id primary reads
+  protected final Histogram readLatency = new Histogram();
+  // sums the deltas of aggregated counter requests, null when disabled
+  protected CounterAggregator counterAggregator;
+  protected long counterFlushTimer = -1;
+  // gives up on the metrics of requests that are never replied
+  protected long metricsExpiryTimer = -1;
+  // writes of aggregated counter deltas in flight, waited for when the module stops
+  protected final Set<OperationFuture<Long>> counterFlushes = Collections.newSetFromMap(new ConcurrentHashMap<OperationFuture<Long>, Boolean>());
+  // retries of the counter deltas that failed to be written, by timer id
+  protected final Map<Long, Runnable> counterRetries = new ConcurrentHashMap<Long, Runnable>();
+  protected volatile boolean stopping;
+  // buffers unconditional saves of the same document, null when disabled
+  protected WriteCoalescer<Message<JsonObject>> saveCoalescer;
+  // coalesced saves in flight by their write, replied by whoever claims the batch first
+  protected final ConcurrentMap<OperationFuture<?>, WriteCoalescer.Batch<Message<JsonObject>>> saveFlushes =
+    new ConcurrentHashMap<OperationFuture<?>, WriteCoalescer.Batch<Message<JsonObject>>>();
+  // max number of times a mutate is retried when the document changed in between
+  protected int mutateMaxRetries;
+  // time in milliseconds before the first mutate retry, doubled on each of the next ones
+  protected long mutateRetryDelay;
     
   @Override
-  public void start() {
+  public void start(final org.vertx.java.core.Future<Void> startedResult) {
     super.start();
+    
+    context = vertx.currentContext();
 
     init = getOptionalBooleanConfig("init", false);
     address = getOptionalStringConfig("address", "vertx.couchbasepersistor");
@@ -55,25 +153,384 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
     viewTimeout = getOptionalIntConfig("view_timeout", 75000);
     observerTimeout = getOptionalIntConfig("observer_timeout", 5000);
     viewConnsPerNode = getOptionalIntConfig("view_conns_per_node", 10);
+    viewFetchChunkSize = Math.max(1, getOptionalIntConfig("view_fetch_chunk_size", 100));
+    idsFetchChunkSize = Math.max(1, getOptionalIntConfig("ids_fetch_chunk_size", 500));
+    streamTimeout = getOptionalLongConfig("stream_timeout", 30000);
+    documentFormat = DocumentTranscoder.Format.valueOf(getOptionalStringConfig("document_format", "json").toUpperCase());
+    compressionThreshold = getOptionalIntConfig("compression_threshold", 0);
+    clientPoolSize = getOptionalIntConfig("client_pool_size", 1);
     
-    // if init param is specified means that couchbase should be started up
-    // which can include bucket creation/update plus views
-    if (init) {
-      initializeCouchbase();
+    int documentCacheSize = getOptionalIntConfig("document_cache_size", 0);
+    if (documentCacheSize > 0) {
+      documentCache = new DocumentCache(documentCacheSize, getOptionalLongConfig("document_cache_ttl", 60000));
     }
-    // otherwise instance the couchbase client
-    else {
-      createClient();
+    
+    coalesceReads = getOptionalBooleanConfig("coalesce_reads", true);
+    int viewCacheSize = getOptionalIntConfig("view_cache_size", 0);
+    if (viewCacheSize > 0) {
+      viewCache = new ViewResultCache<Message<JsonObject>>(viewCacheSize, getOptionalLongConfig("view_cache_ttl", 1000));
+    }
+    
+    hedgedReadDelay = getOptionalLongConfig("hedged_read_delay", 0);
+    hedgedReadPercentile = config.getNumber("hedged_read_percentile", 0).doubleValue();
+    
+    int maxInFlight = getOptionalIntConfig("max_in_flight", 0);
+    JsonObject maxInFlightPerAction = getOptionalObjectConfig("max_in_flight_per_action", null);
+    if (maxInFlight > 0 || maxInFlightPerAction != null) {
+      admission = new AdmissionControl<Message<JsonObject>>(maxInFlight, maxInFlightPerAction, getOptionalIntConfig("max_queued", 100));
+    }
+    
+    long counterFlushInterval = getOptionalLongConfig("counter_flush_interval", 1000);
+    if (counterFlushInterval > 0) {
+      startCounterAggregation(counterFlushInterval, getOptionalLongConfig("counter_flush_threshold", 0));
     }
-       
-    eb.registerHandler(address, this);
+    
+    mutateMaxRetries = getOptionalIntConfig("mutate_max_retries", 10);
+    mutateRetryDelay = getOptionalLongConfig("mutate_retry_delay", 5);
+    
+    long saveCoalescingWindow = getOptionalLongConfig("save_coalescing_window", 0);
+    if (saveCoalescingWindow > 0) {
+      saveCoalescer = new WriteCoalescer<Message<JsonObject>>(vertx, saveCoalescingWindow,
+        getOptionalIntConfig("save_coalescing_batch_size", 100), new Handler<WriteCoalescer.Batch<Message<JsonObject>>>() {
+          public void handle(WriteCoalescer.Batch<Message<JsonObject>> batch) {
+            flushSaves(batch);
+          }
+        });
+    }
+    
+    // connecting blocks until the cluster replies, which would hold the event loop the verticle
+    // runs on, so it's done by a separate thread and the handler registered once connected
+    Thread connector = new Thread(new Runnable() {
+      public void run() {
+        Exception failure = null;
+        try {
+          // if init param is specified means that couchbase should be started up
+          // which can include bucket creation/update plus views
+          if (init) {
+            initializeCouchbase();
+          }
+          // otherwise instance the couchbase client
+          else {
+            createClient();
+          }
+        } catch (Exception e) {
+          failure = e;
+        }
+        
+        final Exception connectFailure = failure;
+        context.runOnContext(new Handler<Void>() {
+          public void handle(Void event) {
+            if (connectFailure != null) {
+              startedResult.setFailure(connectFailure);
+              return;
+            }
+            
+            if (getOptionalBooleanConfig("metrics", true)) {
+              startMetrics(getOptionalStringConfig("metrics_address", address + ".metrics"));
+            }
+            
+            eb.registerHandler(address, CouchbasePersistor.this, new Handler<AsyncResult<Void>>() {
+              public void handle(AsyncResult<Void> registered) {
+                if (registered.succeeded()) {
+                  startedResult.setResult(null);
+                }
+                else {
+                  startedResult.setFailure(registered.cause());
+                }
+              }
+            });
+          }
+        });
+      }
+    }, "couchbase-persistor-connector");
+    connector.setDaemon(true);
+    connector.start();
   }
   
   @Override
   public void stop() {
-    if (client != null) {
-    	client.shutdown();
+    stopping = true;
+    // buffered saves are written before the client waits for its pending operations
+    if (saveCoalescer != null && clients != null) {
+      saveCoalescer.flushAll();
+      awaitSaveFlushes();
+    }
+    if (counterAggregator != null && clients != null) {
+      vertx.cancelTimer(counterFlushTimer);
+      // the deltas waiting for a retry get their last attempt along with the pending ones
+      for (Long timerId : counterRetries.keySet()) {
+        Runnable retry = counterRetries.remove(timerId);
+        if (retry != null && vertx.cancelTimer(timerId)) {
+          retry.run();
+        }
+      }
+      counterAggregator.flush();
+      awaitCounterFlushes();
+    }
+    // the observations still pending can't complete once the clients are shut down
+    for (DurabilityWait wait : durabilityWaits) {
+      wait.finish("durability not confirmed, module stopped");
+    }
+    shutdownClients();
+    if (metrics != null) {
+      vertx.cancelTimer(metricsExpiryTimer);
+      metrics.close();
+    }
+  }
+  
+  /**
+   * Creates the counter aggregator, flushed on the given interval
+   */
+  private void startCounterAggregation(long interval, long threshold) {
+    counterAggregator = new CounterAggregator(threshold, new CounterAggregator.Flusher() {
+      public void flush(String key, long delta, long initial, int expiration) {
+        flushCounter(key, delta, initial, expiration, 1);
+      }
+    });
+    
+    counterFlushTimer = vertx.setPeriodic(interval, new Handler<Long>() {
+      public void handle(Long timerId) {
+        counterAggregator.flush();
+      }
+    });
+  }
+  
+  /**
+   * Applies the summed delta of an aggregated counter, a failed delta is added back
+   * to be retried on the next flush
+   */
+  private void flushCounter(final String key, final long delta, final long initial, final int expiration, final int attempt) {
+    final OperationFuture<Long> future;
+    try {
+      // a missing counter is created with the delta already applied to its initial value
+      future = delta > 0
+        ? clientFor(key).asyncIncr(key, delta, initial + delta, expiration)
+        : clientFor(key).asyncDecr(key, -delta, Math.max(0, initial + delta), expiration);
+    } catch (RuntimeException e) {
+      // the operation wasn't issued, so it can be retried safely
+      retryCounter(key, delta, initial, expiration, attempt, e.getMessage());
+      return;
+    }
+    
+    counterFlushes.add(future);
+    addListener(future, new Handler<Void>() {
+      public void handle(Void event) {
+        counterFlushes.remove(future);
+        OperationStatus status = future.getStatus();
+        if (status.isSuccess()) {
+          return;
+        }
+        
+        if (isRetryable(status.getStatusCode())) {
+          retryCounter(key, delta, initial, expiration, attempt, status.getMessage());
+        }
+        else {
+          // a timed out or cancelled write may have been applied, retrying could count it twice
+          logger.error("Failed to flush counter " + key + ", delta " + delta + " may not have been applied: " + status.getMessage());
+        }
+      }
+    });
+  }
+  
+  /**
+   * Whether a counter write failed before being applied, so it can be issued again
+   */
+  private static boolean isRetryable(StatusCode code) {
+    return code == StatusCode.ERR_TEMP_FAIL || code == StatusCode.ERR_BUSY || code == StatusCode.ERR_NO_MEM
+      || code == StatusCode.ERR_NOT_MY_VBUCKET;
+  }
+  
+  /**
+   * Writes the counter delta again after a growing delay, it's dropped once every attempt
+   * failed. The retry is scheduled instead of merged into the aggregator, whose threshold
+   * would write it again right away.
+   */
+  private void retryCounter(final String key, final long delta, final long initial, final int expiration, final int attempt,
+      String error) {
+    if (attempt >= COUNTER_FLUSH_ATTEMPTS || stopping) {
+      logger.error("Failed to flush counter " + key + ", delta " + delta + " dropped after " + attempt + " attempts: " + error);
+      return;
+    }
+    logger.warn("Failed to flush counter " + key + ", retrying: " + error);
+    
+    context.runOnContext(new Handler<Void>() {
+      public void handle(Void event) {
+        final Runnable retry = new Runnable() {
+          public void run() {
+            flushCounter(key, delta, initial, expiration, attempt + 1);
+          }
+        };
+        long timerId = vertx.setTimer(COUNTER_RETRY_DELAY << (attempt - 1), new Handler<Long>() {
+          public void handle(Long timerId) {
+            if (counterRetries.remove(timerId) != null) {
+              retry.run();
+            }
+          }
+        });
+        counterRetries.put(timerId, retry);
+      }
+    });
+  }
+  
+  /**
+   * Waits up to the operation timeout for the counter writes in flight, so they aren't
+   * cut off by the clients shutdown
+   */
+  private void awaitCounterFlushes() {
+    long deadline = System.currentTimeMillis() + operationTimeout;
+    for (OperationFuture<Long> future : counterFlushes) {
+      try {
+        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException | TimeoutException e) {
+        // already logged by the listener of the write
+      }
+    }
+  }
+  
+  /**
+   * Waits up to the operation timeout for the coalesced saves in flight and replies to
+   * their senders right away, the completions queued on the context would run once the
+   * clients are shut down
+   */
+  private void awaitSaveFlushes() {
+    long deadline = System.currentTimeMillis() + operationTimeout;
+    for (OperationFuture<?> future : saveFlushes.keySet()) {
+      try {
+        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException | TimeoutException e) {
+        // replied below
+      }
+      if (future.isDone()) {
+        completeSaves(future);
+      }
+    }
+    
+    for (OperationFuture<?> future : saveFlushes.keySet()) {
+      WriteCoalescer.Batch<Message<JsonObject>> batch = saveFlushes.remove(future);
+      if (batch != null) {
+        replyErrors(batch.getWriters(), "save not confirmed, module stopped", null);
+      }
+    }
+  }
+  
+  /**
+   * Creates the metrics, registered on JMX per action, and serves their
+   * snapshots on the given event bus address
+   */
+  private void startMetrics(String metricsAddress) {
+    String objectName = "org.vertx.mods:type=CouchbasePersistor,address=" + ObjectName.quote(address)
+      + ",instance=" + Integer.toHexString(System.identityHashCode(this));
+    metrics = new PersistorMetrics(objectName, logger, getOptionalLongConfig("metrics_window", PersistorMetrics.DEFAULT_WINDOW));
+    
+    // by default twice the longest operation timeout, the view one
+    final long requestTimeout = getOptionalLongConfig("metrics_request_timeout", Math.max(operationTimeout, viewTimeout) * 2L);
+    metricsExpiryTimer = vertx.setPeriodic(requestTimeout, new Handler<Long>() {
+      public void handle(Long timerId) {
+        int expired = metrics.expire(requestTimeout);
+        if (expired > 0) {
+          logger.warn(expired + " requests not replied after " + requestTimeout + "ms, recorded as timed out");
+        }
+      }
+    });
+    
+    eb.registerHandler(metricsAddress, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        sendOK(message, metrics.snapshot());
+      }
+    });
+  }
+  
+  @Override
+  protected void sendStatus(String status, Message<JsonObject> message, JsonObject json) {
+    super.sendStatus(status, message, json);
+    if (metrics != null) {
+      metrics.completed(message, true, false);
+    }
+    release(message);
+    completeViewQuery(message, json, null);
+  }
+  
+  @Override
+  protected void sendError(Message<JsonObject> message, String error, Exception e) {
+    super.sendError(message, error, e);
+    if (metrics != null) {
+      metrics.completed(message, false, isTimeout(e));
+    }
+    release(message);
+    completeViewQuery(message, null, error);
+  }
+  
+  /**
+   * Replies right away to a request rejected by the admission control, it isn't
+   * logged since it happens on every request while the cluster is saturated
+   */
+  private void sendOverloaded(Message<JsonObject> message) {
+    if (metrics != null) {
+      metrics.overloaded(message);
+      metrics.completed(message, false, false);
+    }
+    message.reply(new JsonObject()
+      .putString("status", "error")
+      .putString("message", "overloaded")
+      .putString("code", OVERLOADED));
+  }
+  
+  /**
+   * Frees the admission slot of a replied request, the next queued request
+   * of the same action takes it over
+   */
+  private void release(Message<JsonObject> message) {
+    if (admission == null) {
+      return;
+    }
+    
+    final Message<JsonObject> next = admission.release(message);
+    if (next != null) {
+      context.runOnContext(new Handler<Void>() {
+        public void handle(Void event) {
+          dispatch(next, next.body().getString("action"));
+        }
+      });
+    }
+  }
+  
+  /**
+   * Caches the reply of a cacheable find_by_view and replies it to the identical
+   * requests that waited for it, or the error whether it failed
+   */
+  private void completeViewQuery(Message<JsonObject> message, JsonObject reply, String error) {
+    if (viewCache == null) {
+      return;
+    }
+    
+    String key = viewCacheLeaders.remove(message);
+    if (key == null) {
+      return;
+    }
+    
+    for (Message<JsonObject> waiter : viewCache.complete(key, reply != null ? reply.copy() : null)) {
+      if (reply != null) {
+        sendOK(waiter, reply.copy());
+      }
+      else {
+        sendError(waiter, error);
+      }
+    }
+  }
+  
+  private static boolean isTimeout(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof TimeoutException) {
+        return true;
+      }
     }
+    return false;
   }
 
   @Override
@@ -84,7 +541,27 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
       sendError(message, "action must be specified");
       return;
     }
-
+    
+    if (metrics != null) {
+      metrics.started(message, ACTIONS.contains(action) ? action : "invalid");
+    }
+    
+    if (admission != null && ACTIONS.contains(action)) {
+      switch (admission.admit(action, message)) {
+        case QUEUED:
+          return;
+        case REJECTED:
+          sendOverloaded(message);
+          return;
+        default:
+          break;
+      }
+    }
+    
+    dispatch(message, action);
+  }
+  
+  private void dispatch(Message<JsonObject> message, String action) {
     try {
       switch (action) {
         case "insert":
@@ -99,6 +576,9 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
         case "delete":
           store(message, Store.DELETE);
           break;
+        case "bulk_store":
+          bulkStore(message);
+          break;
         case "find_by_id":
           findById(message);
           break;
@@ -120,6 +600,24 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
         case "touch":
           touch(message);
           break;
+        case "mutate":
+          mutate(message);
+          break;
+        case "bulk_touch":
+          bulkTouch(message);
+          break;
+        case "bulk_lock":
+          bulkLock(message);
+          break;
+        case "bulk_unlock":
+          bulkUnlock(message);
+          break;
+        case "delete_by_view":
+          sweepView(message, true);
+          break;
+        case "touch_by_view":
+          sweepView(message, false);
+          break;
         
         default:
           sendError(message, "Invalid action: " + action);
@@ -129,235 +627,1312 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
     }
   }
   
-  private void store(Message<JsonObject> message, Store store) throws InterruptedException, ExecutionException {
-    JsonObject doc = getMandatoryObject("document", message);
+  private void store(final Message<JsonObject> message, final Store store) {
+    final JsonObject doc = getMandatoryObject("document", message);
     
     if (doc == null) {
       sendError(message, "document must be specified");
       return;
     }
 
-    if (doc.getField("id") == null) {
-      doc.putString("id", UUID.randomUUID().toString());
-    }
-
     JsonObject json = message.body();
     
-    PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
-    ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
+    final PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
+    final ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
     int expiration = json.getInteger("expiration", 0);
     Long cas = json.getLong("cas");
-
-    OperationFuture<Boolean> opFuture = null;
-    OperationFuture<CASResponse> casFuture = null;
     
-    switch (store) {
-      case INSERT:
-        opFuture = client.add(doc.getString("id"), expiration, doc.toString(), persistTo, replicateTo);
-      break;
-      
-      case SAVE:
-        if (cas == null) {
-          opFuture = client.set(doc.getString("id"), expiration, doc.toString(), persistTo, replicateTo);
-        }
-        else {
-          casFuture = client.asyncCas(doc.getString("id"), cas, expiration, doc.toString(), persistTo, replicateTo);
-        }
-      break;
-      
-      case UPDATE:
-        if (cas == null) {
-          opFuture = client.replace(doc.getString("id"), expiration, doc.toString(), persistTo, replicateTo);
+    // with a durability address the reply doesn't wait for the durability requirements
+    final String durabilityAddress = json.getString("durability_address");
+    final boolean asyncDurability = durabilityAddress != null && (persistTo != PersistTo.ZERO || replicateTo != ReplicateTo.ZERO);
+    
+    // unconditional saves of documents with an id can be coalesced
+    if (saveCoalescer != null && store == Store.SAVE && cas == null && doc.getField("id") != null
+        && persistTo == PersistTo.ZERO && replicateTo == ReplicateTo.ZERO) {
+      saveCoalescer.add(doc.getString("id"), doc, expiration, message);
+      return;
+    }
+    
+    OperationFuture<?> storeFuture = storeAsync(doc, store, cas, expiration);
+    
+    whenComplete(message, storeFuture, new Completion<OperationFuture<?>>() {
+      public void handle(OperationFuture<?> future) throws Exception {
+        boolean stored = isStored(future);
+        refreshCache(store, doc, future, stored);
+        
+        if (!stored) {
+          sendError(message, future.getStatus().getMessage());
+          return;
         }
-        else {
-          casFuture = client.asyncCas(doc.getString("id"), cas, expiration, doc.toString(), persistTo, replicateTo);
+        
+        final JsonObject reply = new JsonObject();
+        reply.putString("id", future.getKey());
+        
+        if (asyncDurability) {
+          reply.putBoolean("durability_pending", true);
+          sendOK(message, reply);
+          observeDurability(durabilityAddress, store, future.getKey(), casOf(future), persistTo, replicateTo);
+          return;
         }
-      break;
-      
-      case DELETE:
-        opFuture = client.delete(doc.getString("id"), persistTo, replicateTo);
+        
+        whenDurable(future, store, persistTo, replicateTo, new Handler<String>() {
+          public void handle(String error) {
+            if (error == null) {
+              sendOK(message, reply);
+            }
+            else {
+              sendError(message, error);
+            }
+          }
+        });
+      }
+    });
+  }
+  
+  private void bulkStore(final Message<JsonObject> message) {
+    JsonObject json = message.body();
+    JsonArray documents = json.getArray("documents");
+    
+    if (documents == null) {
+      sendError(message, "documents must be specified");
+      return;
     }
     
-    boolean result = false;
-    String msg = null;
-    String key = null;
+    String operation = json.getString("operation");
+    final PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
+    final ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
+    int expiration = json.getInteger("expiration", 0);
     
-    if (opFuture != null) {
-      result = opFuture.get();
-      msg = opFuture.getStatus().getMessage();
-      key = opFuture.getKey();
-    }
-    else if(casFuture != null) {
-      result = casFuture.get() == CASResponse.OK;
-      msg = casFuture.getStatus().getMessage();
-      key = casFuture.getKey();
-    }
+    final JsonObject[] results = new JsonObject[documents.size()];
+    final AtomicInteger pending = new AtomicInteger(documents.size() + 1);
     
-    if(result) {
-      JsonObject reply = new JsonObject();
-      reply.putString("id", key);
-      sendOK(message, reply);
-    }
-    else {
-      sendError(message, msg);
+    // every operation is issued before waiting for any of them, so they are pipelined
+    for (int i = 0; i < results.length; i++) {
+      final int position = i;
+      Object item = documents.get(i);
+      
+      // an invalid entry is recorded as failed, the operations already issued are still replied
+      String invalid = invalidBulkEntry(item, operation);
+      if (invalid != null) {
+        results[position] = new JsonObject().putString("status", "error").putString("message", invalid);
+        completeBulkStore(message, results, pending);
+        continue;
+      }
+      
+      JsonObject entry = (JsonObject)item;
+      final JsonObject doc = entry.getObject("document");
+      final Store store = Store.of(entry.getString("operation", operation));
+      
+      OperationFuture<?> future;
+      try {
+        future = storeAsync(doc, store, entry.getLong("cas"), entry.getInteger("expiration", expiration));
+      } catch (Exception e) {
+        results[position] = new JsonObject().putString("status", "error").putString("message", e.getMessage());
+        completeBulkStore(message, results, pending);
+        continue;
+      }
+      
+      whenComplete(message, future, new Completion<OperationFuture<?>>() {
+        public void handle(OperationFuture<?> future) {
+          final JsonObject result = new JsonObject().putString("id", future.getKey());
+          boolean stored = false;
+          try {
+            stored = isStored(future);
+            refreshCache(store, doc, future, stored);
+            
+            if (!stored) {
+              result.putString("status", "error").putString("message", future.getStatus().getMessage());
+            }
+          } catch (Exception e) {
+            result.putString("status", "error").putString("message", e.getMessage());
+          }
+          
+          if (!stored) {
+            results[position] = result;
+            completeBulkStore(message, results, pending);
+            return;
+          }
+          
+          whenDurable(future, store, persistTo, replicateTo, new Handler<String>() {
+            public void handle(String error) {
+              if (error == null) {
+                result.putString("status", "ok");
+              }
+              else {
+                result.putString("status", "error").putString("message", error);
+              }
+              results[position] = result;
+              completeBulkStore(message, results, pending);
+            }
+          });
+        }
+      });
     }
+    
+    completeBulkStore(message, results, pending);
   }
   
-  private void findById(Message<JsonObject> message) {
-    String id = getMandatoryString("id", message);
-
-    if (id == null) {
-      sendError(message, "id must be specified");
-      return;
+  /**
+   * Returns why an entry of a bulk_store can't be stored, or null whether it's valid
+   */
+  private static String invalidBulkEntry(Object item, String operation) {
+    if (!(item instanceof JsonObject)) {
+      return "document and a valid operation must be specified";
     }
     
-    String mode = message.body().getString("mode", "standard");
-    int exp = message.body().getInteger("expiration", 0);
-        
-    CASValue<Object> object = null;
-    if (mode.equals("lock")) {
-      object = client.getAndLock(id, exp);
+    JsonObject entry = (JsonObject)item;
+    Object doc = entry.getField("document");
+    Object store = entry.getField("operation");
+    if (!(doc instanceof JsonObject) || !(store == null || store instanceof String)
+        || Store.of(store != null ? (String)store : operation) == null) {
+      return "document and a valid operation must be specified";
     }
-    else if (mode.equals("touch")) {
-      object = client.getAndTouch(id, exp);
+    
+    Object id = ((JsonObject)doc).getField("id");
+    if (id != null && !(id instanceof String)) {
+      return "id must be a string";
     }
-    else if (mode.equals("standard")) {
-      object = client.gets(id);
+    if (!(entry.getField("cas") == null || entry.getField("cas") instanceof Number)) {
+      return "cas must be a number";
     }
-     
-    if (object != null) {
-    	sendOK(message, new JsonObject((String)object.getValue()));
+    if (!(entry.getField("expiration") == null || entry.getField("expiration") instanceof Number)) {
+      return "expiration must be a number";
     }
-    else {
-    	sendError(message, "not found");
+    return null;
+  }
+  
+  /**
+   * Writes the latest version of a coalesced document and replies to every sender
+   * of the batch with the result of that single write
+   */
+  private void flushSaves(WriteCoalescer.Batch<Message<JsonObject>> batch) {
+    List<Message<JsonObject>> senders = batch.getWriters();
+    
+    OperationFuture<?> future;
+    try {
+      future = clientFor(batch.getId()).set(batch.getId(), batch.getExpiration(), batch.getDocument());
+    } catch (Exception e) {
+      replyErrors(senders, e.getMessage(), e);
+      return;
     }
+    saveFlushes.put(future, batch);
+    
+    whenComplete(senders.get(0), future, new Completion<OperationFuture<?>>() {
+      public void handle(OperationFuture<?> future) {
+        completeSaves(future);
+      }
+    });
   }
   
-  private void findByView(Message<JsonObject> message) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-    String designDoc = getMandatoryString("designDoc", message);
-    String viewName = getMandatoryString("viewName", message);
-    JsonObject query = getMandatoryObject("query", message);
-
-    if (designDoc == null || viewName == null || query == null) {
-      sendError(message, "designDoc and viewName and query must be specified");
+  /**
+   * Replies to the senders of a coalesced save with the result of its write, unless
+   * they were already replied on stop
+   */
+  private void completeSaves(OperationFuture<?> future) {
+    WriteCoalescer.Batch<Message<JsonObject>> batch = saveFlushes.remove(future);
+    if (batch == null) {
       return;
-    }	
+    }
     
-    final Query q = new Query();
-    for(Entry<String, Object> entry : query.toMap().entrySet()) {
-      String setterMethod = "set" + capitalize(entry.getKey());
-      Object value = entry.getValue();
+    List<Message<JsonObject>> senders = batch.getWriters();
+    try {
+      boolean stored = isStored(future);
+      refreshCache(Store.SAVE, batch.getDocument(), future, stored);
       
-      if(entry.getKey().equals("stale")) {
-        invokeMethod(q, setterMethod, Stale.valueOf((String)value));
+      if (stored) {
+        for (Message<JsonObject> message : senders) {
+          sendOK(message, new JsonObject().putString("id", future.getKey()));
+        }
       }
       else {
-        invokeMethod(q, setterMethod, value);
+        replyErrors(senders, future.getStatus().getMessage(), null);
       }
+    } catch (Exception e) {
+      replyErrors(senders, e.getMessage(), e);
     }
-    
-    final View view = client.getView(designDoc, viewName);
-    final ViewResponse response = client.query(view, q);
-    
-    final JsonArray result = new JsonArray();
-    for (final ViewRow row : response) {
-      CASValue<Object> object = client.gets(row.getId());
-      result.add(new JsonObject((String)object.getValue()));
+  }
+  
+  /**
+   * Replies the same error to several senders, the exception is logged just once
+   */
+  private void replyErrors(List<Message<JsonObject>> messages, String error, Exception e) {
+    for (int i = 0; i < messages.size(); i++) {
+      if (i == 0 && e != null) {
+        sendError(messages.get(i), error, e);
+      }
+      else {
+        sendError(messages.get(i), error);
+      }
     }
-    
-    sendOK(message, new JsonObject().putArray("result", result));
   }
   
-  private void findByIds(Message<JsonObject> message) {
-    JsonArray ids = message.body().getArray("ids");
-
-    if (ids == null) {
-      sendError(message, "ids must be specified");
+  private void completeBulkStore(Message<JsonObject> message, JsonObject[] results, AtomicInteger pending) {
+    if (pending.decrementAndGet() > 0) {
       return;
     }
     
-    @SuppressWarnings("unchecked")
-    Map<String, Object> object = client.getBulk(ids.toList());
-         
-    if (object != null) {
-      sendOK(message, new JsonObject(object));
-    }
-    else {
-      sendError(message, "not found");
+    JsonArray array = new JsonArray();
+    int failed = 0;
+    for (JsonObject result : results) {
+      if (!"ok".equals(result.getString("status"))) {
+        failed++;
+      }
+      array.add(result);
     }
+    
+    sendOK(message, new JsonObject().putArray("results", array).putNumber("failed", failed));
   }
   
-  private void cas(Message<JsonObject> message) throws InterruptedException, ExecutionException {
-    JsonObject json = message.body(); 
+  /**
+   * Issues the couchbase operation that stores the document, an id is generated
+   * whether the document doesn't have one. The document is encoded by the
+   * {@link DocumentTranscoder} according to the configured format.
+   */
+  private OperationFuture<?> storeAsync(JsonObject doc, Store store, Long cas, int expiration) {
+    if (doc.getField("id") == null) {
+      doc.putString("id", UUID.randomUUID().toString());
+    }
     
-    String key = getMandatoryString("key", message);   
-    Long cas = json.getLong("cas");
+    String id = doc.getString("id");
     
-    if (key == null || cas == null) {
-      sendError(message, "key and cas must be specified");
-      return;
+    // saves still buffered for the document go first so the writes keep their order
+    if (saveCoalescer != null) {
+      saveCoalescer.flush(id);
     }
     
-    PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
-    ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
-    int expiration = json.getInteger("expiration", 0);
-    Object value = json.getValue("value");
-    
-    OperationFuture<CASResponse> casFuture = client.asyncCas(key, cas, expiration, value, persistTo, replicateTo);
-    CASResponse response = casFuture.get();
+    return storeAsync(id, doc, store, cas, expiration);
+  }
+  
+  /**
+   * Sends to the given address whether a stored document met its durability requirements,
+   * once they're observed
+   */
+  private void observeDurability(final String durabilityAddress, Store store, String id, long cas,
+      PersistTo persistTo, ReplicateTo replicateTo) {
+    final JsonObject confirmation = new JsonObject()
+      .putString("id", id)
+      .putString("action", store.name().toLowerCase())
+      .putNumber("cas", cas);
     
-    if (response == CASResponse.OK) {
-      JsonObject reply = new JsonObject();
-      reply.putString("key", casFuture.getKey());
-      sendOK(message, reply);
-    }
-    else {
-      sendError(message, casFuture.getStatus().getMessage());
+    awaitDurability(id, cas, store == Store.DELETE, persistTo, replicateTo, new Handler<String>() {
+      public void handle(String error) {
+        if (error == null) {
+          confirmation.putString("status", "ok");
+        }
+        else {
+          confirmation.putString("status", "error").putString("message", error);
+        }
+        eb.send(durabilityAddress, confirmation);
+      }
+    });
+  }
+  
+  /**
+   * Continues once the completed store meets its durability requirements, right away
+   * whether it has none. The handler gets null, or why the requirements weren't met.
+   */
+  private void whenDurable(OperationFuture<?> future, Store store, PersistTo persistTo, ReplicateTo replicateTo, Handler<String> handler) {
+    if (persistTo == PersistTo.ZERO && replicateTo == ReplicateTo.ZERO) {
+      handler.handle(null);
+      return;
     }
+    awaitDurability(future.getKey(), casOf(future), store == Store.DELETE, persistTo, replicateTo, handler);
   }
   
-  private void counter(Message<JsonObject> message) throws InterruptedException, ExecutionException {
-    JsonObject json = message.body(); 
+  /**
+   * Observes a stored document until it meets its durability requirements. The handler is
+   * called back in the verticle context with null or the reason the requirements weren't met.
+   * It's always called, with a timeout error whether they aren't met within the observer
+   * timeout.
+   */
+  private void awaitDurability(String id, long cas, boolean deleted, PersistTo persistTo, ReplicateTo replicateTo,
+      Handler<String> handler) {
+    DurabilityWait wait = new DurabilityWait(id, cas, deleted, persistTo, replicateTo, handler);
+    durabilityWaits.add(wait);
+    wait.observe();
+  }
+  
+  /**
+   * Observation of a stored document. Each observe round is asynchronous and the next one is
+   * scheduled on a timer, so no thread waits on it, and the whole observation is given up on
+   * a timer too.
+   */
+  private class DurabilityWait implements PersistorClient.DurabilityCallback {
     
-    String key = getMandatoryString("key", message);
-    String operation = getMandatoryString("operation", message);
-    Long by = json.getLong("by");
+    private final String id;
+    private final long cas;
+    private final boolean deleted;
+    private final PersistTo persistTo;
+    private final ReplicateTo replicateTo;
+    private final Handler<String> handler;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final long timeoutTimer;
     
-    if (key == null || operation == null || by == null) {
-      sendError(message, "key and operation and by must be specified");
-      return;
+    DurabilityWait(String id, long cas, boolean deleted, PersistTo persistTo, ReplicateTo replicateTo, Handler<String> handler) {
+      this.id = id;
+      this.cas = cas;
+      this.deleted = deleted;
+      this.persistTo = persistTo;
+      this.replicateTo = replicateTo;
+      this.handler = handler;
+      
+      timeoutTimer = vertx.setTimer(observerTimeout, new Handler<Long>() {
+        public void handle(Long timerId) {
+          finish("durability not confirmed within " + observerTimeout + "ms");
+        }
+      });
     }
     
-    int expiration = json.getInteger("expiration", 0);
-    long def = json.getLong("default", 0);
-    OperationFuture<Long> opFuture = null;
-    
-    if (operation.equals("increment")) {
-      opFuture = client.asyncIncr(key, by, def, expiration);
+    void observe() {
+      try {
+        clientFor(id).asyncObserveDurability(id, cas, deleted, persistTo, replicateTo, this);
+      } catch (Exception e) {
+        finish(e.getMessage() != null ? e.getMessage() : e.toString());
+      }
     }
-    else if (operation.equals("decrement")){
-      opFuture = client.asyncDecr(key, by, def, expiration);
+    
+    public void observed(final boolean durable, final String error) {
+      context.runOnContext(new Handler<Void>() {
+        public void handle(Void event) {
+          if (done.get()) {
+            return;
+          }
+          
+          if (error != null || durable) {
+            finish(error);
+          }
+          else {
+            vertx.setTimer(clientFor(id).getObservePollInterval(), new Handler<Long>() {
+              public void handle(Long timerId) {
+                if (!done.get()) {
+                  observe();
+                }
+              }
+            });
+          }
+        }
+      });
     }
     
-    if (opFuture != null) {
-      Long counter = opFuture.get();
-      if (opFuture.getStatus().isSuccess()) {
-        JsonObject reply = new JsonObject();
-        reply.putString("key", opFuture.getKey());
-        reply.putNumber("counter", counter);
+    void finish(String error) {
+      if (done.compareAndSet(false, true)) {
+        durabilityWaits.remove(this);
+        vertx.cancelTimer(timeoutTimer);
+        handler.handle(error);
+      }
+    }
+  }
+  
+  /**
+   * Issues the store operation without durability requirements, they're observed apart
+   * once the operation completes. The durability overloads of the client wrap the operation
+   * in an observe future that may complete before the listener is added and then never
+   * notify it.
+   */
+  private OperationFuture<?> storeAsync(String id, JsonObject doc, Store store, Long cas, int expiration) {
+    switch (store) {
+      case INSERT:
+        return clientFor(id).add(id, expiration, doc);
+      
+      case SAVE:
+        if (cas == null) {
+          return clientFor(id).set(id, expiration, doc);
+        }
+        return clientFor(id).asyncCAS(id, cas, expiration, doc);
+      
+      case UPDATE:
+        if (cas == null) {
+          return clientFor(id).replace(id, expiration, doc);
+        }
+        return clientFor(id).asyncCAS(id, cas, expiration, doc);
+      
+      default:
+        return clientFor(id).delete(id);
+    }
+  }
+  
+  /**
+   * Keeps the document cache consistent with a completed store operation, the entry
+   * is refreshed with the stored document and its new cas or invalidated otherwise
+   */
+  private void refreshCache(Store store, JsonObject doc, OperationFuture<?> future, boolean stored) {
+    pendingReads.remove(future.getKey());
+    if (documentCache == null) {
+      return;
+    }
+    
+    if (stored && store != Store.DELETE) {
+      documentCache.put(future.getKey(), doc.toString(), casOf(future));
+    }
+    else {
+      documentCache.invalidate(future.getKey());
+    }
+  }
+  
+  /**
+   * Returns the cas of a completed mutation, 0 whether the operation doesn't provide it
+   */
+  private static long casOf(OperationFuture<?> future) {
+    try {
+      Long cas = future.getCas();
+      return cas != null ? cas : 0;
+    } catch (UnsupportedOperationException e) {
+      return 0;
+    }
+  }
+  
+  /**
+   * Checks the result of a completed store operation, which is a boolean
+   * for add/set/replace/delete and a cas response for cas operations
+   */
+  private static boolean isStored(OperationFuture<?> future) throws InterruptedException, ExecutionException {
+    Object result = future.get();
+    return Boolean.TRUE.equals(result) || result == CASResponse.OK;
+  }
+  
+  private void findById(final Message<JsonObject> message) {
+    final String id = getMandatoryString("id", message);
+
+    if (id == null) {
+      sendError(message, "id must be specified");
+      return;
+    }
+    
+    final String mode = message.body().getString("mode", "standard");
+    int exp = message.body().getInteger("expiration", 0);
+    final boolean cached = isCacheEnabled(message);
+    final Projection projection;
+    try {
+      projection = Projection.of(message.body().getField("fields"));
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+    
+    // lock and touch modes always hit the server
+    if (cached && mode.equals("standard")) {
+      DocumentCache.Entry entry = documentCache.get(id);
+      if (entry != null) {
+        sendOK(message, toDocument(entry.getValue(), projection));
+        return;
+      }
+    }
+    
+    // writes completed while the read is executed win over its result
+    final long readSequence = documentCache != null ? documentCache.sequence() : 0;
+    
+    if (hedgedReadDelay > 0 && mode.equals("standard") && message.body().getBoolean("hedge", true)) {
+      hedgedGet(message, id, cached, projection, readSequence);
+      return;
+    }
+        
+    // locking or touching changes the document, saves still buffered for it go first
+    if (saveCoalescer != null && !mode.equals("standard")) {
+      saveCoalescer.flush(id);
+    }
+    
+    OperationFuture<CASValue<Object>> future = null;
+    if (mode.equals("lock")) {
+      future = clientFor(id).asyncGetAndLock(id, exp);
+    }
+    else if (mode.equals("touch")) {
+      future = clientFor(id).asyncGetAndTouch(id, exp);
+    }
+    else if (mode.equals("standard")) {
+      future = sharedGets(id);
+    }
+    
+    if (future == null) {
+      sendError(message, "invalid mode should be standard, lock or touch");
+      return;
+    }
+    
+    whenComplete(message, future, new Completion<OperationFuture<CASValue<Object>>>() {
+      public void handle(OperationFuture<CASValue<Object>> future) throws Exception {
+        CASValue<Object> object = future.get();
+        
+        if (documentCache != null) {
+          // locking or touching the document changes its cas
+          if (object != null && cached && mode.equals("standard")) {
+            documentCache.putIfNewer(id, toJsonText(object.getValue()), object.getCas(), readSequence);
+          }
+          else if (!mode.equals("standard")) {
+            documentCache.invalidate(id);
+          }
+        }
+        
+        if (object != null) {
+          sendOK(message, toDocument(object.getValue(), projection));
+        }
+        else {
+          sendError(message, "not found");
+        }
+      }
+    });
+  }
+  
+  /**
+   * Reads the document from its active node and, whether it doesn't answer within
+   * the hedged read delay, from the replicas as well. The first document found is
+   * replied, flagged with <code>replica</code> when it may be stale. A not found
+   * from the active node is authoritative, while errors are replied just once
+   * every read failed, the first one whether no read found the document.
+   */
+  private void hedgedGet(final Message<JsonObject> message, final String id, final boolean cached, final Projection projection,
+      final long readSequence) {
+    final CouchbaseClient readClient = clientFor(id);
+    final OperationFuture<CASValue<Object>> primary = sharedGets(id);
+    final AtomicBoolean replied = new AtomicBoolean();
+    final AtomicInteger outstanding = new AtomicInteger(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final long issued = System.nanoTime();
+    
+    // a read that didn't find the document, along with its failure if any
+    final Handler<Exception> missed = new Handler<Exception>() {
+      public void handle(Exception e) {
+        if (e != null) {
+          failure.compareAndSet(null, e);
+        }
+        if (outstanding.decrementAndGet() == 0 && replied.compareAndSet(false, true)) {
+          sendNotFound(message, failure.get());
+        }
+      }
+    };
+    
+    final long timerId = vertx.setTimer(hedgeDelay(), new Handler<Long>() {
+      public void handle(Long timerId) {
+        if (primary.isDone() || replied.get()) {
+          return;
+        }
+        
+        ReplicaGetFuture<CASValue<Object>> replica;
+        try {
+          replica = readClient.asyncGetsFromReplica(id);
+        } catch (Exception e) {
+          // no replica to read from, the active node still answers
+          logger.debug("Replica read of " + id + " not issued", e);
+          return;
+        }
+        
+        outstanding.incrementAndGet();
+        final AtomicBoolean replicaDone = new AtomicBoolean();
+        // the replica read only completes when it finds the document or not, any other error leaves it pending
+        final long replicaTimerId = vertx.setTimer(operationTimeout, new Handler<Long>() {
+          public void handle(Long replicaTimerId) {
+            if (replicaDone.compareAndSet(false, true)) {
+              missed.handle(new TimeoutException("replica read of " + id + " timed out"));
+            }
+          }
+        });
+        
+        whenComplete(message, replica, new Completion<ReplicaGetFuture<CASValue<Object>>>() {
+          public void handle(ReplicaGetFuture<CASValue<Object>> future) {
+            if (!replicaDone.compareAndSet(false, true)) {
+              return;
+            }
+            vertx.cancelTimer(replicaTimerId);
+            
+            CASValue<Object> object;
+            try {
+              object = future.get();
+            } catch (Exception e) {
+              missed.handle(e);
+              return;
+            }
+            
+            if (object == null) {
+              missed.handle(null);
+            }
+            else if (replied.compareAndSet(false, true)) {
+              sendOK(message, toDocument(object.getValue(), projection).putBoolean("replica", true));
+            }
+          }
+        });
+      }
+    });
+    
+    whenComplete(message, primary, new Completion<OperationFuture<CASValue<Object>>>() {
+      public void handle(OperationFuture<CASValue<Object>> future) {
+        vertx.cancelTimer(timerId);
+        readLatency.record((System.nanoTime() - issued) / 1000);
+        
+        CASValue<Object> object;
+        try {
+          object = future.get();
+        } catch (Exception e) {
+          missed.handle(e);
+          return;
+        }
+        
+        if (!replied.compareAndSet(false, true)) {
+          return;
+        }
+        
+        if (object != null) {
+          if (cached) {
+            documentCache.putIfNewer(id, toJsonText(object.getValue()), object.getCas(), readSequence);
+          }
+          sendOK(message, toDocument(object.getValue(), projection));
+        }
+        else {
+          sendError(message, "not found");
+        }
+      }
+    });
+  }
+  
+  /**
+   * Replies the failure of a read, or not found whether the reads completed without it
+   */
+  private void sendNotFound(Message<JsonObject> message, Exception failure) {
+    if (failure != null) {
+      sendError(message, failure.getMessage(), failure);
+    }
+    else {
+      sendError(message, "not found");
+    }
+  }
+  
+  /**
+   * Reads the document with its cas, joining the read of the same document already
+   * being executed whether there is one so a burst of reads of a hot document ends
+   * up as a single operation. Every reader handles the shared result on its own.
+   */
+  private OperationFuture<CASValue<Object>> sharedGets(final String id) {
+    if (!coalesceReads) {
+      return clientFor(id).asyncGets(id);
+    }
+    
+    final SharedRead read = new SharedRead();
+    // the read is registered before it's issued, readers joining it wait until it is
+    synchronized (read) {
+      SharedRead pending;
+      while ((pending = pendingReads.putIfAbsent(id, read)) != null) {
+        OperationFuture<CASValue<Object>> future = pending.future();
+        if (future != null && !future.isDone()) {
+          if (metrics != null) {
+            metrics.coalescedRead();
+          }
+          return future;
+        }
+        pendingReads.remove(id, pending);
+      }
+      
+      read.future = clientFor(id).asyncGets(id);
+    }
+    
+    read.future.addListener(new OperationCompletionListener() {
+      public void onComplete(OperationFuture<?> f) {
+        pendingReads.remove(id, read);
+      }
+    });
+    return read.future;
+  }
+  
+  /**
+   * Standard read of a document shared by the concurrent readers
+   */
+  protected static class SharedRead {
+    
+    private OperationFuture<CASValue<Object>> future;
+    
+    /**
+     * The issued read, null whether issuing it failed
+     */
+    synchronized OperationFuture<CASValue<Object>> future() {
+      return future;
+    }
+  }
+  
+  /**
+   * The learned percentile of the read latency, or the fixed delay until enough reads were seen
+   */
+  private long hedgeDelay() {
+    if (hedgedReadPercentile > 0 && readLatency.getCount() >= 100) {
+      return Math.max(1, readLatency.getPercentile(hedgedReadPercentile) / 1000);
+    }
+    return hedgedReadDelay;
+  }
+  
+  private void findByView(final Message<JsonObject> message) {
+    final String designDoc = getMandatoryString("designDoc", message);
+    final String viewName = getMandatoryString("viewName", message);
+    JsonObject query = getMandatoryObject("query", message);
+
+    if (designDoc == null || viewName == null || query == null) {
+      sendError(message, "designDoc and viewName and query must be specified");
+      return;
+    }	
+    
+    final String resultMode = message.body().getString("result_mode", "docs");
+    
+    if (!resultMode.equals("docs") && !resultMode.equals("rows") && !resultMode.equals("reduce")) {
+      sendError(message, "invalid result_mode should be docs, rows or reduce");
+      return;
+    }
+    
+    // the fields are applied once the documents are fetched, they're rejected before querying
+    try {
+      Projection.of(message.body().getField("fields"));
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+    
+    final Query q = ViewQueryBuilder.build(query);
+    
+    // pages of the reduced rows aren't tied to document ids, so they can't be resumed by a cursor
+    String cursor = message.body().getString("cursor");
+    if (cursor != null) {
+      if (resultMode.equals("reduce") || query.containsField("key") || query.containsField("keys")) {
+        sendError(message, "cursor can't be used with the reduce result_mode nor key or keys queries");
+        return;
+      }
+      
+      ViewCursor position;
+      try {
+        position = ViewCursor.decode(cursor);
+      } catch (IllegalArgumentException e) {
+        sendError(message, e.getMessage());
+        return;
+      }
+      position.apply(q);
+    }
+    final int pageSize = resultMode.equals("reduce") ? 0 : query.getInteger("limit", 0);
+    
+    if (isViewCacheEnabled(message, query)) {
+      String key = ViewResultCache.key(designDoc, viewName, resultMode, query, message.body().getArray("fields"), cursor);
+      
+      JsonObject cached = viewCache.get(key);
+      if (cached != null) {
+        sendOK(message, cached.copy());
+        return;
+      }
+      // an identical query being executed replies this one too
+      if (!viewCache.join(key, message)) {
+        return;
+      }
+      viewCacheLeaders.put(message, key);
+    }
+    
+    // unless explicitly requested, just reduce views are reduced so rows keep their document ids
+    if (!query.containsField("reduce")) {
+      q.setReduce(resultMode.equals("reduce"));
+    }
+    
+    resolveView(message, designDoc, viewName, new Handler<View>() {
+      public void handle(View view) {
+        queryView(message, designDoc, viewName, view, q, resultMode, pageSize);
+      }
+    });
+  }
+  
+  /**
+   * Hands the view to the handler, its metadata is fetched just once so afterwards each query
+   * costs a single round trip. A missing view is replied as an error and isn't cached, so it's
+   * looked up again once it's created.
+   */
+  private void resolveView(final Message<JsonObject> message, final String designDoc, final String viewName,
+      final Handler<View> handler) {
+    View view = resolvedViews.get(viewKey(designDoc, viewName));
+    if (view != null) {
+      handler.handle(view);
+      return;
+    }
+    
+    whenComplete(message, nextClient().asyncGetView(designDoc, viewName), new Completion<HttpFuture<View>>() {
+      public void handle(HttpFuture<View> future) throws Exception {
+        View view = future.get();
+        if (view == null) {
+          sendError(message, "view " + designDoc + "/" + viewName + " does not exist");
+          return;
+        }
+        
+        resolvedViews.put(viewKey(designDoc, viewName), view);
+        handler.handle(view);
+      }
+    });
+  }
+  
+  /**
+   * Queries the view and replies its rows or documents, along with the cursor of the
+   * next page whether the page is full
+   */
+  private void queryView(final Message<JsonObject> message, final String designDoc, final String viewName, View view, Query q,
+      final String resultMode, final int pageSize) {
+    whenComplete(message, nextClient().asyncQueryRaw(view, q), new Completion<HttpFuture<ViewResponse>>() {
+      public void handle(HttpFuture<ViewResponse> future) throws Exception {
+        ViewResponse response;
+        try {
+          response = future.get();
+        } catch (ExecutionException e) {
+          // the view could have been removed or changed, so it is resolved again next time
+          resolvedViews.remove(viewKey(designDoc, viewName));
+          throw e;
+        }
+        
+        if (metrics != null) {
+          metrics.viewRows(response.size());
+        }
+        
+        String cursor = pageSize > 0 && response.size() >= pageSize ? nextCursor(response) : null;
+        
+        if (resultMode.equals("docs")) {
+          fetchViewDocuments(message, response, cursor);
+        }
+        else {
+          replyViewRows(message, response, resultMode.equals("rows"), cursor);
+        }
+      }
+    });
+  }
+  
+  /**
+   * Cursor of the last row of the response
+   */
+  private static String nextCursor(ViewResponse response) {
+    ViewRow last = null;
+    for (ViewRow row : response) {
+      last = row;
+    }
+    return ViewCursor.encode(last);
+  }
+  
+  private void replyViewRows(Message<JsonObject> message, ViewResponse response, boolean includeId, String cursor) {
+    JsonArray result = new JsonArray();
+    
+    for (ViewRow row : response) {
+      JsonObject json = new JsonObject();
+      if (includeId) {
+        json.putString("id", row.getId());
+      }
+      json.putValue("key", decodeViewValue(row.getKey()));
+      json.putValue("value", decodeViewValue(row.getValue()));
+      result.add(json);
+    }
+    
+    JsonObject reply = new JsonObject().putArray("result", result);
+    if (cursor != null) {
+      reply.putString("cursor", cursor);
+    }
+    sendOK(message, reply);
+  }
+  
+  /**
+   * Decodes the json text of a view key or value, as read by {@link PersistorClient#asyncQueryRaw},
+   * text that isn't json is returned as it is
+   */
+  @SuppressWarnings("unchecked")
+  private static Object decodeViewValue(String value) {
+    if (value == null) {
+      return null;
+    }
+    
+    Object decoded;
+    try {
+      decoded = Json.decodeValue(value, Object.class);
+    } catch (DecodeException e) {
+      return value;
+    }
+    
+    if (decoded instanceof Map) {
+      return new JsonObject((Map<String, Object>)decoded);
+    }
+    if (decoded instanceof List) {
+      return new JsonArray((List<Object>)decoded);
+    }
+    return decoded;
+  }
+  
+  private void fetchViewDocuments(final Message<JsonObject> message, ViewResponse response, final String cursor) {
+    final List<String> rowIds = new ArrayList<String>(response.size());
+    for (ViewRow row : response) {
+      rowIds.add(row.getId());
+    }
+    // validated along with the request
+    final Projection projection = Projection.of(message.body().getField("fields"));
+    
+    // a document can emit several rows so it is fetched just once
+    fetchDocuments(message, new LinkedHashSet<String>(rowIds), false, viewFetchChunkSize, new Handler<Map<String, Object>>() {
+      public void handle(Map<String, Object> documents) {
+        replyViewDocuments(message, rowIds, documents, projection, cursor);
+      }
+    });
+  }
+  
+  private void replyViewDocuments(Message<JsonObject> message, List<String> rowIds, Map<String, Object> documents, Projection projection,
+      String cursor) {
+    JsonArray result = new JsonArray();
+    JsonArray missing = new JsonArray();
+    
+    // keep the view order, documents deleted after the query was executed are reported as missing
+    for (String id : rowIds) {
+      Object document = documents.get(id);
+      if (document != null) {
+        result.add(toDocument(document, projection));
+      }
+      else {
+        missing.add(id);
+      }
+    }
+    
+    JsonObject reply = new JsonObject().putArray("result", result);
+    if (missing.size() > 0) {
+      reply.putArray("missing", missing);
+    }
+    if (cursor != null) {
+      reply.putString("cursor", cursor);
+    }
+    sendOK(message, reply);
+  }
+  
+  private void findByIds(final Message<JsonObject> message) {
+    JsonObject json = message.body();
+    Object ids = json.getField("ids");
+
+    if (ids == null) {
+      sendError(message, "ids must be specified");
+      return;
+    }
+    if (!(ids instanceof JsonArray)) {
+      sendError(message, "ids must be an array of strings");
+      return;
+    }
+    
+    String resultFormat = json.getString("result_format", "map");
+    
+    if (!resultFormat.equals("map") && !resultFormat.equals("list")) {
+      sendError(message, "invalid result_format should be map or list");
+      return;
+    }
+    
+    final List<String> idList = new ArrayList<String>(((JsonArray)ids).size());
+    for (Object id : (JsonArray)ids) {
+      if (!(id instanceof String)) {
+        sendError(message, "ids must be an array of strings");
+        return;
+      }
+      idList.add((String)id);
+    }
+    
+    boolean cached = isCacheEnabled(message);
+    int chunkSize = Math.max(1, json.getInteger("chunk_size", idsFetchChunkSize));
+    final Projection projection;
+    try {
+      projection = Projection.of(json.getField("fields"));
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+    
+    if (json.getBoolean("stream", false)) {
+      streamDocuments(message, idList, 0, cached, chunkSize, projection);
+      return;
+    }
+    
+    final boolean list = resultFormat.equals("list");
+    final Set<String> uniqueIds = new LinkedHashSet<String>(idList);
+    
+    fetchDocuments(message, uniqueIds, cached, chunkSize, new Handler<Map<String, Object>>() {
+      public void handle(Map<String, Object> documents) {
+        if (list) {
+          sendOK(message, documentList(idList, documents, projection));
+        }
+        else {
+          sendOK(message, documentMap(uniqueIds, documents, projection));
+        }
+      }
+    });
+  }
+  
+  /**
+   * Replies the documents of the ids one chunk at a time, the chunk of the next ids is
+   * fetched once the sender replies to the previous one, so just a chunk is held in
+   * memory. Every chunk but the last one is replied with status <code>more</code>.
+   */
+  private void streamDocuments(final Message<JsonObject> message, final List<String> ids, int from, final boolean cached, final int chunkSize,
+      final Projection projection) {
+    final int to = Math.min(from + chunkSize, ids.size());
+    final List<String> chunk = ids.subList(from, to);
+    
+    fetchDocuments(message, new LinkedHashSet<String>(chunk), cached, chunkSize, new Handler<Map<String, Object>>() {
+      public void handle(Map<String, Object> documents) {
+        JsonObject reply = documentList(chunk, documents, projection);
+        
+        if (to == ids.size()) {
+          sendOK(message, reply);
+          return;
+        }
+        
+        sendMore(message, reply, new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> next) {
+            streamDocuments(next, ids, to, cached, chunkSize, projection);
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Replies a chunk of a streamed result, the handler gets the sender's request for the next one.
+   * Senders that don't ask for it within the stream timeout abandon the stream.
+   */
+  private void sendMore(Message<JsonObject> message, JsonObject json, final Handler<Message<JsonObject>> next) {
+    json.putString("status", "more");
+    message.replyWithTimeout(json, streamTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+      public void handle(AsyncResult<Message<JsonObject>> result) {
+        if (result.succeeded()) {
+          next.handle(result.result());
+        }
+      }
+    });
+    
+    // the request is done as far as metrics and admission are concerned
+    if (metrics != null) {
+      metrics.completed(message, true, false);
+    }
+    release(message);
+  }
+  
+  /**
+   * Lists the found documents in the order of the ids and the ones not found apart
+   */
+  private static JsonObject documentList(List<String> ids, Map<String, Object> documents, Projection projection) {
+    JsonArray result = new JsonArray();
+    JsonArray missing = new JsonArray();
+    
+    for (String id : ids) {
+      Object document = documents.get(id);
+      if (document != null) {
+        result.add(toDocument(document, projection));
+      }
+      else {
+        missing.add(id);
+      }
+    }
+    
+    return new JsonObject().putArray("result", result).putArray("missing", missing);
+  }
+  
+  /**
+   * Maps the found documents by id and lists the ones not found apart
+   */
+  private static JsonObject documentMap(Set<String> ids, Map<String, Object> documents, Projection projection) {
+    JsonObject result = new JsonObject();
+    JsonArray missing = new JsonArray();
+    
+    for (String id : ids) {
+      Object document = documents.get(id);
+      if (document != null) {
+        result.putObject(id, toDocument(document, projection));
+      }
+      else {
+        missing.add(id);
+      }
+    }
+    
+    return new JsonObject().putObject("result", result).putArray("missing", missing);
+  }
+  
+  /**
+   * Fetches the documents of the given ids, cached ones are taken from the document cache
+   * and the rest are requested in chunks of bulk gets, all of them issued at once so they
+   * are pipelined. The ids are grouped by the client of their key, so the reads come after
+   * the writes of the same documents. The handler gets the found documents by id once every
+   * chunk is done.
+   */
+  private void fetchDocuments(final Message<JsonObject> message, Collection<String> ids, final boolean cached, int chunkSize,
+      final Handler<Map<String, Object>> handler) {
+    final Map<String, Object> documents = new ConcurrentHashMap<String, Object>(ids.size());
+    Map<PersistorClient, List<String>> misses = new LinkedHashMap<PersistorClient, List<String>>();
+    
+    for (String id : ids) {
+      DocumentCache.Entry entry = cached ? documentCache.get(id) : null;
+      if (entry != null) {
+        documents.put(id, entry.getValue());
+      }
+      else {
+        PersistorClient readClient = clientFor(id);
+        List<String> clientMisses = misses.get(readClient);
+        if (clientMisses == null) {
+          clientMisses = new ArrayList<String>();
+          misses.put(readClient, clientMisses);
+        }
+        clientMisses.add(id);
+      }
+    }
+    
+    if (misses.isEmpty()) {
+      handler.handle(documents);
+      return;
+    }
+    
+    int chunks = 0;
+    for (List<String> clientMisses : misses.values()) {
+      chunks += (clientMisses.size() + chunkSize - 1) / chunkSize;
+    }
+    final AtomicInteger pending = new AtomicInteger(chunks);
+    final long readSequence = cached ? documentCache.sequence() : 0;
+    
+    for (Entry<PersistorClient, List<String>> clientMisses : misses.entrySet()) {
+      List<String> keys = clientMisses.getValue();
+      for (int i = 0; i < keys.size(); i += chunkSize) {
+        issueBulkGet(message, clientMisses.getKey(), keys.subList(i, Math.min(i + chunkSize, keys.size())), documents, cached,
+          readSequence, pending, handler);
+      }
+    }
+  }
+  
+  /**
+   * Issues the bulk get of a chunk of ids, the handler gets the found documents once the
+   * last pending chunk is done
+   */
+  private void issueBulkGet(Message<JsonObject> message, PersistorClient readClient, List<String> chunk,
+      final Map<String, Object> documents, final boolean cached, final long readSequence, final AtomicInteger pending,
+      final Handler<Map<String, Object>> handler) {
+    whenComplete(message, readClient.asyncGetBulk(chunk), new Completion<BulkFuture<Map<String, Object>>>() {
+      public void handle(BulkFuture<Map<String, Object>> future) throws Exception {
+        for (Entry<String, Object> entry : future.get().entrySet()) {
+          documents.put(entry.getKey(), entry.getValue());
+          // bulk gets don't return the cas
+          if (cached) {
+            documentCache.putIfNewer(entry.getKey(), toJsonText(entry.getValue()), DocumentCache.UNKNOWN_CAS, readSequence);
+          }
+        }
+        
+        if (pending.decrementAndGet() == 0) {
+          handler.handle(documents);
+        }
+      }
+    });
+  }
+  
+  private void cas(final Message<JsonObject> message) {
+    JsonObject json = message.body(); 
+    
+    String key = getMandatoryString("key", message);   
+    Long cas = json.getLong("cas");
+    
+    if (key == null || cas == null) {
+      sendError(message, "key and cas must be specified");
+      return;
+    }
+    
+    final PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
+    final ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
+    int expiration = json.getInteger("expiration", 0);
+    Object value = json.getValue("value");
+    
+    if (saveCoalescer != null) {
+      saveCoalescer.flush(key);
+    }
+    
+    // the durability requirements are observed once the operation completes, see storeAsync
+    OperationFuture<CASResponse> casFuture = clientFor(key).asyncCAS(key, cas, expiration, value);
+    
+    whenComplete(message, casFuture, new Completion<OperationFuture<CASResponse>>() {
+      public void handle(final OperationFuture<CASResponse> casFuture) throws Exception {
+        CASResponse response = casFuture.get();
+        invalidateCache(casFuture.getKey());
         
-        sendOK(message, reply);
-      }
-      else {
-        sendError(message, opFuture.getStatus().getMessage());
+        if (response != CASResponse.OK) {
+          sendError(message, casFuture.getStatus().getMessage());
+          return;
+        }
+        
+        whenDurable(casFuture, Store.SAVE, persistTo, replicateTo, new Handler<String>() {
+          public void handle(String error) {
+            if (error == null) {
+              JsonObject reply = new JsonObject();
+              reply.putString("key", casFuture.getKey());
+              sendOK(message, reply);
+            }
+            else {
+              sendError(message, error);
+            }
+          }
+        });
       }
+    });
+  }
+  
+  private void counter(final Message<JsonObject> message) {
+    JsonObject json = message.body(); 
+    
+    String key = getMandatoryString("key", message);
+    String operation = getMandatoryString("operation", message);
+    Long by = json.getLong("by");
+    
+    if (key == null || operation == null || by == null) {
+      sendError(message, "key and operation and by must be specified");
+      return;
+    }
+    
+    int expiration = json.getInteger("expiration", 0);
+    long def = json.getLong("default", 0);
+    
+    if (json.getBoolean("aggregate", false)) {
+      aggregateCounter(message, key, operation, by, def, expiration);
+      return;
+    }
+    
+    OperationFuture<Long> opFuture = null;
+    
+    if (operation.equals("increment")) {
+      opFuture = clientFor(key).asyncIncr(key, by, def, expiration);
+    }
+    else if (operation.equals("decrement")){
+      opFuture = clientFor(key).asyncDecr(key, by, def, expiration);
+    }
+    
+    if (opFuture != null) {
+      whenComplete(message, opFuture, new Completion<OperationFuture<Long>>() {
+        public void handle(OperationFuture<Long> opFuture) throws Exception {
+          Long counter = opFuture.get();
+          if (opFuture.getStatus().isSuccess()) {
+            JsonObject reply = new JsonObject();
+            reply.putString("key", opFuture.getKey());
+            reply.putNumber("counter", counter);
+            
+            sendOK(message, reply);
+          }
+          else {
+            sendError(message, opFuture.getStatus().getMessage());
+          }
+        }
+      });
     }
     else {
       sendError(message, "invalid operation should be increment or decrement");
     }
   }
   
-  private void unlock(Message<JsonObject> message) throws InterruptedException, ExecutionException {
+  /**
+   * Adds the delta to the counter aggregator and replies right away, without the counter value
+   */
+  private void aggregateCounter(Message<JsonObject> message, String key, String operation, long by, long def, int expiration) {
+    if (counterAggregator == null) {
+      sendError(message, "counter aggregation is disabled");
+      return;
+    }
+    
+    long delta;
+    if (operation.equals("increment")) {
+      delta = by;
+    }
+    else if (operation.equals("decrement")) {
+      delta = -by;
+    }
+    else {
+      sendError(message, "invalid operation should be increment or decrement");
+      return;
+    }
+    
+    counterAggregator.add(key, delta, def, expiration);
+    sendOK(message, new JsonObject().putString("key", key).putBoolean("aggregated", true));
+  }
+  
+  private void unlock(final Message<JsonObject> message) {
     JsonObject json = message.body(); 
     
     String key = getMandatoryString("key", message);   
@@ -367,21 +1942,31 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
       sendError(message, "key and cas must be specified");
       return;
     }
-        
-    OperationFuture<Boolean> unlockFuture = client.asyncUnlock(key, cas);
-    boolean response = unlockFuture.get();
     
-    if (response) {
-      JsonObject reply = new JsonObject();
-      reply.putString("key", unlockFuture.getKey());
-      sendOK(message, reply);
-    }
-    else {
-      sendError(message, unlockFuture.getStatus().getMessage());
+    if (saveCoalescer != null) {
+      saveCoalescer.flush(key);
     }
+        
+    OperationFuture<Boolean> unlockFuture = clientFor(key).asyncUnlock(key, cas);
+    
+    whenComplete(message, unlockFuture, new Completion<OperationFuture<Boolean>>() {
+      public void handle(OperationFuture<Boolean> unlockFuture) throws Exception {
+        boolean response = unlockFuture.get();
+        invalidateCache(unlockFuture.getKey());
+        
+        if (response) {
+          JsonObject reply = new JsonObject();
+          reply.putString("key", unlockFuture.getKey());
+          sendOK(message, reply);
+        }
+        else {
+          sendError(message, unlockFuture.getStatus().getMessage());
+        }
+      }
+    });
   }
   
-  private void touch(Message<JsonObject> message) throws InterruptedException, ExecutionException {
+  private void touch(final Message<JsonObject> message) {
     JsonObject json = message.body(); 
     
     String key = getMandatoryString("key", message);   
@@ -391,24 +1976,724 @@ public class CouchbasePersistor extends CouchbaseGenerator implements Handler<Me
       sendError(message, "key must be specified");
       return;
     }
+    
+    if (saveCoalescer != null) {
+      saveCoalescer.flush(key);
+    }
+        
+    OperationFuture<Boolean> touchFuture = clientFor(key).touch(key, expiration);
+    
+    whenComplete(message, touchFuture, new Completion<OperationFuture<Boolean>>() {
+      public void handle(OperationFuture<Boolean> touchFuture) throws Exception {
+        boolean response = touchFuture.get();
+        invalidateCache(touchFuture.getKey());
+        
+        if (response) {
+          JsonObject reply = new JsonObject();
+          reply.putString("key", touchFuture.getKey());
+          sendOK(message, reply);
+        }
+        else {
+          sendError(message, touchFuture.getStatus().getMessage());
+        }
+      }
+    });
+  }
+  
+  private void bulkTouch(Message<JsonObject> message) {
+    final int expiration = message.body().getInteger("expiration", 0);
+    
+    bulkKeys(message, false, new KeyOperation<OperationFuture<Boolean>>() {
+      public OperationFuture<Boolean> issue(String key, Long cas) {
+        return clientFor(key).touch(key, expiration);
+      }
+      
+      public void complete(OperationFuture<Boolean> future, JsonObject result) throws Exception {
+        if (!future.get()) {
+          result.putString("status", "error").putString("message", future.getStatus().getMessage());
+        }
+      }
+    });
+  }
+  
+  private void bulkLock(Message<JsonObject> message) {
+    final int expiration = message.body().getInteger("expiration", 0);
+    final Projection projection;
+    try {
+      projection = Projection.of(message.body().getField("fields"));
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+    
+    bulkKeys(message, false, new KeyOperation<OperationFuture<CASValue<Object>>>() {
+      public OperationFuture<CASValue<Object>> issue(String key, Long cas) {
+        return clientFor(key).asyncGetAndLock(key, expiration);
+      }
+      
+      public void complete(OperationFuture<CASValue<Object>> future, JsonObject result) throws Exception {
+        CASValue<Object> object = future.get();
+        // a missing key may come back as a value without document
+        if (object != null && object.getValue() != null) {
+          result.putNumber("cas", object.getCas()).putObject("document", toDocument(object.getValue(), projection));
+        }
+        else {
+          String error = future.getStatus().isSuccess() ? "not found" : future.getStatus().getMessage();
+          result.putString("status", "error").putString("message", error);
+        }
+      }
+    });
+  }
+  
+  private void bulkUnlock(Message<JsonObject> message) {
+    bulkKeys(message, true, new KeyOperation<OperationFuture<Boolean>>() {
+      public OperationFuture<Boolean> issue(String key, Long cas) {
+        return clientFor(key).asyncUnlock(key, cas);
+      }
+      
+      public void complete(OperationFuture<Boolean> future, JsonObject result) throws Exception {
+        if (!future.get()) {
+          result.putString("status", "error").putString("message", future.getStatus().getMessage());
+        }
+      }
+    });
+  }
+  
+  /**
+   * Issues the operation for every key of the request at once and replies a single
+   * map with the result of each key when all of them complete. Keys are given as an
+   * array of strings, or of <code>{"key", "cas"}</code> objects when the cas is needed.
+   */
+  private <F extends OperationFuture<?>> void bulkKeys(final Message<JsonObject> message, boolean withCas, final KeyOperation<F> operation) {
+    JsonArray keys = message.body().getArray("keys");
+    
+    if (keys == null) {
+      sendError(message, "keys must be specified");
+      return;
+    }
+    
+    // duplicated keys are handled once
+    final Map<String, Long> casByKey = new LinkedHashMap<String, Long>();
+    for (Object item : keys) {
+      JsonObject entry = item instanceof JsonObject ? (JsonObject)item : null;
+      String key = entry != null ? entry.getString("key") : item instanceof String ? (String)item : null;
+      Long cas = entry != null ? entry.getLong("cas") : null;
+      
+      if (key == null || (withCas && cas == null)) {
+        sendError(message, withCas ? "keys must be objects with key and cas" : "keys must be strings");
+        return;
+      }
+      casByKey.put(key, cas);
+    }
+    
+    final Map<String, JsonObject> results = new ConcurrentHashMap<String, JsonObject>(casByKey.size());
+    final AtomicInteger pending = new AtomicInteger(casByKey.size() + 1);
+    
+    for (Entry<String, Long> entry : casByKey.entrySet()) {
+      final String key = entry.getKey();
+      
+      if (saveCoalescer != null) {
+        saveCoalescer.flush(key);
+      }
+      
+      F future;
+      try {
+        future = operation.issue(key, entry.getValue());
+      } catch (Exception e) {
+        results.put(key, new JsonObject().putString("status", "error").putString("message", e.getMessage()));
+        completeBulkKeys(message, casByKey.keySet(), results, pending);
+        continue;
+      }
+      
+      whenComplete(message, future, new Completion<F>() {
+        public void handle(F future) {
+          // locking, touching or unlocking changes the cas of the document
+          invalidateCache(key);
+          
+          JsonObject result = new JsonObject().putString("status", "ok");
+          try {
+            operation.complete(future, result);
+          } catch (Exception e) {
+            result.putString("status", "error").putString("message", e.getMessage());
+          }
+          results.put(key, result);
+          completeBulkKeys(message, casByKey.keySet(), results, pending);
+        }
+      });
+    }
+    
+    completeBulkKeys(message, casByKey.keySet(), results, pending);
+  }
+  
+  private void completeBulkKeys(Message<JsonObject> message, Set<String> keys, Map<String, JsonObject> results, AtomicInteger pending) {
+    if (pending.decrementAndGet() > 0) {
+      return;
+    }
+    
+    JsonObject map = new JsonObject();
+    int failed = 0;
+    for (String key : keys) {
+      JsonObject result = results.get(key);
+      if (!"ok".equals(result.getString("status"))) {
+        failed++;
+      }
+      map.putObject(key, result);
+    }
+    
+    sendOK(message, new JsonObject().putObject("results", map).putNumber("failed", failed));
+  }
+  
+  /**
+   * Deletes or touches the documents of the rows of a view query, without reading them
+   */
+  private void sweepView(final Message<JsonObject> message, boolean delete) {
+    final String designDoc = getMandatoryString("designDoc", message);
+    final String viewName = getMandatoryString("viewName", message);
+    JsonObject query = getMandatoryObject("query", message);
+
+    if (designDoc == null || viewName == null || query == null) {
+      sendError(message, "designDoc and viewName and query must be specified");
+      return;
+    }
+    
+    JsonObject json = message.body();
+    int pageSize = json.getInteger("page_size", 1000);
+    int concurrency = json.getInteger("concurrency", 100);
+    
+    if (pageSize < 1 || concurrency < 1) {
+      sendError(message, "page_size and concurrency must be positive");
+      return;
+    }
+    
+    // fails fast on invalid query parameters, the pages are built from the same json
+    ViewQueryBuilder.build(query);
+    
+    final ViewSweep sweep = new ViewSweep(message, delete, json.getInteger("expiration", 0), query, pageSize, concurrency);
+    
+    resolveView(message, designDoc, viewName, new Handler<View>() {
+      public void handle(View view) {
+        sweep.start(designDoc, viewName, view);
+      }
+    });
+  }
+  
+  private void mutate(final Message<JsonObject> message) {
+    JsonObject json = message.body();
+    
+    String id = getMandatoryString("id", message);
+    
+    if (id == null) {
+      sendError(message, "id must be specified");
+      return;
+    }
+    
+    DocumentMutation mutation;
+    try {
+      mutation = new DocumentMutation(json.getObject("patch"), json.getArray("operations"));
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+    
+    if (saveCoalescer != null) {
+      saveCoalescer.flush(id);
+    }
+    
+    mutate(message, id, mutation, 0);
+  }
+  
+  /**
+   * Reads the document with its cas, applies the mutation and writes it back
+   * conditioned on the cas. Whether the document changed in between the whole
+   * cycle is retried after a backoff, up to the configured max retries.
+   */
+  private void mutate(final Message<JsonObject> message, final String id, final DocumentMutation mutation, final int attempt) {
+    final JsonObject json = message.body();
+    final boolean upsert = json.getBoolean("upsert", false);
+    
+    whenComplete(message, clientFor(id).asyncGets(id), new Completion<OperationFuture<CASValue<Object>>>() {
+      public void handle(OperationFuture<CASValue<Object>> future) throws Exception {
+        CASValue<Object> object = future.get();
+        
+        if (object == null && !upsert) {
+          sendError(message, "not found");
+          return;
+        }
+        
+        final JsonObject doc = object != null ? toJsonObject(object.getValue()) : new JsonObject().putString("id", id);
+        try {
+          mutation.apply(doc);
+        } catch (IllegalArgumentException e) {
+          sendError(message, e.getMessage());
+          return;
+        }
+        // the id is kept whatever the mutation does with it
+        doc.putString("id", id);
+        
+        final PersistTo persistTo = PersistTo.valueOf(json.getString("persistTo", "ZERO"));
+        final ReplicateTo replicateTo = ReplicateTo.valueOf(json.getString("replicatTo", "ZERO"));
+        int expiration = json.getInteger("expiration", 0);
         
-    OperationFuture<Boolean> touchFuture = client.touch(key, expiration);
-    boolean response = touchFuture.get();
+        OperationFuture<?> store = object != null
+          ? storeAsync(doc, Store.SAVE, object.getCas(), expiration)
+          : storeAsync(doc, Store.INSERT, null, expiration);
+        
+        whenComplete(message, store, new Completion<OperationFuture<?>>() {
+          public void handle(OperationFuture<?> future) throws Exception {
+            if (isStored(future)) {
+              long cas = casOf(future);
+              pendingReads.remove(id);
+              if (documentCache != null) {
+                documentCache.put(id, doc.toString(), cas);
+              }
+              
+              final JsonObject reply = new JsonObject();
+              reply.putString("id", id);
+              reply.putNumber("cas", cas);
+              if (json.getBoolean("return_document", false)) {
+                reply.putObject("document", doc);
+              }
+              
+              whenDurable(future, Store.SAVE, persistTo, replicateTo, new Handler<String>() {
+                public void handle(String error) {
+                  if (error == null) {
+                    sendOK(message, reply);
+                  }
+                  else {
+                    sendError(message, error);
+                  }
+                }
+              });
+              return;
+            }
+            
+            invalidateCache(id);
+            
+            // the document was changed, created or deleted by someone else
+            Object result = future.get();
+            boolean conflict = result == CASResponse.EXISTS || result == CASResponse.NOT_FOUND || Boolean.FALSE.equals(result);
+            if (!conflict || attempt >= mutateMaxRetries) {
+              sendError(message, conflict ? "too many conflicts" : future.getStatus().getMessage());
+              return;
+            }
+            
+            vertx.setTimer(mutateBackoff(attempt), new Handler<Long>() {
+              public void handle(Long timerId) {
+                mutate(message, id, mutation, attempt + 1);
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Exponential backoff with jitter, so concurrent mutations of the same document don't retry in lockstep
+   */
+  private long mutateBackoff(int attempt) {
+    long delay = Math.max(1, mutateRetryDelay) << Math.min(attempt, 10);
+    return Math.max(1, delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+  }
+  
+  /**
+   * Whether the document cache is enabled and the request doesn't bypass it
+   */
+  private boolean isCacheEnabled(Message<JsonObject> message) {
+    return documentCache != null && message.body().getBoolean("cache", true);
+  }
+  
+  /**
+   * Whether the view cache is enabled, the query accepts stale results and the request doesn't bypass the cache
+   */
+  private boolean isViewCacheEnabled(Message<JsonObject> message, JsonObject query) {
+    String stale = query.getString("stale");
+    return viewCache != null && message.body().getBoolean("cache", true) && ("OK".equals(stale) || "UPDATE_AFTER".equals(stale));
+  }
+  
+  /**
+   * Documents are decoded as json text, or as json objects when stored in binary format
+   */
+  private static JsonObject toJsonObject(Object value) {
+    return value instanceof JsonObject ? (JsonObject)value : new JsonObject((String)value);
+  }
+  
+  /**
+   * Decodes the document to reply, just with the requested fields whether there is a projection
+   */
+  private static JsonObject toDocument(Object value, Projection projection) {
+    JsonObject document = toJsonObject(value);
+    return projection != null ? projection.apply(document) : document;
+  }
+  
+  /**
+   * The document cache keeps documents as json text
+   */
+  private static Object toJsonText(Object value) {
+    return value instanceof JsonObject ? ((JsonObject)value).encode() : value;
+  }
+  
+  /**
+   * Called once a document is written, reads issued before the write can't be joined anymore
+   */
+  private void invalidateCache(String id) {
+    pendingReads.remove(id);
+    if (documentCache != null) {
+      documentCache.invalidate(id);
+    }
+  }
+  
+  /**
+   * Registers a completion listener on the given couchbase future and, once the
+   * operation finishes, runs the completion in the verticle context so that no
+   * thread is ever blocked waiting for the server
+   * 
+   * @param message message to reply with an error if the completion fails
+   * @param future couchbase future (operation, get, bulk or http)
+   * @param completion callback executed when the future is done
+   */
+  protected <F extends Future<?>> void whenComplete(final Message<JsonObject> message, final F future, final Completion<F> completion) {
+    final long issued = System.nanoTime();
+    if (metrics != null) {
+      metrics.operationStarted();
+    }
     
-    if (response) {
-      JsonObject reply = new JsonObject();
-      reply.putString("key", touchFuture.getKey());
-      sendOK(message, reply);
+    addListener(future, new Handler<Void>() {
+      public void handle(Void event) {
+        final long completed = System.nanoTime();
+        if (metrics != null) {
+          metrics.operationCompleted(message, completed - issued);
+        }
+        
+        context.runOnContext(new Handler<Void>() {
+          public void handle(Void event) {
+            if (metrics != null) {
+              metrics.queued(message, System.nanoTime() - completed);
+            }
+            
+            try {
+              completion.handle(future);
+            } catch (Exception e) {
+              sendError(message, e.getMessage(), e);
+            }
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Each future type only accepts its own listener type, a generic listener
+   * fails with a class cast once the operation completes
+   */
+  private static void addListener(Future<?> future, final Handler<Void> listener) {
+    if (future instanceof OperationFuture) {
+      ((OperationFuture<?>)future).addListener(new OperationCompletionListener() {
+        public void onComplete(OperationFuture<?> f) {
+          listener.handle(null);
+        }
+      });
+    }
+    else if (future instanceof BulkFuture) {
+      ((BulkFuture<?>)future).addListener(new BulkGetCompletionListener() {
+        public void onComplete(BulkGetFuture<?> f) {
+          listener.handle(null);
+        }
+      });
+    }
+    else if (future instanceof HttpFuture) {
+      ((HttpFuture<?>)future).addListener(new HttpCompletionListener() {
+        public void onComplete(HttpFuture<?> f) {
+          listener.handle(null);
+        }
+      });
+    }
+    else if (future instanceof ReplicaGetFuture) {
+      ((ReplicaGetFuture<?>)future).addListener(new ReplicaGetCompletionListener() {
+        public void onComplete(ReplicaGetFuture<?> f) {
+          listener.handle(null);
+        }
+      });
+    }
+    else if (future instanceof GetFuture) {
+      ((GetFuture<?>)future).addListener(new GetCompletionListener() {
+        public void onComplete(GetFuture<?> f) {
+          listener.handle(null);
+        }
+      });
     }
     else {
-      sendError(message, touchFuture.getStatus().getMessage());
+      throw new IllegalArgumentException("Unsupported future " + future.getClass().getName());
     }
   }
   
+  /**
+   * Run of a delete_by_view or touch_by_view action. The view is read page by page
+   * with startkey paging, just the row ids, and the documents of the rows are
+   * deleted or touched with at most <code>concurrency</code> operations in flight.
+   * The next page is queried as soon as the ids of the current one are issued, so
+   * the query overlaps the pending operations.
+   */
+  private class ViewSweep {
+    private static final int MAX_FAILURES = 100;
+    
+    private final Message<JsonObject> message;
+    private final boolean delete;
+    private final int expiration;
+    private final JsonObject query;
+    // rows per page, 0 whether the rows are read by a single query
+    private final int pageSize;
+    private final int concurrency;
+    // max rows to process, 0 means all of them
+    private final int maxRows;
+    // ids of the rows read but not issued yet
+    private final Deque<String> ids = new ArrayDeque<String>();
+    private final JsonArray failures = new JsonArray();
+    private String designDoc;
+    private String viewName;
+    private View view;
+    // position of the last row read, null until the first page
+    private String cursor;
+    private boolean querying;
+    private boolean lastPage;
+    private boolean replied;
+    private int inFlight;
+    private long rows;
+    private long succeeded;
+    private long missing;
+    private long failed;
+    private String error;
+    
+    ViewSweep(Message<JsonObject> message, boolean delete, int expiration, JsonObject query, int pageSize, int concurrency) {
+      this.message = message;
+      this.delete = delete;
+      this.expiration = expiration;
+      this.concurrency = concurrency;
+      this.maxRows = query.getInteger("limit", 0);
+      // rows of key and keys queries can't be paged by startkey, they are bounded by the keys anyway
+      this.pageSize = query.containsField("key") || query.containsField("keys") ? 0 : pageSize;
+      this.query = query.copy();
+      this.query.removeField("limit");
+      this.query.removeField("skip");
+    }
+    
+    synchronized void start(String designDoc, String viewName, View view) {
+      this.designDoc = designDoc;
+      this.viewName = viewName;
+      this.view = view;
+      drain();
+    }
+    
+    /**
+     * Issues the read ids up to the concurrency, queries the next page once they are all
+     * issued and replies once there is nothing left
+     */
+    private void drain() {
+      while (inFlight < concurrency && !ids.isEmpty()) {
+        issue(ids.poll());
+      }
+      if (!ids.isEmpty() || querying) {
+        return;
+      }
+      if (!lastPage) {
+        query();
+      }
+      else if (inFlight == 0 && !replied) {
+        reply();
+      }
+    }
+    
+    private void query() {
+      final int limit = pageLimit();
+      
+      Query q = ViewQueryBuilder.build(query);
+      q.setReduce(false);
+      q.setIncludeDocs(false);
+      if (cursor != null) {
+        // the page starts at the last row read instead of skipping it, which is already
+        // gone from the index whether its document was deleted and the query isn't stale
+        ViewCursor position = ViewCursor.decode(cursor);
+        q.setRangeStart(ViewQueryBuilder.jsonKey(position.getKey()));
+        q.setStartkeyDocID(position.getId());
+      }
+      if (limit > 0) {
+        q.setLimit(cursor != null ? limit + 1 : limit);
+      }
+      
+      querying = true;
+      whenComplete(message, nextClient().asyncQueryRaw(view, q), new Completion<HttpFuture<ViewResponse>>() {
+        public void handle(HttpFuture<ViewResponse> future) {
+          ViewResponse response = null;
+          String error = null;
+          try {
+            response = future.get();
+          } catch (Exception e) {
+            // the view could have been removed or changed, so it is resolved again next time
+            resolvedViews.remove(viewKey(designDoc, viewName));
+            error = e.getMessage();
+          }
+          page(response, limit, error);
+        }
+      });
+    }
+    
+    /**
+     * Rows to read by the next query, 0 means all of them
+     */
+    private int pageLimit() {
+      if (maxRows == 0) {
+        return pageSize;
+      }
+      int remaining = (int)(maxRows - rows);
+      return pageSize > 0 ? Math.min(pageSize, remaining) : remaining;
+    }
+    
+    private synchronized void page(ViewResponse response, int limit, String error) {
+      querying = false;
+      
+      if (response == null) {
+        this.error = "view query failed: " + error;
+        lastPage = true;
+        drain();
+        return;
+      }
+      
+      if (metrics != null) {
+        metrics.viewRows(response.size());
+      }
+      
+      int read = 0;
+      boolean first = true;
+      ViewRow last = null;
+      for (ViewRow row : response) {
+        boolean previous = first && cursor != null && ViewCursor.encode(row).equals(cursor);
+        first = false;
+        if (previous || row.getId() == null) {
+          continue;
+        }
+        if (limit > 0 && read == limit) {
+          break;
+        }
+        ids.add(row.getId());
+        last = row;
+        read++;
+      }
+      
+      rows += read;
+      if (last != null) {
+        cursor = ViewCursor.encode(last);
+      }
+      lastPage = pageSize == 0 || read < limit || (maxRows > 0 && rows >= maxRows);
+      drain();
+    }
+    
+    private void issue(final String id) {
+      if (saveCoalescer != null) {
+        saveCoalescer.flush(id);
+      }
+      
+      OperationFuture<Boolean> future;
+      try {
+        future = delete ? clientFor(id).delete(id) : clientFor(id).touch(id, expiration);
+      } catch (Exception e) {
+        fail(id, e.getMessage());
+        return;
+      }
+      
+      inFlight++;
+      whenComplete(message, future, new Completion<OperationFuture<Boolean>>() {
+        public void handle(OperationFuture<Boolean> future) {
+          completed(id, future);
+        }
+      });
+    }
+    
+    private synchronized void completed(String id, OperationFuture<Boolean> future) {
+      inFlight--;
+      invalidateCache(id);
+      
+      try {
+        if (future.get()) {
+          succeeded++;
+        }
+        // a document emitting several rows or already expired is missing once its row is read
+        else if (future.getStatus().getStatusCode() == StatusCode.ERR_NOT_FOUND) {
+          missing++;
+        }
+        else {
+          fail(id, future.getStatus().getMessage());
+        }
+      } catch (Exception e) {
+        fail(id, e.getMessage());
+      }
+      drain();
+    }
+    
+    private void fail(String id, String message) {
+      failed++;
+      if (failures.size() < MAX_FAILURES) {
+        failures.addObject(new JsonObject().putString("id", id).putString("message", message));
+      }
+    }
+    
+    private void reply() {
+      replied = true;
+      
+      if (error != null) {
+        sendError(message, error + " after " + rows + " rows, " + succeeded + (delete ? " deleted" : " touched")
+          + ", " + missing + " missing and " + failed + " failed");
+        return;
+      }
+      
+      sendOK(message, new JsonObject()
+        .putNumber("rows", rows)
+        .putNumber(delete ? "deleted" : "touched", succeeded)
+        .putNumber("missing", missing)
+        .putNumber("failed", failed)
+        .putArray("failures", failures));
+    }
+  }
+  
+  /**
+   * Single key operation of the bulk touch, lock and unlock actions
+   */
+  interface KeyOperation<F extends Future<?>> {
+    /**
+     * Issues the operation, the cas is null whether the action doesn't use it
+     */
+    F issue(String key, Long cas);
+    
+    /**
+     * Fills the result of the key, which is ok unless it's changed to an error
+     */
+    void complete(F future, JsonObject result) throws Exception;
+  }
+  
+  /**
+   * Callback invoked in the verticle context once a couchbase future is done
+   */
+  interface Completion<F extends Future<?>> {
+    void handle(F future) throws Exception;
+  }
+  
   enum Store {
 	  INSERT,
 	  SAVE,
 	  UPDATE,
 	  DELETE;
+	  
+	  /**
+	   * Resolves the store type from an action name, null whether it isn't valid
+	   */
+	  static Store of(String action) {
+	    if (action == null) {
+	      return null;
+	    }
+	    try {
+	      return valueOf(action.toUpperCase());
+	    } catch (IllegalArgumentException e) {
+	      return null;
+	    }
+	  }
   }
 }
@@ -0,0 +1,178 @@
+package org.vertx.mods;
+
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sums counter deltas per key in memory so a burst of increments of the same keys
+ * ends up as a single increment per key and flush. Deltas are added to striped
+ * accumulators, each thread on its own stripe, so concurrent producers don't contend
+ * on a single value.
+ * <p>
+ * Keys are flushed by the caller on an interval through {@link #flush()}, and right
+ * away once their pending delta reaches the threshold. Keys that stay idle for a
+ * whole interval are dropped.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class CounterAggregator {
+
+  private static final int STRIPES = 16;
+  // stripes are spread so each one sits on its own cache line
+  private static final int PADDING = 8;
+  // value of the stripes of a dropped accumulator, no delta can be added to them
+  private static final long RETIRED = Long.MIN_VALUE;
+
+  private final long threshold;
+  private final Flusher flusher;
+  private final ConcurrentMap<String, Accumulator> accumulators = new ConcurrentHashMap<String, Accumulator>();
+
+  /**
+   * @param threshold absolute pending delta that flushes a key right away, 0 to flush on the interval only
+   * @param flusher writes the summed deltas
+   */
+  public CounterAggregator(long threshold, Flusher flusher) {
+    this.threshold = threshold;
+    this.flusher = flusher;
+  }
+
+  /**
+   * Adds the delta to the key, the initial value and expiration of the latest add are the flushed ones
+   */
+  public void add(String key, long delta, long initial, int expiration) {
+    int stripe = stripe();
+
+    while (true) {
+      Accumulator accumulator = accumulators.get(key);
+      if (accumulator == null) {
+        Accumulator created = new Accumulator();
+        accumulator = accumulators.putIfAbsent(key, created);
+        if (accumulator == null) {
+          accumulator = created;
+        }
+      }
+
+      if (accumulator.add(stripe, delta)) {
+        accumulator.initial = initial;
+        accumulator.expiration = expiration;
+
+        if (threshold > 0 && Math.abs(accumulator.sum()) >= threshold) {
+          flush(key, accumulator);
+        }
+        return;
+      }
+      // the accumulator is being dropped, retry with the one that replaces it
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Flushes the pending delta of every key and drops the keys without any
+   */
+  public void flush() {
+    for (Entry<String, Accumulator> entry : accumulators.entrySet()) {
+      Accumulator accumulator = entry.getValue();
+      if (!flush(entry.getKey(), accumulator) && accumulator.retire()) {
+        accumulators.remove(entry.getKey(), accumulator);
+      }
+    }
+  }
+
+  /**
+   * Pending delta of the key, used for testing
+   */
+  public long pending(String key) {
+    Accumulator accumulator = accumulators.get(key);
+    return accumulator != null ? accumulator.sum() : 0;
+  }
+
+  public int size() {
+    return accumulators.size();
+  }
+
+  private boolean flush(String key, Accumulator accumulator) {
+    long delta = accumulator.drain();
+    if (delta == 0) {
+      return false;
+    }
+    flusher.flush(key, delta, accumulator.initial, accumulator.expiration);
+    return true;
+  }
+
+  private static int stripe() {
+    long id = Thread.currentThread().getId();
+    return (int)((id ^ (id >>> 16)) & (STRIPES - 1));
+  }
+
+  /**
+   * Writes the summed delta of a key
+   */
+  public interface Flusher {
+    void flush(String key, long delta, long initial, int expiration);
+  }
+
+  private static class Accumulator {
+    final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PADDING);
+    volatile long initial;
+    volatile int expiration;
+
+    boolean add(int stripe, long delta) {
+      int index = stripe * PADDING;
+      while (true) {
+        long value = stripes.get(index);
+        if (value == RETIRED) {
+          return false;
+        }
+        if (stripes.compareAndSet(index, value, value + delta)) {
+          return true;
+        }
+      }
+    }
+
+    long sum() {
+      long sum = 0;
+      for (int i = 0; i < STRIPES; i++) {
+        long value = stripes.get(i * PADDING);
+        if (value != RETIRED) {
+          sum += value;
+        }
+      }
+      return sum;
+    }
+
+    /**
+     * Takes the pending delta out of every stripe
+     */
+    long drain() {
+      long sum = 0;
+      for (int i = 0; i < STRIPES; i++) {
+        int index = i * PADDING;
+        while (true) {
+          long value = stripes.get(index);
+          if (value == RETIRED || stripes.compareAndSet(index, value, 0)) {
+            sum += value == RETIRED ? 0 : value;
+            break;
+          }
+        }
+      }
+      return sum;
+    }
+
+    /**
+     * Marks every stripe as retired whether all of them are empty, otherwise they're left as they were
+     */
+    boolean retire() {
+      for (int i = 0; i < STRIPES; i++) {
+        if (!stripes.compareAndSet(i * PADDING, 0, RETIRED)) {
+          for (int j = 0; j < i; j++) {
+            stripes.set(j * PADDING, 0);
+          }
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
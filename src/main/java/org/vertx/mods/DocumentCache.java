@@ -0,0 +1,155 @@
+package org.vertx.mods;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-process cache of the documents read through find_by_id and find_by_ids.
+ * Entries are evicted in least recently used order once the max size is reached
+ * and expire after the configured time to live.
+ * <p>
+ * Every change of the cache is stamped with an increasing sequence. A read takes the
+ * current sequence before it's issued and caches its result with {@link #putIfNewer},
+ * which drops it whether the document was written or invalidated in the meantime.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class DocumentCache {
+
+  /**
+   * Cas of the entries whose cas isn't known, e.g. documents read by a bulk get
+   */
+  public static final long UNKNOWN_CAS = 0;
+
+  private final long ttl;
+  private final Map<String, Entry> entries;
+  private long sequence;
+  // highest sequence among the entries no longer in the map
+  private long removedSequence;
+
+  /**
+   * @param maxSize max number of documents kept in the cache
+   * @param ttl time in milliseconds an entry is valid, 0 means no expiration
+   */
+  public DocumentCache(final int maxSize, long ttl) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > maxSize) {
+          removed(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached entry for the given id, null whether it isn't cached or expired
+   */
+  public synchronized Entry get(String id) {
+    Entry entry = entries.get(id);
+    if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+      removed(entries.remove(id));
+      return null;
+    }
+    return entry != null && entry.value != null ? entry : null;
+  }
+
+  /**
+   * Caches the raw document value with its cas, {@link #UNKNOWN_CAS} when the cas is unknown
+   */
+  public synchronized void put(String id, Object value, long cas) {
+    entries.put(id, new Entry(value, cas, expiresAt(), ++sequence));
+  }
+
+  /**
+   * Caches the raw document value read by an operation issued at the given sequence, unless
+   * the document was cached or invalidated after it or the cached cas is newer.
+   *
+   * @return whether the value was cached
+   */
+  public synchronized boolean putIfNewer(String id, Object value, long cas, long readSequence) {
+    Entry current = entries.get(id);
+    if (current != null) {
+      if (current.sequence > readSequence) {
+        return false;
+      }
+      if (current.value != null && cas != UNKNOWN_CAS && current.cas != UNKNOWN_CAS && current.cas > cas) {
+        return false;
+      }
+    }
+    else if (removedSequence > readSequence) {
+      // the document may have been invalidated, the entry is gone so it can't be told
+      return false;
+    }
+    entries.put(id, new Entry(value, cas, expiresAt(), ++sequence));
+    return true;
+  }
+
+  /**
+   * Drops the cached document, reads issued before are no longer cached
+   */
+  public synchronized void invalidate(String id) {
+    entries.put(id, new Entry(null, UNKNOWN_CAS, expiresAt(), ++sequence));
+  }
+
+  /**
+   * The sequence of the last change, to be taken before a read is issued
+   */
+  public synchronized long sequence() {
+    return sequence;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private long expiresAt() {
+    return ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+  }
+
+  private void removed(Entry entry) {
+    removedSequence = Math.max(removedSequence, entry.sequence);
+  }
+
+  /**
+   * Cached document value along with its cas, the value of an invalidated document is null
+   */
+  public static class Entry {
+
+    private final Object value;
+    private final long cas;
+    private final long expiresAt;
+    private final long sequence;
+
+    Entry(Object value, long cas, long expiresAt, long sequence) {
+      this.value = value;
+      this.cas = cas;
+      this.expiresAt = expiresAt;
+      this.sequence = sequence;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    /**
+     * @return the cas of the document, {@link DocumentCache#UNKNOWN_CAS} when it isn't known
+     */
+    public long getCas() {
+      return cas;
+    }
+
+    public boolean hasCas() {
+      return cas != UNKNOWN_CAS;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
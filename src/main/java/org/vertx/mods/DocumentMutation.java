@@ -0,0 +1,190 @@
+package org.vertx.mods;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Partial update of a document applied by the mutate action: a json merge patch
+ * (RFC 7386) and/or a list of field operations. Fields are given as paths whose
+ * segments are separated by dots, e.g. <code>stats.visits</code>. The supported
+ * operations are:
+ * <ul>
+ * <li><code>set</code> sets the value of the field, creating the missing parent objects</li>
+ * <li><code>unset</code> removes the field</li>
+ * <li><code>increment</code> adds <code>by</code> (1 by default) to a numeric field, a missing one counts as 0</li>
+ * <li><code>append</code> adds the value at the end of an array field, a missing one is created</li>
+ * </ul>
+ * The patch is applied first, then the operations in order.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class DocumentMutation {
+
+  private final JsonObject patch;
+  private final List<Operation> operations = new ArrayList<Operation>();
+
+  /**
+   * @param patch json merge patch, may be null
+   * @param operations field operations, may be null
+   * @throws IllegalArgumentException whether neither is given or an operation is invalid
+   */
+  public DocumentMutation(JsonObject patch, JsonArray operations) {
+    this.patch = patch;
+
+    if (operations != null) {
+      for (Object operation : operations) {
+        if (!(operation instanceof JsonObject)) {
+          throw new IllegalArgumentException("operations must be json objects");
+        }
+        this.operations.add(new Operation((JsonObject)operation));
+      }
+    }
+
+    if (patch == null && this.operations.isEmpty()) {
+      throw new IllegalArgumentException("patch or operations must be specified");
+    }
+  }
+
+  /**
+   * Applies the mutation to the given document, which is modified
+   *
+   * @throws IllegalArgumentException whether an operation doesn't fit the document
+   */
+  public JsonObject apply(JsonObject document) {
+    if (patch != null) {
+      merge(document, patch);
+    }
+    for (Operation operation : operations) {
+      operation.apply(document);
+    }
+    return document;
+  }
+
+  private static void merge(JsonObject target, JsonObject patch) {
+    for (String field : patch.getFieldNames()) {
+      Object value = patch.getValue(field);
+      if (value == null) {
+        target.removeField(field);
+      }
+      else if (value instanceof JsonObject) {
+        Object current = target.getValue(field);
+        JsonObject object = current instanceof JsonObject ? (JsonObject)current : new JsonObject();
+        merge(object, (JsonObject)value);
+        target.putObject(field, object);
+      }
+      else {
+        target.putValue(field, value);
+      }
+    }
+  }
+
+  private static class Operation {
+    final String op;
+    final String[] path;
+    final Object value;
+    final Number by;
+
+    Operation(JsonObject json) {
+      Object op = json.getValue("op");
+      Object field = json.getValue("path");
+      Object by = json.getValue("by");
+      value = json.getValue("value");
+
+      if (!(field instanceof String) || ((String)field).isEmpty()) {
+        throw new IllegalArgumentException("operation path must be specified");
+      }
+      if (by != null && !(by instanceof Number)) {
+        throw new IllegalArgumentException("by must be a number");
+      }
+      if (!"set".equals(op) && !"unset".equals(op) && !"increment".equals(op) && !"append".equals(op)) {
+        throw new IllegalArgumentException("invalid operation " + op + " should be set, unset, increment or append");
+      }
+      this.op = (String)op;
+      this.path = ((String)field).split("\\.");
+      this.by = by != null ? (Number)by : 1;
+    }
+
+    void apply(JsonObject document) {
+      boolean create = !op.equals("unset");
+      JsonObject parent = parent(document, create);
+      if (parent == null) {
+        return;
+      }
+
+      String field = path[path.length - 1];
+      Object current = parent.getValue(field);
+
+      switch (op) {
+        case "set":
+          parent.putValue(field, value);
+          break;
+        case "unset":
+          parent.removeField(field);
+          break;
+        case "increment":
+          if (current != null && !(current instanceof Number)) {
+            throw new IllegalArgumentException("field " + join() + " isn't a number");
+          }
+          parent.putNumber(field, add((Number)current, by));
+          break;
+        default:
+          if (current != null && !(current instanceof JsonArray)) {
+            throw new IllegalArgumentException("field " + join() + " isn't an array");
+          }
+          JsonArray array = current != null ? (JsonArray)current : new JsonArray();
+          array.add(value);
+          parent.putArray(field, array);
+      }
+    }
+
+    /**
+     * Walks the path down to the object holding the field, null whether it doesn't exist and can't be created
+     */
+    private JsonObject parent(JsonObject document, boolean create) {
+      JsonObject object = document;
+      for (int i = 0; i < path.length - 1; i++) {
+        Object child = object.getValue(path[i]);
+        if (child == null && create) {
+          child = new JsonObject();
+          object.putObject(path[i], (JsonObject)child);
+        }
+        if (!(child instanceof JsonObject)) {
+          if (child == null) {
+            return null;
+          }
+          throw new IllegalArgumentException("field " + path[i] + " of " + join() + " isn't an object");
+        }
+        object = (JsonObject)child;
+      }
+      return object;
+    }
+
+    private static Number add(Number current, Number by) {
+      if (current == null) {
+        return by;
+      }
+      if (isIntegral(current) && isIntegral(by)) {
+        return current.longValue() + by.longValue();
+      }
+      return current.doubleValue() + by.doubleValue();
+    }
+
+    private static boolean isIntegral(Number number) {
+      return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+    private String join() {
+      StringBuilder builder = new StringBuilder();
+      for (String segment : path) {
+        if (builder.length() > 0) {
+          builder.append('.');
+        }
+        builder.append(segment);
+      }
+      return builder.toString();
+    }
+  }
+}
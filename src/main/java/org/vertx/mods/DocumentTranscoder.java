@@ -0,0 +1,163 @@
+package org.vertx.mods;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Transcoder of the documents stored by the persistor. Documents are written as json
+ * text (the default) or as binary json (Smile), and compressed with gzip once they
+ * reach a size threshold. The format is recorded in the item flags so reads always
+ * pick the right decoder, whatever the current configuration is.
+ * <p>
+ * Json text is decoded as a string, just like the default client transcoder does,
+ * while binary json is decoded straight into a {@link JsonObject}. Values other than
+ * documents and strings are handled by the default client transcoder.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class DocumentTranscoder implements Transcoder<Object> {
+
+  // same flag the default client transcoder uses, so its compressed items are readable
+  static final int COMPRESSED = 2;
+  static final int BINARY_JSON = 1 << 16;
+
+  private static final int SERIALIZED = 1;
+  private static final int SPECIAL_MASK = 0xff00;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory());
+
+  public enum Format {
+    JSON,
+    BINARY
+  }
+
+  private final Format format;
+  private final int compressionThreshold;
+  private final SerializingTranscoder fallback = new SerializingTranscoder();
+
+  /**
+   * @param format format new documents are written with
+   * @param compressionThreshold encoded size in bytes from which documents are compressed, 0 disables compression
+   */
+  public DocumentTranscoder(Format format, int compressionThreshold) {
+    this.format = format;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Compressed and binary documents are decoded by the caller instead of the client IO thread
+   */
+  public boolean asyncDecode(CachedData data) {
+    return (data.getFlags() & (COMPRESSED | BINARY_JSON)) != 0 || fallback.asyncDecode(data);
+  }
+
+  public CachedData encode(Object value) {
+    byte[] data;
+    int flags = 0;
+
+    if (value instanceof JsonObject) {
+      if (format == Format.BINARY) {
+        data = encodeBinary((JsonObject)value);
+        flags |= BINARY_JSON;
+      }
+      else {
+        data = ((JsonObject)value).encode().getBytes(UTF8);
+      }
+    }
+    else if (value instanceof String) {
+      data = ((String)value).getBytes(UTF8);
+    }
+    else {
+      return fallback.encode(value);
+    }
+
+    if (compressionThreshold > 0 && data.length >= compressionThreshold) {
+      byte[] compressed = compress(data);
+      // incompressible data is kept as it is
+      if (compressed.length < data.length) {
+        data = compressed;
+        flags |= COMPRESSED;
+      }
+    }
+
+    return new CachedData(flags, data, getMaxSize());
+  }
+
+  public Object decode(CachedData cached) {
+    int flags = cached.getFlags();
+
+    if ((flags & (SERIALIZED | SPECIAL_MASK)) != 0) {
+      return fallback.decode(cached);
+    }
+
+    byte[] data = cached.getData();
+    if ((flags & COMPRESSED) != 0) {
+      data = decompress(data);
+    }
+    if ((flags & BINARY_JSON) != 0) {
+      return decodeBinary(data);
+    }
+    return new String(data, UTF8);
+  }
+
+  public int getMaxSize() {
+    return CachedData.MAX_SIZE;
+  }
+
+  private static byte[] encodeBinary(JsonObject document) {
+    try {
+      return SMILE.writeValueAsBytes(document.toMap());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Failed to encode document as binary json", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JsonObject decodeBinary(byte[] data) {
+    try {
+      return new JsonObject(SMILE.readValue(data, Map.class));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to decode binary json document", e);
+    }
+  }
+
+  private static byte[] compress(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to compress document", e);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+    try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = gzip.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to decompress document", e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,127 @@
+package org.vertx.mods;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Lock free histogram of positive long values with log-linear buckets, similar to
+ * HdrHistogram. Values below 16 are tracked exactly, bigger ones within a ~6% error,
+ * which is enough to follow latency percentiles without keeping every sample.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+
+    counts.incrementAndGet(index(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double)sum.get() / n;
+  }
+
+  /**
+   * Returns the highest value recorded below the given percentile, within the bucket precision
+   *
+   * @param percentile percentile between 0 and 100
+   */
+  public long getPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long)Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Adds the values recorded by the given histogram to this one
+   */
+  void add(Histogram other) {
+    for (int i = 0; i < counts.length(); i++) {
+      long n = other.counts.get(i);
+      if (n > 0) {
+        counts.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+
+    long value = other.max.get();
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Json summary of the histogram, values are divided by the given scale
+   * (e.g. 1000 to report microseconds as milliseconds)
+   */
+  public JsonObject toJson(double scale) {
+    return new JsonObject()
+      .putNumber("count", getCount())
+      .putNumber("mean", getMean() / scale)
+      .putNumber("p50", getPercentile(50) / scale)
+      .putNumber("p90", getPercentile(90) / scale)
+      .putNumber("p99", getPercentile(99) / scale)
+      .putNumber("p999", getPercentile(99.9) / scale)
+      .putNumber("max", getMax() / scale);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    int subBucket = index % SUB_BUCKETS;
+    return ((long)(SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
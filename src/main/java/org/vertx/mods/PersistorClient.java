@@ -0,0 +1,328 @@
+package org.vertx.mods;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.BroadcastOpFactory;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ObserveResponse;
+import net.spy.memcached.PersistTo;
+import net.spy.memcached.ReplicateTo;
+import net.spy.memcached.ops.ObserveOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.CouchbaseConnectionFactory;
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.protocol.views.AbstractView;
+import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.protocol.views.NoDocsOperationImpl;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.ReducedOperationImpl;
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.ViewOperation;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseNoDocs;
+import com.couchbase.client.protocol.views.ViewResponseReduced;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.vbucket.VBucketNodeLocator;
+import com.couchbase.client.vbucket.config.Config;
+
+/**
+ * Couchbase client whose view queries keep the keys and values of the rows as json text.
+ * The stock client reads them as plain strings, so the string key "42" can't be told apart
+ * from the number 42, and neither can a query be resumed right after a given row. It also
+ * observes the durability of the stores without blocking, the stock client parks the
+ * calling thread on every observe round.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class PersistorClient extends CouchbaseClient {
+
+  public PersistorClient(CouchbaseConnectionFactory connectionFactory) throws IOException {
+    super(connectionFactory);
+  }
+
+  /**
+   * Result of a single observe round of a stored key
+   */
+  public interface DurabilityCallback {
+
+    /**
+     * @param durable whether the durability requirements are met
+     * @param error why they can't be met anymore, e.g. the key was modified, null otherwise
+     */
+    void observed(boolean durable, String error);
+  }
+
+  /**
+   * Observes the key once on the nodes the durability requirements involve and tells the
+   * callback, from the IO thread, whether they're met. Unlike observePoll it doesn't wait
+   * nor poll, the caller observes again until the requirements are met or it gives up.
+   * The requirements are counted the same way observePoll does.
+   */
+  public void asyncObserveDurability(final String key, final long cas, final boolean deleted, final PersistTo persistTo,
+      final ReplicateTo replicateTo, final DurabilityCallback callback) {
+    final boolean persistMaster = persistTo.getValue() > 0;
+    final int persistReplicas = Math.max(0, persistTo.getValue() - 1);
+    final int replicas = replicateTo.getValue();
+
+    VBucketNodeLocator locator = (VBucketNodeLocator)mconn.getLocator();
+    Config config = ((CouchbaseConnectionFactory)connFactory).getVBucketConfig();
+    final int vbucket = locator.getVBucketIndex(key);
+    final MemcachedNode primary = locator.getPrimary(key);
+
+    List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+    if (persistMaster && primary != null) {
+      nodes.add(primary);
+    }
+    int available = 0;
+    if (replicas > 0 || persistReplicas > 0) {
+      for (int i = 0; i < config.getReplicasCount(); i++) {
+        MemcachedNode replica = config.getReplica(vbucket, i) >= 0 ? locator.getReplica(key, i) : null;
+        if (replica != null) {
+          nodes.add(replica);
+          available++;
+        }
+      }
+    }
+
+    if (replicas > available) {
+      callback.observed(false, "Requested replication to " + replicas + " node(s), but only " + available + " are available.");
+      return;
+    }
+    if (persistReplicas > available || (persistMaster && primary == null)) {
+      callback.observed(false, "Requested persistence to " + persistTo.getValue() + " node(s), but only "
+        + (available + (primary != null ? 1 : 0)) + " are available.");
+      return;
+    }
+
+    final Map<MemcachedNode, ObserveResponse> responses = new ConcurrentHashMap<MemcachedNode, ObserveResponse>();
+    final AtomicInteger pending = new AtomicInteger(nodes.size());
+
+    broadcastOp(new BroadcastOpFactory() {
+      public Operation newOp(MemcachedNode node, final CountDownLatch latch) {
+        return opFact.observe(key, cas, vbucket, new ObserveOperation.Callback() {
+          public void gotData(String key, long observedCas, MemcachedNode node, ObserveResponse response) {
+            // like the stock client, another cas means the key was modified unless it's a persisted delete
+            responses.put(node, observedCas == cas || response == ObserveResponse.NOT_FOUND_PERSISTED
+              ? response : ObserveResponse.MODIFIED);
+          }
+
+          public void receivedStatus(OperationStatus status) {
+          }
+
+          public void complete() {
+            latch.countDown();
+            if (pending.decrementAndGet() > 0) {
+              return;
+            }
+
+            boolean masterPersisted = false;
+            int replicated = 0;
+            int replicaPersisted = 0;
+            ObserveResponse notPersisted = deleted ? ObserveResponse.NOT_FOUND_NOT_PERSISTED : ObserveResponse.FOUND_NOT_PERSISTED;
+            ObserveResponse persisted = deleted ? ObserveResponse.NOT_FOUND_PERSISTED : ObserveResponse.FOUND_PERSISTED;
+
+            for (Entry<MemcachedNode, ObserveResponse> entry : responses.entrySet()) {
+              boolean master = entry.getKey() == primary;
+              if (master && entry.getValue() == ObserveResponse.MODIFIED) {
+                callback.observed(false, "Key was modified");
+                return;
+              }
+              if (!master && entry.getValue() == notPersisted) {
+                replicated++;
+              }
+              if (entry.getValue() == persisted) {
+                if (master) {
+                  masterPersisted = true;
+                }
+                else {
+                  replicated++;
+                  replicaPersisted++;
+                }
+              }
+            }
+
+            callback.observed((masterPersisted || !persistMaster) && replicated >= replicas && replicaPersisted >= persistReplicas,
+              null);
+          }
+        });
+      }
+    }, nodes);
+  }
+
+  /**
+   * Time in milliseconds between the observe rounds of a store
+   */
+  public long getObservePollInterval() {
+    return ((CouchbaseConnectionFactory)connFactory).getObsPollInterval();
+  }
+
+  /**
+   * Queries the view without including the documents. The keys and values of the rows
+   * are json text, even the json null.
+   */
+  public HttpFuture<ViewResponse> asyncQueryRaw(AbstractView view, Query query) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpFuture<ViewResponse> future = new HttpFuture<ViewResponse>(latch,
+      ((CouchbaseConnectionFactory)connFactory).getViewTimeout(), executorService);
+
+    ViewOperation.ViewCallback callback = new ViewOperation.ViewCallback() {
+      private ViewResponse response;
+
+      public void gotData(ViewResponse response) {
+        this.response = response;
+      }
+
+      public void receivedStatus(OperationStatus status) {
+        future.set(response, status);
+      }
+
+      public void complete() {
+        latch.countDown();
+        future.signalComplete();
+      }
+    };
+
+    HttpRequest request = new BasicHttpRequest("GET", view.getURI() + query.toString(), HttpVersion.HTTP_1_1);
+    HttpOperation operation = view.hasReduce() && query.willReduce()
+      ? new RawReducedOperation(request, view, callback)
+      : new RawRowsOperation(request, view, callback);
+    future.setOperation(operation);
+    addOp(operation);
+    return future;
+  }
+
+  private static class RawRowsOperation extends NoDocsOperationImpl {
+
+    RawRowsOperation(HttpRequest request, AbstractView view, ViewCallback callback) {
+      super(request, view, callback);
+    }
+
+    @Override
+    protected ViewResponseNoDocs parseResult(String json) throws ParseException {
+      Collection<ViewRow> rows = new LinkedList<ViewRow>();
+      Collection<RowError> errors = new LinkedList<RowError>();
+      long totalRows = 0;
+
+      if (json != null) {
+        JsonObject response = parse(json);
+        totalRows = response.getLong("total_rows", 0);
+        for (Object row : response.getArray("rows", new JsonArray())) {
+          JsonObject fields = (JsonObject)row;
+          rows.add(new RawViewRow(fields.getString("id"), toJson(fields.getValue("key")), toJson(fields.getValue("value"))));
+        }
+        addErrors(response, errors);
+      }
+      return new ViewResponseNoDocs(rows, errors, totalRows);
+    }
+  }
+
+  private static class RawReducedOperation extends ReducedOperationImpl {
+
+    RawReducedOperation(HttpRequest request, AbstractView view, ViewCallback callback) {
+      super(request, view, callback);
+    }
+
+    @Override
+    protected ViewResponseReduced parseResult(String json) throws ParseException {
+      Collection<ViewRow> rows = new LinkedList<ViewRow>();
+      Collection<RowError> errors = new LinkedList<RowError>();
+
+      if (json != null) {
+        JsonObject response = parse(json);
+        for (Object row : response.getArray("rows", new JsonArray())) {
+          JsonObject fields = (JsonObject)row;
+          rows.add(new RawViewRow(null, toJson(fields.getValue("key")), toJson(fields.getValue("value"))));
+        }
+        addErrors(response, errors);
+      }
+      return new ViewResponseReduced(rows, errors);
+    }
+  }
+
+  /**
+   * Row of a view query, unlike the rows of the stock client the string "null" isn't
+   * read as a null document id, key or value
+   */
+  private static class RawViewRow implements ViewRow {
+
+    private final String id;
+    private final String key;
+    private final String value;
+
+    RawViewRow(String id, String key, String value) {
+      this.id = id;
+      this.key = key;
+      this.value = value;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public String getBbox() {
+      throw new UnsupportedOperationException("not a spatial view row");
+    }
+
+    public String getGeometry() {
+      throw new UnsupportedOperationException("not a spatial view row");
+    }
+
+    public Object getDocument() {
+      throw new UnsupportedOperationException("the documents aren't included");
+    }
+  }
+
+  private static JsonObject parse(String json) throws ParseException {
+    try {
+      return new JsonObject(json);
+    } catch (DecodeException | ClassCastException e) {
+      throw new ParseException("Cannot read json: " + json, 0);
+    }
+  }
+
+  private static void addErrors(JsonObject response, Collection<RowError> errors) {
+    for (Object error : response.getArray("errors", new JsonArray())) {
+      JsonObject fields = (JsonObject)error;
+      errors.add(new RowError(fields.getString("from"), fields.getString("reason")));
+    }
+  }
+
+  private static String toJson(Object value) {
+    if (value instanceof JsonObject) {
+      return ((JsonObject)value).encode();
+    }
+    if (value instanceof JsonArray) {
+      return ((JsonArray)value).encode();
+    }
+    return Json.encode(value);
+  }
+}
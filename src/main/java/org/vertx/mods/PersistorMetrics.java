@@ -0,0 +1,233 @@
+package org.vertx.mods;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+/**
+ * Per action metrics of a persistor instance. Each action gets its own
+ * {@link ActionMetrics}, which is also registered as a JMX MBean.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class PersistorMetrics {
+
+  /**
+   * Default time in milliseconds the recent latencies are kept
+   */
+  public static final long DEFAULT_WINDOW = 60000;
+
+  private final String objectName;
+  private final long windowMillis;
+  private final Logger logger;
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+  private final long startTime = System.currentTimeMillis();
+
+  private final ConcurrentMap<String, ActionMetrics> actions = new ConcurrentHashMap<String, ActionMetrics>();
+  // requests waiting for a reply, messages are compared by identity
+  private final ConcurrentMap<Message<?>, Request> requests = new ConcurrentHashMap<Message<?>, Request>();
+  private final AtomicLong operationsInFlight = new AtomicLong();
+  private final Histogram viewRows = new Histogram();
+  private final AtomicLong coalescedReads = new AtomicLong();
+
+  /**
+   * @param objectName JMX object name prefix, the action is appended to it
+   * @param logger logger to report JMX registration failures
+   */
+  public PersistorMetrics(String objectName, Logger logger) {
+    this(objectName, logger, DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param objectName JMX object name prefix, the action is appended to it
+   * @param logger logger to report JMX registration failures
+   * @param windowMillis time in milliseconds the recent latencies are kept
+   */
+  public PersistorMetrics(String objectName, Logger logger, long windowMillis) {
+    this.objectName = objectName;
+    this.logger = logger;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Starts timing the request of the given action
+   */
+  public void started(Message<?> message, String action) {
+    ActionMetrics metrics = action(action);
+    metrics.inFlight.incrementAndGet();
+    requests.put(message, new Request(metrics, System.nanoTime()));
+  }
+
+  /**
+   * Records the reply of a request, messages that weren't started are ignored
+   */
+  public void completed(Message<?> message, boolean success, boolean timeout) {
+    Request request = requests.remove(message);
+    if (request == null) {
+      return;
+    }
+
+    ActionMetrics metrics = request.metrics;
+    metrics.inFlight.decrementAndGet();
+    metrics.recordLatency(micros(System.nanoTime() - request.start));
+
+    if (success) {
+      metrics.success.incrementAndGet();
+    }
+    else {
+      metrics.error.incrementAndGet();
+      if (timeout) {
+        metrics.timeout.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Gives up on the requests started longer than the given time ago, which won't get a reply,
+   * they are recorded as timed out so they don't stay in flight forever
+   *
+   * @return number of requests given up
+   */
+  public int expire(long maxAgeMillis) {
+    long now = System.nanoTime();
+    long maxAge = maxAgeMillis * 1000000;
+    int expired = 0;
+
+    for (Entry<Message<?>, Request> entry : requests.entrySet()) {
+      Request request = entry.getValue();
+      // the request may be completed in the meantime
+      if (now - request.start > maxAge && requests.remove(entry.getKey(), request)) {
+        ActionMetrics metrics = request.metrics;
+        metrics.inFlight.decrementAndGet();
+        metrics.recordLatency(micros(now - request.start));
+        metrics.error.incrementAndGet();
+        metrics.timeout.incrementAndGet();
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Records a request rejected because its action was overloaded, before it's completed
+   */
+  public void overloaded(Message<?> message) {
+    Request request = requests.get(message);
+    if (request != null) {
+      request.metrics.overloaded.incrementAndGet();
+    }
+  }
+
+  public void operationStarted() {
+    operationsInFlight.incrementAndGet();
+  }
+
+  /**
+   * Records the time a couchbase operation of the request took to complete
+   */
+  public void operationCompleted(Message<?> message, long nanos) {
+    operationsInFlight.decrementAndGet();
+
+    Request request = requests.get(message);
+    if (request != null) {
+      request.metrics.recordCouchbaseLatency(micros(nanos));
+    }
+  }
+
+  /**
+   * Records the time a completed operation waited to be handled in the verticle context
+   */
+  public void queued(Message<?> message, long nanos) {
+    Request request = requests.get(message);
+    if (request != null) {
+      request.metrics.recordQueueLatency(micros(nanos));
+    }
+  }
+
+  public void viewRows(int rows) {
+    viewRows.record(rows);
+  }
+
+  /**
+   * Records a find_by_id that joined the read of the same document already being executed
+   */
+  public void coalescedRead() {
+    coalescedReads.incrementAndGet();
+  }
+
+  public JsonObject snapshot() {
+    long uptime = System.currentTimeMillis() - startTime;
+
+    JsonObject json = new JsonObject();
+    for (Entry<String, ActionMetrics> entry : actions.entrySet()) {
+      json.putObject(entry.getKey(), entry.getValue().toJson(uptime));
+    }
+
+    return new JsonObject()
+      .putNumber("uptime", uptime)
+      .putNumber("operations_in_flight", operationsInFlight.get())
+      .putObject("view_rows", viewRows.toJson(1))
+      .putNumber("coalesced_reads", coalescedReads.get())
+      .putObject("actions", json);
+  }
+
+  /**
+   * Unregisters the MBeans of every action
+   */
+  public void close() {
+    for (String action : actions.keySet()) {
+      try {
+        ObjectName name = new ObjectName(objectName + ",action=" + action);
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+      } catch (JMException e) {
+        logger.warn("Failed to unregister metrics of action " + action, e);
+      }
+    }
+  }
+
+  private ActionMetrics action(String action) {
+    ActionMetrics metrics = actions.get(action);
+    if (metrics != null) {
+      return metrics;
+    }
+
+    metrics = new ActionMetrics(windowMillis);
+    ActionMetrics current = actions.putIfAbsent(action, metrics);
+    if (current != null) {
+      return current;
+    }
+
+    try {
+      server.registerMBean(metrics, new ObjectName(objectName + ",action=" + action));
+    } catch (JMException e) {
+      logger.warn("Failed to register metrics of action " + action, e);
+    }
+    return metrics;
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000;
+  }
+
+  private static class Request {
+    final ActionMetrics metrics;
+    final long start;
+
+    Request(ActionMetrics metrics, long start) {
+      this.metrics = metrics;
+      this.start = start;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.vertx.mods;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Subset of the fields of a document to reply, so just the fields the caller needs
+ * are serialized and sent through the event bus. Fields are given as paths whose
+ * segments are separated by dots, e.g. <code>address.city</code>. A path going
+ * through an array is applied to each object of the array.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class Projection {
+
+  // child projections by field name, null when the whole field is kept
+  private final Map<String, Projection> fields = new LinkedHashMap<String, Projection>();
+
+  private Projection() {
+  }
+
+  /**
+   * Parses the given field paths, null whether there aren't any so documents are kept whole
+   *
+   * @param paths array of field paths, as given in the request
+   * @throws IllegalArgumentException whether the paths aren't an array of strings
+   */
+  public static Projection of(Object paths) {
+    if (paths != null && !(paths instanceof JsonArray)) {
+      throw new IllegalArgumentException("fields must be an array of strings");
+    }
+    if (paths == null || ((JsonArray)paths).size() == 0) {
+      return null;
+    }
+
+    Projection projection = new Projection();
+    for (Object path : (JsonArray)paths) {
+      if (!(path instanceof String)) {
+        throw new IllegalArgumentException("fields must be an array of strings");
+      }
+      projection.add(((String)path).split("\\."), 0);
+    }
+    return projection;
+  }
+
+  private void add(String[] segments, int index) {
+    String field = segments[index];
+
+    if (index == segments.length - 1) {
+      // the whole field wins over any of its nested paths
+      fields.put(field, null);
+      return;
+    }
+    if (fields.containsKey(field) && fields.get(field) == null) {
+      return;
+    }
+
+    Projection child = fields.get(field);
+    if (child == null) {
+      child = new Projection();
+      fields.put(field, child);
+    }
+    child.add(segments, index + 1);
+  }
+
+  /**
+   * Returns a new document with just the projected fields, missing ones are left out
+   */
+  public JsonObject apply(JsonObject document) {
+    JsonObject result = new JsonObject();
+
+    for (Entry<String, Projection> entry : fields.entrySet()) {
+      Object value = document.getValue(entry.getKey());
+      if (value == null && !document.containsField(entry.getKey())) {
+        continue;
+      }
+
+      Projection child = entry.getValue();
+      if (child == null) {
+        result.putValue(entry.getKey(), value);
+      }
+      else if (value instanceof JsonObject) {
+        result.putObject(entry.getKey(), child.apply((JsonObject)value));
+      }
+      else if (value instanceof JsonArray) {
+        result.putArray(entry.getKey(), child.apply((JsonArray)value));
+      }
+    }
+
+    return result;
+  }
+
+  private JsonArray apply(JsonArray array) {
+    JsonArray result = new JsonArray();
+    for (Object element : array) {
+      if (element instanceof JsonObject) {
+        result.addObject(apply((JsonObject)element));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,73 @@
+package org.vertx.mods;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of the values recorded recently, unlike {@link Histogram} which keeps them
+ * all since it was created. Values are recorded in two halves of the window rotated as
+ * time goes by, so a snapshot covers between half and the whole window: a slow interval
+ * shows up in the percentiles as soon as it happens instead of being diluted by the
+ * lifetime samples, and goes away once it's over.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class SlidingHistogram {
+
+  private final long halfWindow;
+
+  private volatile Half current = new Half(System.nanoTime());
+  // the half before the current one, null when it ended longer than half a window ago
+  private volatile Half previous;
+
+  /**
+   * @param windowMillis time in milliseconds the recorded values are kept
+   */
+  public SlidingHistogram(long windowMillis) {
+    this.halfWindow = TimeUnit.MILLISECONDS.toNanos(windowMillis) / 2;
+  }
+
+  public void record(long value) {
+    current(System.nanoTime()).histogram.record(value);
+  }
+
+  /**
+   * Returns a histogram with the values recorded within the window
+   */
+  public Histogram snapshot() {
+    Half half = current(System.nanoTime());
+    Half before = previous;
+
+    Histogram snapshot = new Histogram();
+    if (before != null) {
+      snapshot.add(before.histogram);
+    }
+    snapshot.add(half.histogram);
+    return snapshot;
+  }
+
+  private Half current(long now) {
+    Half half = current;
+    if (now - half.start < halfWindow) {
+      return half;
+    }
+
+    synchronized (this) {
+      half = current;
+      if (now - half.start >= halfWindow) {
+        previous = now - half.start < 2 * halfWindow ? half : null;
+        half = new Half(now);
+        current = half;
+      }
+      return half;
+    }
+  }
+
+  private static class Half {
+    final long start;
+    final Histogram histogram = new Histogram();
+
+    Half(long start) {
+      this.start = start;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.vertx.mods;
+
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.ViewRow;
+
+/**
+ * Position of the last row of a find_by_view page, handed to the caller as an opaque
+ * string so the next page starts right after it. The next page starts at the key and
+ * document id of that row skipping just the row itself, so deep pages cost the same
+ * as the first one instead of walking every skipped row.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class ViewCursor {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // json text of the row key
+  private final String key;
+  private final String id;
+
+  private ViewCursor(String key, String id) {
+    this.key = key;
+    this.id = id;
+  }
+
+  /**
+   * Builds the cursor of the row with the given decoded key and document id
+   */
+  public static String encode(Object key, String id) {
+    return encodeJson(toJson(key), id);
+  }
+
+  /**
+   * Builds the cursor of a row read by {@link PersistorClient#asyncQueryRaw}, whose key is
+   * kept as json text. Decoding the key first would turn string keys such as "42" into
+   * numbers, and the next page would start at the wrong row.
+   */
+  public static String encode(ViewRow row) {
+    return encodeJson(row.getKey(), row.getId());
+  }
+
+  private static String encodeJson(String key, String id) {
+    JsonObject json = new JsonObject().putString("key", key).putString("id", id);
+    return Base64.encodeBase64URLSafeString(json.encode().getBytes(UTF8));
+  }
+
+  /**
+   * @throws IllegalArgumentException whether the cursor wasn't built by {@link #encode(Object, String)}
+   */
+  public static ViewCursor decode(String cursor) {
+    try {
+      JsonObject json = new JsonObject(new String(Base64.decodeBase64(cursor), UTF8));
+      String key = json.getString("key");
+      String id = json.getString("id");
+      if (key != null && id != null) {
+        return new ViewCursor(key, id);
+      }
+    } catch (DecodeException | ClassCastException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("invalid cursor");
+  }
+
+  /**
+   * Makes the query start right after the row of the cursor
+   */
+  public void apply(Query query) {
+    query.setRangeStart(ViewQueryBuilder.jsonKey(key));
+    query.setStartkeyDocID(id);
+    query.setSkip(1);
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  private static String toJson(Object key) {
+    if (key instanceof JsonObject) {
+      return ((JsonObject)key).encode();
+    }
+    if (key instanceof JsonArray) {
+      return ((JsonArray)key).encode();
+    }
+    return Json.encode(key);
+  }
+}
@@ -0,0 +1,175 @@
+package org.vertx.mods;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import com.couchbase.client.protocol.views.ComplexKey;
+import com.couchbase.client.protocol.views.OnError;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.Stale;
+
+/**
+ * Builds couchbase view queries from the json query document of find_by_view.
+ * Every supported parameter is mapped to a precompiled setter so no reflection
+ * is involved when a query is built.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class ViewQueryBuilder {
+
+  private static final Map<String, Setter> SETTERS = new HashMap<String, Setter>();
+
+  static {
+    SETTERS.put("reduce", new Setter() {
+      void set(Query query, Object value) {
+        query.setReduce((Boolean)value);
+      }
+    });
+    SETTERS.put("limit", new Setter() {
+      void set(Query query, Object value) {
+        query.setLimit(((Number)value).intValue());
+      }
+    });
+    SETTERS.put("group", new Setter() {
+      void set(Query query, Object value) {
+        query.setGroup((Boolean)value);
+      }
+    });
+    SETTERS.put("groupLevel", new Setter() {
+      void set(Query query, Object value) {
+        query.setGroupLevel(((Number)value).intValue());
+      }
+    });
+    SETTERS.put("includeDocs", new Setter() {
+      void set(Query query, Object value) {
+        query.setIncludeDocs((Boolean)value);
+      }
+    });
+    SETTERS.put("inclusiveEnd", new Setter() {
+      void set(Query query, Object value) {
+        query.setInclusiveEnd((Boolean)value);
+      }
+    });
+    SETTERS.put("skip", new Setter() {
+      void set(Query query, Object value) {
+        query.setSkip(((Number)value).intValue());
+      }
+    });
+    SETTERS.put("stale", new Setter() {
+      void set(Query query, Object value) {
+        query.setStale(Stale.valueOf((String)value));
+      }
+    });
+    SETTERS.put("onError", new Setter() {
+      void set(Query query, Object value) {
+        query.setOnError(OnError.valueOf((String)value));
+      }
+    });
+    SETTERS.put("debug", new Setter() {
+      void set(Query query, Object value) {
+        query.setDebug((Boolean)value);
+      }
+    });
+    SETTERS.put("descending", new Setter() {
+      void set(Query query, Object value) {
+        query.setDescending((Boolean)value);
+      }
+    });
+    SETTERS.put("key", new Setter() {
+      void set(Query query, Object value) {
+        query.setKey(jsonKey(Json.encode(value)));
+      }
+    });
+    SETTERS.put("keys", new Setter() {
+      void set(Query query, Object value) {
+        if (value instanceof String) {
+          query.setKeys((String)value);
+        }
+        else {
+          query.setKeys(jsonKey(Json.encode(value)));
+        }
+      }
+    });
+    SETTERS.put("startkeyDocID", new Setter() {
+      void set(Query query, Object value) {
+        query.setStartkeyDocID((String)value);
+      }
+    });
+    SETTERS.put("endkeyDocID", new Setter() {
+      void set(Query query, Object value) {
+        query.setEndkeyDocID((String)value);
+      }
+    });
+    SETTERS.put("rangeStart", new Setter() {
+      void set(Query query, Object value) {
+        query.setRangeStart(jsonKey(Json.encode(value)));
+      }
+    });
+    SETTERS.put("rangeEnd", new Setter() {
+      void set(Query query, Object value) {
+        query.setRangeEnd(jsonKey(Json.encode(value)));
+      }
+    });
+  }
+
+  /**
+   * Builds the couchbase query for the given json query parameters
+   *
+   * @param json query parameters, see the README.md for the supported ones
+   * @return the couchbase query
+   * @throws IllegalArgumentException whether a parameter isn't supported or its value is invalid
+   */
+  public static Query build(JsonObject json) {
+    Query query = new Query();
+
+    for (Entry<String, Object> entry : json.toMap().entrySet()) {
+      Setter setter = SETTERS.get(entry.getKey());
+
+      if (setter == null) {
+        throw new IllegalArgumentException("Invalid query parameter: " + entry.getKey());
+      }
+
+      try {
+        setter.set(query, entry.getValue());
+      } catch (ClassCastException | NullPointerException e) {
+        throw new IllegalArgumentException("Invalid value for query parameter: " + entry.getKey());
+      }
+    }
+
+    return query;
+  }
+
+  /**
+   * Key sent as the given json text as is. The string setters of the query guess whether
+   * to quote a value by its text, so strings looking like numbers (e.g. "1e-5") would be
+   * sent unquoted and long numbers reformatted, the json type of the key is kept instead.
+   */
+  public static ComplexKey jsonKey(String json) {
+    return ComplexKey.of(new JsonText(json));
+  }
+
+  /**
+   * Single key component written as its json text, which is what the complex key uses for
+   * components that aren't strings
+   */
+  private static class JsonText {
+    private final String json;
+
+    JsonText(String json) {
+      this.json = json;
+    }
+
+    @Override
+    public String toString() {
+      return json;
+    }
+  }
+
+  private static abstract class Setter {
+    abstract void set(Query query, Object value);
+  }
+}
@@ -0,0 +1,140 @@
+package org.vertx.mods;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+/**
+ * Bounded in-process cache of find_by_view replies, for queries that accept stale
+ * results anyway. Entries are evicted in least recently used order once the max
+ * size is reached and expire after the configured time to live.
+ * <p>
+ * Identical queries issued while one of them is being executed wait for its reply
+ * instead of running again, so the view load doesn't grow with the number of callers.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class ViewResultCache<W> {
+
+  private final long ttl;
+  private final Map<String, Entry> entries;
+  // waiters of the queries being executed by key, the executing one isn't included
+  private final Map<String, List<W>> inFlight = new HashMap<String, List<W>>();
+
+  /**
+   * @param maxSize max number of replies kept in the cache
+   * @param ttl time in milliseconds a reply is valid, 0 means no expiration
+   */
+  public ViewResultCache(final int maxSize, long ttl) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Normalized key of a query, parameters given in a different order lead to the same key
+   *
+   * @param fields projected fields, may be null
+   * @param cursor position the page starts from, may be null
+   */
+  public static String key(String designDoc, String viewName, String resultMode, JsonObject query, JsonArray fields, String cursor) {
+    StringBuilder key = new StringBuilder();
+    key.append(designDoc).append('/').append(viewName).append('/').append(resultMode).append('/');
+    key.append(Json.encode(sorted(query.toMap())));
+    key.append('/').append(fields != null ? fields.encode() : "");
+    key.append('/').append(cursor != null ? cursor : "");
+    return key.toString();
+  }
+
+  /**
+   * Returns the cached reply for the given key, null whether it isn't cached or expired
+   */
+  public synchronized JsonObject get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() >= entry.expiresAt) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.reply;
+  }
+
+  /**
+   * Registers a query about to be executed
+   *
+   * @return true whether the caller has to execute it, false whether an identical
+   * query is already being executed and the waiter will get its reply
+   */
+  public synchronized boolean join(String key, W waiter) {
+    List<W> waiters = inFlight.get(key);
+    if (waiters == null) {
+      inFlight.put(key, new ArrayList<W>());
+      return true;
+    }
+    waiters.add(waiter);
+    return false;
+  }
+
+  /**
+   * Completes an executed query, caching its reply unless it's null because the query failed
+   *
+   * @return the waiters of the query, to be replied by the caller
+   */
+  public synchronized List<W> complete(String key, JsonObject reply) {
+    if (reply != null) {
+      long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+      entries.put(key, new Entry(reply, expiresAt));
+    }
+    List<W> waiters = inFlight.remove(key);
+    return waiters != null ? waiters : Collections.<W>emptyList();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object sorted(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<String, Object>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>)value).entrySet()) {
+        sorted.put(entry.getKey(), sorted(entry.getValue()));
+      }
+      return sorted;
+    }
+    if (value instanceof List) {
+      List<Object> list = new ArrayList<Object>();
+      for (Object element : (List<Object>)value) {
+        list.add(sorted(element));
+      }
+      return list;
+    }
+    return value;
+  }
+
+  private static class Entry {
+    final JsonObject reply;
+    final long expiresAt;
+
+    Entry(JsonObject reply, long expiresAt) {
+      this.reply = reply;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.vertx.mods;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Buffers the unconditional writes of a document for a short window, so a burst of
+ * saves of the same id ends up as a single write of its latest version. A batch is
+ * flushed once the window elapses or it reaches the max number of writes, and every
+ * writer waiting on it is handed over to the flush handler to get the reply.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class WriteCoalescer<T> {
+
+  private final Vertx vertx;
+  private final long window;
+  private final int batchSize;
+  private final Handler<Batch<T>> flusher;
+
+  // batches waiting to be flushed by document id
+  private final Map<String, Batch<T>> pending = new HashMap<String, Batch<T>>();
+
+  /**
+   * @param vertx vertx instance whose timers close the windows
+   * @param window time in milliseconds the writes of a document are buffered
+   * @param batchSize max number of writes buffered per document, 0 means no limit
+   * @param flusher handler that writes the batches
+   */
+  public WriteCoalescer(Vertx vertx, long window, int batchSize, Handler<Batch<T>> flusher) {
+    this.vertx = vertx;
+    this.window = window;
+    this.batchSize = batchSize;
+    this.flusher = flusher;
+  }
+
+  /**
+   * Buffers a write, replacing the version buffered for the same id
+   *
+   * @param writer who is waiting for the write to complete
+   */
+  public void add(final String id, JsonObject document, int expiration, T writer) {
+    Batch<T> full = null;
+
+    synchronized (this) {
+      Batch<T> batch = pending.get(id);
+      if (batch == null) {
+        batch = new Batch<T>(id);
+        pending.put(id, batch);
+        final Batch<T> scheduled = batch;
+        batch.timerId = vertx.setTimer(window, new Handler<Long>() {
+          public void handle(Long timerId) {
+            flush(scheduled);
+          }
+        });
+      }
+
+      batch.document = document;
+      batch.expiration = expiration;
+      batch.writers.add(writer);
+
+      if (batchSize > 0 && batch.writers.size() >= batchSize) {
+        pending.remove(id);
+        vertx.cancelTimer(batch.timerId);
+        full = batch;
+      }
+    }
+
+    if (full != null) {
+      flusher.handle(full);
+    }
+  }
+
+  /**
+   * Flushes right away the writes buffered for the given id, if any, so that
+   * other operations on the document are applied after them
+   */
+  public void flush(String id) {
+    Batch<T> batch;
+    synchronized (this) {
+      batch = pending.remove(id);
+      if (batch != null) {
+        vertx.cancelTimer(batch.timerId);
+      }
+    }
+
+    if (batch != null) {
+      flusher.handle(batch);
+    }
+  }
+
+  /**
+   * Flushes every buffered write, used when the persistor is stopped
+   */
+  public void flushAll() {
+    List<Batch<T>> batches;
+    synchronized (this) {
+      batches = new ArrayList<Batch<T>>(pending.values());
+      pending.clear();
+      for (Batch<T> batch : batches) {
+        vertx.cancelTimer(batch.timerId);
+      }
+    }
+
+    for (Batch<T> batch : batches) {
+      flusher.handle(batch);
+    }
+  }
+
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  private void flush(Batch<T> batch) {
+    synchronized (this) {
+      // the batch could have been flushed already because of its size
+      if (pending.get(batch.id) != batch) {
+        return;
+      }
+      pending.remove(batch.id);
+    }
+    flusher.handle(batch);
+  }
+
+  /**
+   * Latest version of a document along with the writers waiting for it
+   */
+  public static class Batch<T> {
+
+    private final String id;
+    private final List<T> writers = new ArrayList<T>();
+    private JsonObject document;
+    private int expiration;
+    private long timerId;
+
+    Batch(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public JsonObject getDocument() {
+      return document;
+    }
+
+    public int getExpiration() {
+      return expiration;
+    }
+
+    public List<T> getWriters() {
+      return writers;
+    }
+  }
+}
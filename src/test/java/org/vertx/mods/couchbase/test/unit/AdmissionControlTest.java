@@ -0,0 +1,65 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.AdmissionControl;
+import org.vertx.mods.AdmissionControl.Admission;
+
+/**
+ * Unit tests for the admission control
+ */
+public class AdmissionControlTest {
+
+  @Test
+  public void testRequestsOverTheLimitAreQueuedThenRejected() {
+    AdmissionControl<String> admission = new AdmissionControl<String>(2, null, 1);
+
+    assertEquals(Admission.ADMITTED, admission.admit("save", "a"));
+    assertEquals(Admission.ADMITTED, admission.admit("save", "b"));
+    assertEquals(Admission.QUEUED, admission.admit("save", "c"));
+    assertEquals(Admission.REJECTED, admission.admit("save", "d"));
+
+    // every action has its own slots
+    assertEquals(Admission.ADMITTED, admission.admit("find_by_id", "e"));
+
+    assertEquals(2, admission.inFlight("save"));
+    assertEquals(1, admission.queued("save"));
+  }
+
+  @Test
+  public void testReleasedSlotsGoToTheQueuedRequests() {
+    AdmissionControl<String> admission = new AdmissionControl<String>(1, null, 2);
+
+    admission.admit("save", "a");
+    admission.admit("save", "b");
+    admission.admit("save", "c");
+
+    assertEquals("b", admission.release("a"));
+    assertEquals(1, admission.inFlight("save"));
+    assertEquals("c", admission.release("b"));
+    assertNull(admission.release("c"));
+    assertEquals(0, admission.inFlight("save"));
+
+    // requests without a slot are ignored
+    assertNull(admission.release("c"));
+    assertNull(admission.release("unknown"));
+    assertEquals(0, admission.inFlight("save"));
+    assertEquals(Admission.ADMITTED, admission.admit("save", "d"));
+  }
+
+  @Test
+  public void testPerActionLimits() {
+    AdmissionControl<String> admission = new AdmissionControl<String>(0, new JsonObject().putNumber("find_by_view", 1), 0);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Admission.ADMITTED, admission.admit("find_by_id", "id" + i));
+    }
+    assertEquals(0, admission.inFlight("find_by_id"));
+
+    assertEquals(Admission.ADMITTED, admission.admit("find_by_view", "a"));
+    assertEquals(Admission.REJECTED, admission.admit("find_by_view", "b"));
+  }
+}
@@ -0,0 +1,100 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the aggregated counter writes against the in-process couchbase stand-in,
+ * which can fail the counter operations temporarily
+ */
+public class AggregatedCounterTest {
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testTemporaryFailureRetried() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("counter_flush_interval", 100));
+    persistor.standIn().failCounter("retried", 2);
+
+    for (int i = 0; i < 5; i++) {
+      assertOK(persistor.send(increment("retried")));
+    }
+
+    // the first two writes fail, the third one after 100 and 200ms of delay succeeds
+    assertEquals("5", awaitCounter("retried", 3000));
+  }
+
+  @Test
+  public void testDroppedAfterMaxAttempts() throws Exception {
+    // the threshold writes the delta right away, the failed writes must not do it again and again
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("counter_flush_interval", 100)
+      .putNumber("counter_flush_threshold", 3));
+    persistor.standIn().failCounter("dropped", 1000);
+
+    for (int i = 0; i < 3; i++) {
+      assertOK(persistor.send(increment("dropped")));
+    }
+
+    // five attempts take 1.5s of delays, afterwards the delta is given up
+    Thread.sleep(2500);
+    persistor.standIn().failCounter("dropped", 0);
+    Thread.sleep(500);
+    assertNull(persistor.client().get("dropped"));
+
+    // later deltas are written on their own
+    assertOK(persistor.send(increment("dropped")));
+    assertEquals("1", awaitCounter("dropped", 3000));
+  }
+
+  @Test
+  public void testStopWritesPendingDeltas() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("counter_flush_interval", 60000));
+
+    for (int i = 0; i < 7; i++) {
+      assertOK(persistor.send(increment("stopped")));
+    }
+    assertNull(persistor.client().get("stopped"));
+
+    final CountDownLatch undeployed = new CountDownLatch(1);
+    persistor.platform().undeployAll(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        undeployed.countDown();
+      }
+    });
+    assertTrue(undeployed.await(10, TimeUnit.SECONDS));
+
+    // written before the persistor clients were shut down
+    assertEquals("7", persistor.client().get("stopped"));
+  }
+
+  private Object awaitCounter(String key, long timeout) throws Exception {
+    long deadline = System.currentTimeMillis() + timeout;
+    Object value = persistor.client().get(key);
+    while (value == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      value = persistor.client().get(key);
+    }
+    return value;
+  }
+
+  private static JsonObject increment(String key) {
+    return new JsonObject().putString("action", "counter").putString("key", key).putString("operation", "increment")
+      .putNumber("by", 1).putNumber("default", 0).putBoolean("aggregate", true);
+  }
+}
@@ -0,0 +1,141 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the bulk_touch, bulk_lock and bulk_unlock actions against the in-process
+ * couchbase stand-in
+ */
+public class BulkKeysTest {
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Before
+  public void load() throws Exception {
+    persistor.standIn().clear();
+    for (String id : new String[] { "a", "b" }) {
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", id).putString("name", "name " + id))));
+    }
+  }
+
+  @Test
+  public void testBulkTouch() throws Exception {
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "bulk_touch")
+      .putArray("keys", new JsonArray().addString("a").addString("b").addString("missing")).putNumber("expiration", 3600));
+    assertOK(reply);
+    assertEquals(1, reply.getInteger("failed").intValue());
+
+    JsonObject results = reply.getObject("results");
+    assertEquals(3, results.size());
+    assertEquals("ok", results.getObject("a").getString("status"));
+    assertEquals("ok", results.getObject("b").getString("status"));
+    assertEquals("error", results.getObject("missing").getString("status"));
+    assertNotNull(persistor.client().get("a"));
+  }
+
+  @Test
+  public void testBulkLockAndUnlock() throws Exception {
+    JsonObject reply = persistor.send(bulkLock("a", "b", "missing").putArray("fields", new JsonArray().addString("name")));
+    assertOK(reply);
+    assertEquals(1, reply.getInteger("failed").intValue());
+
+    JsonObject results = reply.getObject("results");
+    assertEquals("error", results.getObject("missing").getString("status"));
+    JsonObject a = results.getObject("a");
+    assertEquals("ok", a.getString("status"));
+    assertEquals(new JsonObject().putString("name", "name a"), a.getObject("document"));
+    long casA = a.getLong("cas");
+    long casB = results.getObject("b").getLong("cas");
+
+    // locked keys can't be locked again
+    reply = persistor.send(bulkLock("a"));
+    assertEquals(1, reply.getInteger("failed").intValue());
+
+    reply = persistor.send(new JsonObject().putString("action", "bulk_unlock").putArray("keys", new JsonArray()
+      .addObject(new JsonObject().putString("key", "a").putNumber("cas", casA))
+      .addObject(new JsonObject().putString("key", "b").putNumber("cas", casB + 1))
+      .addObject(new JsonObject().putString("key", "missing").putNumber("cas", 1))));
+    assertOK(reply);
+    assertEquals(2, reply.getInteger("failed").intValue());
+    results = reply.getObject("results");
+    assertEquals("ok", results.getObject("a").getString("status"));
+    assertEquals("error", results.getObject("b").getString("status"));
+    assertEquals("error", results.getObject("missing").getString("status"));
+
+    // a is unlocked while the wrong cas left b locked
+    reply = persistor.send(bulkLock("a", "b"));
+    assertEquals("ok", reply.getObject("results").getObject("a").getString("status"));
+    assertEquals("error", reply.getObject("results").getObject("b").getString("status"));
+  }
+
+  @Test
+  public void testDuplicateKeys() throws Exception {
+    // a repeated key is locked once, so the second lock doesn't fail on the first one
+    JsonObject reply = persistor.send(bulkLock("a", "a", "b", "a"));
+    assertOK(reply);
+    assertEquals(0, reply.getInteger("failed").intValue());
+    assertEquals(2, reply.getObject("results").size());
+
+    long cas = reply.getObject("results").getObject("a").getLong("cas");
+    JsonObject unlock = new JsonObject().putString("key", "a").putNumber("cas", cas);
+    reply = persistor.send(new JsonObject().putString("action", "bulk_unlock")
+      .putArray("keys", new JsonArray().addObject(unlock).addObject(unlock.copy())));
+    assertOK(reply);
+    assertEquals(0, reply.getInteger("failed").intValue());
+    assertEquals(1, reply.getObject("results").size());
+  }
+
+  @Test
+  public void testEmptyKeys() throws Exception {
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "bulk_touch").putArray("keys", new JsonArray()));
+    assertOK(reply);
+    assertEquals(0, reply.getInteger("failed").intValue());
+    assertEquals(0, reply.getObject("results").size());
+  }
+
+  @Test
+  public void testInvalidRequests() throws Exception {
+    assertError(persistor.send(new JsonObject().putString("action", "bulk_touch")));
+    assertError(persistor.send(new JsonObject().putString("action", "bulk_lock")
+      .putArray("keys", new JsonArray().addString("a").addNumber(1))));
+    assertError(persistor.send(new JsonObject().putString("action", "bulk_unlock")
+      .putArray("keys", new JsonArray().addString("a"))));
+    assertError(persistor.send(new JsonObject().putString("action", "bulk_unlock")
+      .putArray("keys", new JsonArray().addObject(new JsonObject().putString("key", "a")))));
+
+    // nothing was locked by the invalid requests
+    JsonObject reply = persistor.send(bulkLock("a"));
+    assertEquals(0, reply.getInteger("failed").intValue());
+    assertNull(reply.getString("message"));
+  }
+
+  private static JsonObject bulkLock(String... keys) {
+    JsonArray array = new JsonArray();
+    for (String key : keys) {
+      array.addString(key);
+    }
+    return new JsonObject().putString("action", "bulk_lock").putArray("keys", array);
+  }
+}
@@ -0,0 +1,126 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the bulk_store action against the in-process couchbase stand-in
+ */
+public class BulkStoreTest {
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testSharedOperation() throws Exception {
+    JsonArray documents = new JsonArray();
+    for (int i = 0; i < 50; i++) {
+      documents.add(entry(new JsonObject().putString("id", "shared" + i).putNumber("n", i)));
+    }
+
+    JsonObject reply = bulkStore("insert", documents);
+    assertOK(reply);
+    assertEquals(0, reply.getInteger("failed").intValue());
+
+    JsonArray results = reply.getArray("results");
+    assertEquals(50, results.size());
+    for (int i = 0; i < 50; i++) {
+      JsonObject result = results.get(i);
+      assertEquals("shared" + i, result.getString("id"));
+      assertEquals("ok", result.getString("status"));
+    }
+    assertEquals("{\"id\":\"shared7\",\"n\":7}", persistor.client().get("shared7"));
+  }
+
+  @Test
+  public void testMixedOperations() throws Exception {
+    assertOK(bulkStore("insert", new JsonArray()
+      .add(entry(new JsonObject().putString("id", "mixed-update")))
+      .add(entry(new JsonObject().putString("id", "mixed-delete")))));
+
+    JsonArray documents = new JsonArray()
+      .add(entry(new JsonObject().putString("id", "mixed-update").putNumber("n", 1)).putString("operation", "update"))
+      .add(entry(new JsonObject().putString("id", "mixed-delete")).putString("operation", "delete"))
+      .add(entry(new JsonObject().putString("id", "mixed-missing")).putString("operation", "update"))
+      .add(new JsonObject().putString("operation", "save"))
+      .add(entry(new JsonObject().putString("id", "mixed-invalid")).putString("operation", "upsert"));
+
+    JsonObject reply = bulkStore(null, documents);
+    assertOK(reply);
+    assertEquals(3, reply.getInteger("failed").intValue());
+
+    JsonArray results = reply.getArray("results");
+    assertEquals("ok", ((JsonObject) results.get(0)).getString("status"));
+    assertEquals("ok", ((JsonObject) results.get(1)).getString("status"));
+    assertEquals("mixed-missing", ((JsonObject) results.get(2)).getString("id"));
+    assertEquals("error", ((JsonObject) results.get(2)).getString("status"));
+    assertEquals("error", ((JsonObject) results.get(3)).getString("status"));
+    assertEquals("error", ((JsonObject) results.get(4)).getString("status"));
+
+    assertEquals("{\"id\":\"mixed-update\",\"n\":1}", persistor.client().get("mixed-update"));
+    assertNull(persistor.client().get("mixed-delete"));
+  }
+
+  @Test
+  public void testInvalidEntries() throws Exception {
+    // the invalid entries don't stop the valid ones around them, issued before or after
+    JsonArray documents = new JsonArray()
+      .add(entry(new JsonObject().putString("id", "invalid-before")))
+      .add(new JsonObject().putString("document", "not an object"))
+      .add(new JsonObject().putObject("document", new JsonObject()).putNumber("operation", 1))
+      .add(entry(new JsonObject().putNumber("id", 1)))
+      .add(entry(new JsonObject().putString("id", "invalid-cas")).putString("cas", "1"))
+      .add(entry(new JsonObject().putString("id", "invalid-expiration")).putArray("expiration", new JsonArray()))
+      .add("not an entry")
+      .add(entry(new JsonObject().putString("id", "invalid-after")));
+
+    JsonObject reply = bulkStore("save", documents);
+    assertOK(reply);
+    assertEquals(6, reply.getInteger("failed").intValue());
+
+    JsonArray results = reply.getArray("results");
+    assertEquals("ok", ((JsonObject) results.get(0)).getString("status"));
+    assertEquals("document and a valid operation must be specified", ((JsonObject) results.get(1)).getString("message"));
+    assertEquals("document and a valid operation must be specified", ((JsonObject) results.get(2)).getString("message"));
+    assertEquals("id must be a string", ((JsonObject) results.get(3)).getString("message"));
+    assertEquals("cas must be a number", ((JsonObject) results.get(4)).getString("message"));
+    assertEquals("expiration must be a number", ((JsonObject) results.get(5)).getString("message"));
+    assertEquals("document and a valid operation must be specified", ((JsonObject) results.get(6)).getString("message"));
+    assertEquals("ok", ((JsonObject) results.get(7)).getString("status"));
+
+    assertEquals("{\"id\":\"invalid-before\"}", persistor.client().get("invalid-before"));
+    assertEquals("{\"id\":\"invalid-after\"}", persistor.client().get("invalid-after"));
+    assertNull(persistor.client().get("invalid-cas"));
+  }
+
+  @Test
+  public void testDocumentsMandatory() throws Exception {
+    assertError(persistor.send(new JsonObject().putString("action", "bulk_store")));
+  }
+
+  private static JsonObject bulkStore(String operation, JsonArray documents) throws Exception {
+    return persistor.send(new JsonObject().putString("action", "bulk_store").putString("operation", operation)
+      .putArray("documents", documents));
+  }
+
+  private static JsonObject entry(JsonObject document) {
+    return new JsonObject().putObject("document", document);
+  }
+}
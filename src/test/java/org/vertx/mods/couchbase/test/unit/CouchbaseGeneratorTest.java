@@ -0,0 +1,77 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the bucket and views initialization against the in-process couchbase stand-in,
+ * restarting the module must not update an unchanged bucket nor upload unchanged views
+ */
+public class CouchbaseGeneratorTest {
+
+  private static final String BY_NAME = "function (doc, meta) { emit(doc.name, null); }";
+  private static final String BY_AGE = "function (doc, meta) { emit(doc.age, null); }";
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testRestartKeepsBucketAndViews() throws Exception {
+    persistor = StandInPersistor.deploy(init(BY_NAME, 512));
+    assertEquals(0, persistor.standIn().bucketUpdates());
+    assertEquals(1, persistor.standIn().designDocUploads());
+    assertEquals(BY_NAME, map("by_name"));
+
+    // surrounding whitespace isn't a change of the view
+    persistor.deployAgain(init("  " + BY_NAME + "\n", 512).putString("address", "test.persistor.restarted"));
+    assertEquals(0, persistor.standIn().bucketUpdates());
+    assertEquals(1, persistor.standIn().designDocUploads());
+
+    assertOK(persistor.send(new JsonObject().putString("action", "save")
+      .putObject("document", new JsonObject().putString("id", "initialized"))));
+  }
+
+  @Test
+  public void testChangesUpdated() throws Exception {
+    persistor = StandInPersistor.deploy(init(BY_NAME, 512));
+
+    persistor.deployAgain(init(BY_AGE, 256).putString("address", "test.persistor.changed"));
+    assertEquals(1, persistor.standIn().bucketUpdates());
+    assertEquals(2, persistor.standIn().designDocUploads());
+    assertEquals(BY_AGE, map("by_name"));
+
+    // the bucket and the views are up to date with the last changes
+    persistor.deployAgain(init(BY_AGE, 256).putString("address", "test.persistor.unchanged"));
+    assertEquals(1, persistor.standIn().bucketUpdates());
+    assertEquals(2, persistor.standIn().designDocUploads());
+  }
+
+  private String map(String view) {
+    return persistor.standIn().designDoc("users").getObject("views").getObject(view).getString("map");
+  }
+
+  private static JsonObject init(String function, int memorySize) {
+    JsonObject view = new JsonObject()
+      .putString("name", "by_name")
+      .putString("designDoc", "users")
+      .putString("mode", "production")
+      .putString("function", function);
+
+    return new JsonObject()
+      .putBoolean("init", true)
+      .putString("username", "Administrator")
+      .putString("password", "password")
+      .putNumber("bucket_memory_size", memorySize)
+      .putNumber("init_timeout", 5000)
+      .putArray("views", new JsonArray().addObject(view));
+  }
+}
@@ -0,0 +1,173 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.CASValue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the basic persistor actions against the in-process couchbase stand-in
+ */
+public class CouchbasePersistorTest {
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testInsertSaveUpdateDelete() throws Exception {
+    assertOK(store("insert", new JsonObject().putString("id", "crud").putNumber("n", 1)));
+    assertError(store("insert", new JsonObject().putString("id", "crud").putNumber("n", 2)));
+
+    assertOK(store("save", new JsonObject().putString("id", "crud").putNumber("n", 3)));
+    assertEquals(3, findById("crud").getInteger("n").intValue());
+
+    assertOK(store("update", new JsonObject().putString("id", "crud").putNumber("n", 4)));
+    assertError(store("update", new JsonObject().putString("id", "crud-missing").putNumber("n", 4)));
+    assertEquals(4, findById("crud").getInteger("n").intValue());
+
+    assertOK(store("delete", new JsonObject().putString("id", "crud")));
+    assertError(findById("crud"));
+  }
+
+  @Test
+  public void testSaveGeneratesId() throws Exception {
+    JsonObject reply = store("save", new JsonObject().putString("name", "no id"));
+    assertOK(reply);
+
+    assertEquals("no id", findById(reply.getString("id")).getString("name"));
+  }
+
+  @Test
+  public void testCas() throws Exception {
+    assertOK(store("save", new JsonObject().putString("id", "cas").putNumber("n", 1)));
+    long cas = persistor.client().gets("cas").getCas();
+
+    JsonObject reply = persistor.send(cas("cas", cas, 2));
+    assertOK(reply);
+    assertEquals("cas", reply.getString("key"));
+    assertEquals(2, findById("cas").getInteger("n").intValue());
+
+    // the cas changed with the previous write
+    assertError(persistor.send(cas("cas", cas, 3)));
+    assertEquals(2, findById("cas").getInteger("n").intValue());
+  }
+
+  @Test
+  public void testConcurrentCasAllReplied() throws Exception {
+    int count = 200;
+    long[] cas = new long[count];
+    for (int i = 0; i < count; i++) {
+      assertOK(store("save", new JsonObject().putString("id", "concurrent-cas-" + i).putNumber("n", i)));
+      cas[i] = persistor.client().gets("concurrent-cas-" + i).getCas();
+    }
+
+    final AtomicInteger ok = new AtomicInteger();
+    final CountDownLatch replied = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, cas("concurrent-cas-" + i, cas[i], -1),
+        new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> reply) {
+            if ("ok".equals(reply.body().getString("status"))) {
+              ok.incrementAndGet();
+            }
+            replied.countDown();
+          }
+        });
+    }
+
+    assertTrue(replied.await(10, TimeUnit.SECONDS));
+    assertEquals(count, ok.get());
+  }
+
+  @Test
+  public void testCounter() throws Exception {
+    JsonObject reply = persistor.send(counter("counter", "increment", 5, 10));
+    assertOK(reply);
+    assertEquals(10, reply.getLong("counter").longValue());
+
+    reply = persistor.send(counter("counter", "increment", 5, 10));
+    assertEquals(15, reply.getLong("counter").longValue());
+
+    reply = persistor.send(counter("counter", "decrement", 20, 0));
+    assertEquals(0, reply.getLong("counter").longValue());
+
+    assertError(persistor.send(counter("counter", "multiply", 2, 0)));
+  }
+
+  @Test
+  public void testTouch() throws Exception {
+    assertOK(store("save", new JsonObject().putString("id", "touch")));
+
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "touch").putString("key", "touch").putNumber("expiration", 100));
+    assertOK(reply);
+    assertEquals("touch", reply.getString("key"));
+
+    assertError(persistor.send(new JsonObject().putString("action", "touch").putString("key", "touch-missing")));
+  }
+
+  @Test
+  public void testUnlock() throws Exception {
+    assertOK(store("save", new JsonObject().putString("id", "unlock").putNumber("n", 1)));
+    CASValue<Object> locked = persistor.client().getAndLock("unlock", 10);
+
+    // the locked document can't be written
+    assertError(store("save", new JsonObject().putString("id", "unlock").putNumber("n", 2)));
+
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "unlock").putString("key", "unlock").putNumber("cas", locked.getCas()));
+    assertOK(reply);
+    assertOK(store("save", new JsonObject().putString("id", "unlock").putNumber("n", 2)));
+
+    assertError(persistor.send(new JsonObject().putString("action", "unlock").putString("key", "unlock")));
+  }
+
+  @Test
+  public void testUnknownAction() throws Exception {
+    assertError(persistor.send(new JsonObject().putString("action", "unknown")));
+  }
+
+  private static JsonObject store(String action, JsonObject document) throws Exception {
+    return persistor.send(new JsonObject().putString("action", action).putObject("document", document));
+  }
+
+  private static JsonObject findById(String id) throws Exception {
+    return persistor.send(new JsonObject().putString("action", "find_by_id").putString("id", id));
+  }
+
+  private static JsonObject cas(String key, long cas, int n) {
+    return new JsonObject().putString("action", "cas").putString("key", key).putNumber("cas", cas)
+      .putString("value", "{\"n\":" + n + "}");
+  }
+
+  private static JsonObject counter(String key, String operation, long by, long def) {
+    return new JsonObject().putString("action", "counter").putString("key", key).putString("operation", operation)
+      .putNumber("by", by).putNumber("default", def);
+  }
+
+  static void assertOK(JsonObject reply) {
+    assertEquals(reply.toString(), "ok", reply.getString("status"));
+  }
+
+  static void assertError(JsonObject reply) {
+    assertEquals(reply.toString(), "error", reply.getString("status"));
+  }
+}
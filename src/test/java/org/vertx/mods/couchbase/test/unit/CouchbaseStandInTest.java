@@ -0,0 +1,168 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.PersistTo;
+import net.spy.memcached.ReplicateTo;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.CouchbaseStandIn;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewRow;
+
+/**
+ * Unit tests of the in-process couchbase stand-in through the couchbase client
+ */
+public class CouchbaseStandInTest {
+
+  private static Vertx vertx;
+  private static CouchbaseStandIn standIn;
+  private static CouchbaseClient client;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    int httpPort = freePort();
+    vertx = VertxFactory.newVertx();
+    standIn = new CouchbaseStandIn(vertx, "127.0.0.1", httpPort, freePort(), "default");
+    standIn.putDesignDoc("docs", new JsonObject("{\"views\":{\"all\":{\"map\":\"function (doc, meta) { emit(meta.id, null); }\"},"
+      + "\"count\":{\"map\":\"function (doc, meta) { emit(meta.id, null); }\",\"reduce\":\"_count\"}}}"));
+
+    final CountDownLatch started = new CountDownLatch(1);
+    standIn.start(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        started.countDown();
+      }
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    client = new CouchbaseClient(Arrays.asList(new URI("http://127.0.0.1:" + httpPort + "/pools")), "default", "");
+  }
+
+  @AfterClass
+  public static void stop() {
+    client.shutdown(5, TimeUnit.SECONDS);
+    standIn.stop();
+    vertx.stop();
+  }
+
+  @Before
+  public void clear() {
+    standIn.clear();
+    standIn.setPersistenceDelay(0);
+  }
+
+  @Test
+  public void testStoreAndGet() throws Exception {
+    assertTrue(client.add("doc1", 0, "{\"a\":1}").get());
+    assertFalse(client.add("doc1", 0, "{\"a\":2}").get());
+    assertTrue(client.set("doc1", 0, "{\"a\":3}", PersistTo.MASTER, ReplicateTo.ZERO).get());
+    assertEquals("{\"a\":3}", client.get("doc1"));
+    assertEquals("{\"a\":3}", client.getsFromReplica("doc1").getValue());
+
+    assertFalse(client.replace("doc2", 0, "{}").get());
+    assertNull(client.get("doc2"));
+
+    assertTrue(client.delete("doc1").get());
+    assertNull(client.get("doc1"));
+  }
+
+  @Test
+  public void testPersistenceDelay() throws Exception {
+    standIn.setPersistenceDelay(200);
+    long start = System.currentTimeMillis();
+    assertTrue(client.set("doc1", 0, "1", PersistTo.MASTER).get());
+    assertTrue(System.currentTimeMillis() - start >= 150);
+
+    // the write is stored, but it never meets its durability requirements
+    standIn.setPersistenceDelay(-1);
+    try {
+      client.set("doc1", 0, "2", PersistTo.MASTER).get();
+      fail("durability requirements met");
+    } catch (RuntimeException e) {
+      // timed out observing the write
+    }
+    assertEquals("2", client.get("doc1"));
+  }
+
+  @Test
+  public void testCasAndLocks() throws Exception {
+    client.set("doc1", 0, "1").get();
+    CASValue<Object> value = client.gets("doc1");
+
+    assertEquals(CASResponse.OK, client.cas("doc1", value.getCas(), "2"));
+    assertEquals(CASResponse.EXISTS, client.cas("doc1", value.getCas(), "3"));
+
+    CASValue<Object> locked = client.getAndLock("doc1", 10);
+    assertEquals("2", locked.getValue());
+    assertFalse(client.set("doc1", 0, "4").get());
+    assertTrue(client.unlock("doc1", locked.getCas()));
+    assertTrue(client.set("doc1", 0, "4").get());
+  }
+
+  @Test
+  public void testCountersAndBulkGet() throws Exception {
+    assertEquals(5, client.incr("counter", 1, 5));
+    assertEquals(7, client.incr("counter", 2, 5));
+    assertEquals(0, client.decr("counter", 10));
+
+    client.set("doc1", 0, "1").get();
+    client.set("doc2", 0, "2").get();
+    Map<String, Object> docs = client.getBulk("doc1", "doc2", "doc3");
+    assertEquals(2, docs.size());
+    assertEquals("2", docs.get("doc2"));
+  }
+
+  @Test
+  public void testViews() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      client.set("doc" + i, 0, "{}").get();
+    }
+
+    View view = client.getView("docs", "all");
+    ViewResponse response = client.query(view, new Query().setRangeStart("doc1").setLimit(2));
+    Iterator<ViewRow> rows = response.iterator();
+    assertEquals("doc1", rows.next().getId());
+    assertEquals("doc2", rows.next().getId());
+    assertFalse(rows.hasNext());
+
+    response = client.query(view, new Query().setDescending(true).setSkip(1));
+    assertEquals(4, response.size());
+    assertEquals("doc3", response.iterator().next().getId());
+
+    response = client.query(client.getView("docs", "count"), new Query().setReduce(true));
+    assertEquals("5", response.iterator().next().getValue());
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
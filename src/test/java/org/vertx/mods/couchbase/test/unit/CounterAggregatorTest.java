@@ -0,0 +1,123 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.mods.CounterAggregator;
+
+/**
+ * Unit tests for the counter aggregator
+ */
+public class CounterAggregatorTest {
+
+  private Map<String, AtomicLong> counters;
+  private AtomicInteger flushes;
+  private CounterAggregator.Flusher flusher;
+
+  @Before
+  public void setUp() {
+    counters = new ConcurrentHashMap<String, AtomicLong>();
+    flushes = new AtomicInteger();
+    flusher = new CounterAggregator.Flusher() {
+      public void flush(String key, long delta, long initial, int expiration) {
+        flushes.incrementAndGet();
+        counters.putIfAbsent(key, new AtomicLong());
+        counters.get(key).addAndGet(delta);
+      }
+    };
+  }
+
+  @Test
+  public void testDeltasAreSummedPerKey() {
+    CounterAggregator aggregator = new CounterAggregator(0, flusher);
+
+    aggregator.add("a", 1, 0, 0);
+    aggregator.add("a", 5, 0, 0);
+    aggregator.add("a", -2, 0, 0);
+    aggregator.add("b", 3, 0, 0);
+    assertEquals(4, aggregator.pending("a"));
+    assertEquals(0, flushes.get());
+
+    aggregator.flush();
+    assertEquals(2, flushes.get());
+    assertEquals(4, counters.get("a").get());
+    assertEquals(3, counters.get("b").get());
+    assertEquals(0, aggregator.pending("a"));
+
+    // nothing pending, nothing flushed
+    aggregator.add("a", 2, 0, 0);
+    aggregator.add("a", -2, 0, 0);
+    aggregator.flush();
+    assertEquals(2, flushes.get());
+  }
+
+  @Test
+  public void testThresholdFlushesRightAway() {
+    CounterAggregator aggregator = new CounterAggregator(10, flusher);
+
+    for (int i = 0; i < 9; i++) {
+      aggregator.add("a", 1, 0, 0);
+    }
+    assertEquals(0, flushes.get());
+    aggregator.add("a", 1, 0, 0);
+    assertEquals(1, flushes.get());
+    assertEquals(10, counters.get("a").get());
+
+    aggregator.add("b", -15, 0, 0);
+    assertEquals(-15, counters.get("b").get());
+  }
+
+  @Test
+  public void testIdleKeysAreDropped() {
+    CounterAggregator aggregator = new CounterAggregator(0, flusher);
+
+    aggregator.add("a", 1, 0, 0);
+    aggregator.flush();
+    assertEquals(1, aggregator.size());
+    aggregator.flush();
+    assertEquals(0, aggregator.size());
+
+    aggregator.add("a", 1, 0, 0);
+    aggregator.flush();
+    assertEquals(2, counters.get("a").get());
+  }
+
+  @Test
+  public void testConcurrentAddsAreNotLost() throws Exception {
+    final CounterAggregator aggregator = new CounterAggregator(1000, flusher);
+    final int threads = 8;
+    final int adds = 100000;
+    final CountDownLatch done = new CountDownLatch(threads);
+
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        public void run() {
+          for (int i = 0; i < adds; i++) {
+            aggregator.add("key" + (i % 4), 1, 0, 0);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    // flushing and dropping idle keys while adding
+    while (done.getCount() > 0) {
+      aggregator.flush();
+    }
+    done.await();
+    aggregator.flush();
+
+    long total = 0;
+    for (AtomicLong counter : counters.values()) {
+      total += counter.get();
+    }
+    assertEquals((long)threads * adds, total);
+  }
+}
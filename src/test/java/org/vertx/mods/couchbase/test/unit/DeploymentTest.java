@@ -0,0 +1,86 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.io.InputStream;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.CouchbasePersistor;
+
+/**
+ * Unit tests of the persistor deployed as a standard verticle, like the module does, and as a
+ * multi-threaded worker, against the in-process couchbase stand-in
+ */
+public class DeploymentTest {
+
+  private static final int REQUESTS = 200;
+
+  @Test
+  public void testModuleRunsOnEventLoop() throws Exception {
+    JsonObject mod;
+    try (InputStream in = CouchbasePersistor.class.getResourceAsStream("/mod.json");
+        Scanner scanner = new Scanner(in, "UTF-8")) {
+      mod = new JsonObject(scanner.useDelimiter("\\A").next());
+    }
+
+    assertEquals(CouchbasePersistor.class.getName(), mod.getString("main"));
+    assertFalse(mod.getBoolean("worker", false));
+    assertFalse(mod.getBoolean("multi-threaded", false));
+  }
+
+  @Test
+  public void testEventLoop() throws Exception {
+    exercise(StandInPersistor.deploy(new JsonObject(), false));
+  }
+
+  @Test
+  public void testWorker() throws Exception {
+    exercise(StandInPersistor.deploy(new JsonObject(), true));
+  }
+
+  /**
+   * Sends concurrent saves and reads, all of them must be replied
+   */
+  private static void exercise(StandInPersistor persistor) throws Exception {
+    try {
+      final AtomicInteger ok = new AtomicInteger();
+      final CountDownLatch replied = new CountDownLatch(REQUESTS * 2);
+      Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+        public void handle(Message<JsonObject> message) {
+          if ("ok".equals(message.body().getString("status"))) {
+            ok.incrementAndGet();
+          }
+          replied.countDown();
+        }
+      };
+
+      for (int i = 0; i < REQUESTS; i++) {
+        persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, new JsonObject().putString("action", "save")
+          .putObject("document", new JsonObject().putString("id", "deployed" + i).putNumber("n", i)), replyHandler);
+        persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, new JsonObject().putString("action", "counter")
+          .putString("key", "deployed-counter").putString("operation", "increment").putNumber("by", 1).putNumber("default", 1),
+          replyHandler);
+      }
+
+      assertTrue(replied.await(20, TimeUnit.SECONDS));
+      assertEquals(REQUESTS * 2, ok.get());
+
+      JsonObject reply = persistor.send(new JsonObject().putString("action", "find_by_id").putString("id", "deployed7"));
+      assertOK(reply);
+      assertEquals(7, reply.getInteger("n").intValue());
+      assertEquals(String.valueOf(REQUESTS), String.valueOf(persistor.client().get("deployed-counter")));
+    } finally {
+      persistor.stop();
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.mods.DocumentCache;
+
+/**
+ * Unit tests for the local document cache
+ */
+public class DocumentCacheTest {
+
+  @Test
+  public void testPutAndGet() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    cache.put("id1", "{\"id\":\"id1\"}", 42);
+
+    DocumentCache.Entry entry = cache.get("id1");
+    assertNotNull(entry);
+    assertEquals("{\"id\":\"id1\"}", entry.getValue());
+    assertEquals(42, entry.getCas());
+    assertNull(cache.get("id2"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    DocumentCache cache = new DocumentCache(2, 0);
+    cache.put("id1", "1", 1);
+    cache.put("id2", "2", 2);
+    // touch id1 so id2 becomes the eldest entry
+    cache.get("id1");
+    cache.put("id3", "3", 3);
+
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("id1"));
+    assertNull(cache.get("id2"));
+    assertNotNull(cache.get("id3"));
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    DocumentCache cache = new DocumentCache(10, 10);
+    cache.put("id1", "1", 1);
+    Thread.sleep(50);
+
+    assertNull(cache.get("id1"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidate() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    cache.put("id1", "1", 1);
+    cache.invalidate("id1");
+
+    assertNull(cache.get("id1"));
+  }
+
+  @Test
+  public void testPutIfNewerAfterWrite() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    long read = cache.sequence();
+    // a write completes while the read is executed
+    cache.put("id1", "new", 2);
+
+    assertFalse(cache.putIfNewer("id1", "old", 1, read));
+    assertEquals("new", cache.get("id1").getValue());
+  }
+
+  @Test
+  public void testPutIfNewerAfterInvalidate() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    long read = cache.sequence();
+    cache.invalidate("id1");
+
+    assertFalse(cache.putIfNewer("id1", "old", 1, read));
+    assertNull(cache.get("id1"));
+
+    // reads issued afterwards are cached
+    assertTrue(cache.putIfNewer("id1", "new", 2, cache.sequence()));
+    assertEquals("new", cache.get("id1").getValue());
+  }
+
+  @Test
+  public void testPutIfNewerAfterEviction() {
+    DocumentCache cache = new DocumentCache(1, 0);
+    long read = cache.sequence();
+    cache.invalidate("id1");
+    // the invalidation is evicted, the read can't be told apart from an older one
+    cache.put("id2", "2", 2);
+
+    assertFalse(cache.putIfNewer("id1", "old", 1, read));
+    assertTrue(cache.putIfNewer("id1", "new", 3, cache.sequence()));
+  }
+
+  @Test
+  public void testPutIfNewerKeepsNewerCas() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    long read = cache.sequence();
+    cache.put("id1", "new", 5);
+
+    assertFalse(cache.putIfNewer("id1", "old", 4, cache.sequence()));
+    assertFalse(cache.putIfNewer("id1", "old", 4, read));
+    assertTrue(cache.putIfNewer("id1", "newer", 6, cache.sequence()));
+    assertEquals(6, cache.get("id1").getCas());
+  }
+
+  @Test
+  public void testUnknownCas() {
+    DocumentCache cache = new DocumentCache(10, 0);
+    assertTrue(cache.putIfNewer("id1", "1", DocumentCache.UNKNOWN_CAS, cache.sequence()));
+
+    DocumentCache.Entry entry = cache.get("id1");
+    assertFalse(entry.hasCas());
+    assertEquals(DocumentCache.UNKNOWN_CAS, entry.getCas());
+  }
+}
@@ -0,0 +1,88 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.DocumentMutation;
+
+/**
+ * Unit tests for the document merge patch and field operations
+ */
+public class DocumentMutationTest {
+
+  private static JsonObject document() {
+    return new JsonObject("{\"id\":\"user1\",\"name\":\"John\",\"visits\":2,\"score\":1.5,"
+      + "\"address\":{\"city\":\"Paris\",\"street\":\"Rivoli\"},\"tags\":[\"a\"]}");
+  }
+
+  @Test
+  public void testMergePatch() {
+    JsonObject patch = new JsonObject("{\"name\":\"Jane\",\"visits\":null,\"address\":{\"street\":null,\"zip\":\"75001\"},"
+      + "\"tags\":[\"b\"],\"phone\":{\"home\":\"123\"}}");
+
+    assertEquals(new JsonObject("{\"id\":\"user1\",\"name\":\"Jane\",\"score\":1.5,"
+      + "\"address\":{\"city\":\"Paris\",\"zip\":\"75001\"},\"tags\":[\"b\"],\"phone\":{\"home\":\"123\"}}"),
+      new DocumentMutation(patch, null).apply(document()));
+  }
+
+  @Test
+  public void testOperations() {
+    JsonArray operations = new JsonArray("[{\"op\":\"set\",\"path\":\"address.geo.lat\",\"value\":48.8},"
+      + "{\"op\":\"unset\",\"path\":\"address.street\"},{\"op\":\"unset\",\"path\":\"unknown.field\"},"
+      + "{\"op\":\"increment\",\"path\":\"visits\"},{\"op\":\"increment\",\"path\":\"score\",\"by\":2},"
+      + "{\"op\":\"increment\",\"path\":\"stats.likes\",\"by\":-3},"
+      + "{\"op\":\"append\",\"path\":\"tags\",\"value\":\"b\"},{\"op\":\"append\",\"path\":\"friends\",\"value\":{\"id\":\"user2\"}}]");
+
+    assertEquals(new JsonObject("{\"id\":\"user1\",\"name\":\"John\",\"visits\":3,\"score\":3.5,"
+      + "\"address\":{\"city\":\"Paris\",\"geo\":{\"lat\":48.8}},\"tags\":[\"a\",\"b\"],"
+      + "\"stats\":{\"likes\":-3},\"friends\":[{\"id\":\"user2\"}]}"),
+      // numbers are compared once encoded, their java type depends on the operation
+      new JsonObject(new DocumentMutation(null, operations).apply(document()).encode()));
+  }
+
+  @Test
+  public void testPatchBeforeOperations() {
+    JsonObject patch = new JsonObject("{\"visits\":10}");
+    JsonArray operations = new JsonArray("[{\"op\":\"increment\",\"path\":\"visits\",\"by\":5}]");
+
+    assertEquals(15L, new DocumentMutation(patch, operations).apply(document()).getNumber("visits").longValue());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNothingToApply() {
+    new DocumentMutation(null, new JsonArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidOperation() {
+    new DocumentMutation(null, new JsonArray("[{\"op\":\"remove\",\"path\":\"name\"}]"));
+  }
+
+  @Test
+  public void testByNotNumber() {
+    try {
+      new DocumentMutation(null, new JsonArray("[{\"op\":\"increment\",\"path\":\"age\",\"by\":\"2\"}]"));
+      fail("by accepted as a string");
+    } catch (IllegalArgumentException e) {
+      assertEquals("by must be a number", e.getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPathNotString() {
+    new DocumentMutation(null, new JsonArray("[{\"op\":\"set\",\"path\":1,\"value\":\"J\"}]"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncrementNotNumber() {
+    new DocumentMutation(null, new JsonArray("[{\"op\":\"increment\",\"path\":\"name\"}]")).apply(document());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPathThroughValue() {
+    new DocumentMutation(null, new JsonArray("[{\"op\":\"set\",\"path\":\"name.first\",\"value\":\"J\"}]")).apply(document());
+  }
+}
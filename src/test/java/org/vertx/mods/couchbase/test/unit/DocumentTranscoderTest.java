@@ -0,0 +1,96 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.DocumentTranscoder;
+import org.vertx.mods.DocumentTranscoder.Format;
+
+/**
+ * Unit tests for the document transcoder
+ */
+public class DocumentTranscoderTest {
+
+  private static final int COMPRESSED = 2;
+  private static final int BINARY_JSON = 1 << 16;
+
+  @Test
+  public void testJsonDocumentsAreStoredAsText() {
+    DocumentTranscoder transcoder = new DocumentTranscoder(Format.JSON, 0);
+    JsonObject doc = document(3);
+
+    CachedData data = transcoder.encode(doc);
+    assertEquals(0, data.getFlags());
+    assertEquals(doc.encode(), new String(data.getData()));
+    assertEquals(doc.encode(), transcoder.decode(data));
+  }
+
+  @Test
+  public void testBinaryDocumentsRoundTrip() {
+    DocumentTranscoder transcoder = new DocumentTranscoder(Format.BINARY, 0);
+    JsonObject doc = document(50);
+
+    CachedData data = transcoder.encode(doc);
+    assertEquals(BINARY_JSON, data.getFlags());
+    assertTrue(data.getData().length < doc.encode().length());
+    assertTrue(transcoder.asyncDecode(data));
+    assertEquals(doc, transcoder.decode(data));
+
+    // the flags pick the decoder whatever format is configured
+    assertEquals(doc, new DocumentTranscoder(Format.JSON, 0).decode(data));
+  }
+
+  @Test
+  public void testCompressionThreshold() {
+    DocumentTranscoder transcoder = new DocumentTranscoder(Format.JSON, 512);
+
+    JsonObject small = document(1);
+    assertEquals(0, transcoder.encode(small).getFlags());
+
+    JsonObject large = document(100);
+    CachedData data = transcoder.encode(large);
+    assertEquals(COMPRESSED, data.getFlags());
+    assertTrue(data.getData().length < large.encode().length());
+    assertEquals(large.encode(), transcoder.decode(data));
+
+    CachedData binary = new DocumentTranscoder(Format.BINARY, 512).encode(large);
+    assertEquals(COMPRESSED | BINARY_JSON, binary.getFlags());
+    assertEquals(large, transcoder.decode(binary));
+  }
+
+  @Test
+  public void testReadsValuesOfTheDefaultTranscoder() {
+    DocumentTranscoder transcoder = new DocumentTranscoder(Format.BINARY, 0);
+    SerializingTranscoder serializing = new SerializingTranscoder();
+
+    // counters and compressed strings written by the default transcoder
+    assertEquals("42", transcoder.decode(new CachedData(0, "42".getBytes(), CachedData.MAX_SIZE)));
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      text.append("text ");
+    }
+    assertEquals(text.toString(), transcoder.decode(serializing.encode(text.toString())));
+    assertEquals(7L, transcoder.decode(serializing.encode(7L)));
+
+    // plain strings are kept as they are
+    assertEquals("value", transcoder.decode(transcoder.encode("value")));
+  }
+
+  private static JsonObject document(int fields) {
+    JsonObject doc = new JsonObject().putString("id", "doc");
+    for (int i = 0; i < fields; i++) {
+      doc.putObject("field" + i, new JsonObject()
+        .putString("name", "name of field " + i)
+        .putNumber("number", i)
+        .putBoolean("flag", i % 2 == 0)
+        .putArray("tags", new JsonArray().addString("a").addString("b")));
+    }
+    return doc;
+  }
+}
@@ -0,0 +1,161 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the durability requirements against the in-process couchbase stand-in,
+ * which can delay or never report the documents as persisted
+ */
+public class DurabilityTest {
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("observer_timeout", 1000));
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Before
+  public void persistAtOnce() {
+    persistor.standIn().setPersistenceDelay(0);
+  }
+
+  @Test
+  public void testReplyOncePersisted() throws Exception {
+    persistor.standIn().setPersistenceDelay(300);
+
+    long start = System.currentTimeMillis();
+    assertOK(persistor.send(save(new JsonObject().putString("id", "durable-delayed"))));
+    assertTrue(System.currentTimeMillis() - start >= 250);
+  }
+
+  @Test
+  public void testNotPersisted() throws Exception {
+    persistor.standIn().setPersistenceDelay(-1);
+
+    JsonObject reply = persistor.send(save(new JsonObject().putString("id", "durable-never")));
+    assertError(reply);
+    // the mutation isn't rolled back
+    assertEquals("{\"id\":\"durable-never\"}", persistor.client().get("durable-never"));
+  }
+
+  @Test
+  public void testDurabilityAddress() throws Exception {
+    persistor.standIn().setPersistenceDelay(-1);
+
+    final AtomicReference<JsonObject> confirmation = new AtomicReference<JsonObject>();
+    final CountDownLatch confirmed = new CountDownLatch(1);
+    persistor.platform().vertx().eventBus().registerLocalHandler("test.durability", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        confirmation.set(message.body());
+        confirmed.countDown();
+      }
+    });
+
+    JsonObject reply = persistor.send(save(new JsonObject().putString("id", "durable-address"))
+      .putString("durability_address", "test.durability"));
+    assertOK(reply);
+    assertTrue(reply.getBoolean("durability_pending"));
+
+    assertTrue(confirmed.await(10, TimeUnit.SECONDS));
+    assertEquals("error", confirmation.get().getString("status"));
+    assertEquals("durable-address", confirmation.get().getString("id"));
+    assertEquals("save", confirmation.get().getString("action"));
+  }
+
+  @Test
+  public void testBulkStore() throws Exception {
+    persistor.standIn().setPersistenceDelay(-1);
+
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "bulk_store").putString("operation", "save")
+      .putString("persistTo", "ONE")
+      .putArray("documents", new JsonArray()
+        .add(new JsonObject().putObject("document", new JsonObject().putString("id", "durable-bulk1")))
+        .add(new JsonObject().putObject("document", new JsonObject().putString("id", "durable-bulk2")))));
+    assertOK(reply);
+    assertEquals(2, reply.getInteger("failed").intValue());
+  }
+
+  @Test
+  public void testCas() throws Exception {
+    persistor.client().set("durable-cas", "1").get();
+    long cas = persistor.client().gets("durable-cas").getCas();
+    persistor.standIn().setPersistenceDelay(-1);
+
+    assertError(persistor.send(new JsonObject().putString("action", "cas").putString("key", "durable-cas")
+      .putNumber("cas", cas).putString("value", "2").putString("persistTo", "ONE")));
+  }
+
+  @Test
+  public void testMutate() throws Exception {
+    persistor.standIn().setPersistenceDelay(300);
+
+    JsonObject mutate = new JsonObject().putString("action", "mutate").putString("id", "durable-mutate")
+      .putObject("patch", new JsonObject().putNumber("n", 1)).putBoolean("upsert", true).putString("persistTo", "ONE");
+    assertOK(persistor.send(mutate));
+
+    persistor.standIn().setPersistenceDelay(-1);
+    assertError(persistor.send(mutate));
+  }
+
+  @Test
+  public void testConcurrentObservations() throws Exception {
+    // observing doesn't hold a thread per store, so they're all confirmed within the observer timeout
+    persistor.standIn().setPersistenceDelay(300);
+
+    final int stores = 50;
+    final AtomicInteger ok = new AtomicInteger();
+    final CountDownLatch replied = new CountDownLatch(stores);
+    for (int i = 0; i < stores; i++) {
+      persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS,
+        save(new JsonObject().putString("id", "durable-concurrent" + i)), new Handler<Message<JsonObject>>() {
+          public void handle(Message<JsonObject> message) {
+            if ("ok".equals(message.body().getString("status"))) {
+              ok.incrementAndGet();
+            }
+            replied.countDown();
+          }
+        });
+    }
+
+    assertTrue(replied.await(10, TimeUnit.SECONDS));
+    assertEquals(stores, ok.get());
+  }
+
+  @Test
+  public void testReplicas() throws Exception {
+    assertOK(persistor.send(save(new JsonObject().putString("id", "durable-replicated")).putString("replicatTo", "ONE")));
+
+    // the bucket has a single replica
+    JsonObject reply = persistor.send(save(new JsonObject().putString("id", "durable-overreplicated"))
+      .putString("replicatTo", "TWO"));
+    assertError(reply);
+    assertEquals("Requested replication to 2 node(s), but only 1 are available.", reply.getString("message"));
+  }
+
+  private static JsonObject save(JsonObject document) {
+    return new JsonObject().putString("action", "save").putObject("document", document).putString("persistTo", "ONE");
+  }
+}
@@ -0,0 +1,180 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the find_by_ids action against the in-process couchbase stand-in
+ */
+public class FindByIdsTest {
+
+  private static final int DOCUMENTS = 7;
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+
+    for (int i = 0; i < DOCUMENTS; i++) {
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", "doc" + i).putNumber("n", i))));
+    }
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    JsonObject reply = persistor.send(findByIds("doc1", "missing1", "doc3", "doc1", "missing2"));
+    assertOK(reply);
+
+    JsonObject result = reply.getObject("result");
+    assertEquals(2, result.size());
+    assertEquals(new JsonObject().putString("id", "doc1").putNumber("n", 1), result.getObject("doc1"));
+    assertEquals(3, result.getObject("doc3").getInteger("n").intValue());
+    assertEquals(new JsonArray().addString("missing1").addString("missing2"), reply.getArray("missing"));
+  }
+
+  @Test
+  public void testMapProjection() throws Exception {
+    JsonObject reply = persistor.send(findByIds("doc2").putArray("fields", new JsonArray().addString("n")));
+    assertOK(reply);
+    assertEquals(new JsonObject().putNumber("n", 2), reply.getObject("result").getObject("doc2"));
+  }
+
+  @Test
+  public void testList() throws Exception {
+    JsonObject reply = persistor.send(findByIds("doc4", "missing", "doc0", "doc4").putString("result_format", "list"));
+    assertOK(reply);
+
+    // in the order of the ids, repeated ones included
+    assertEquals(Arrays.asList("doc4", "doc0", "doc4"), ids(reply.getArray("result")));
+    assertEquals(new JsonArray().addString("missing"), reply.getArray("missing"));
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    String[] ids = new String[DOCUMENTS + 2];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = "doc" + i;
+    }
+
+    for (int chunkSize : new int[] { 1, 2, 3, 100 }) {
+      JsonObject reply = persistor.send(findByIds(ids).putString("result_format", "list").putNumber("chunk_size", chunkSize));
+      assertOK(reply);
+      assertEquals(String.valueOf(chunkSize), DOCUMENTS, reply.getArray("result").size());
+      assertEquals(Arrays.asList(ids).subList(0, DOCUMENTS), ids(reply.getArray("result")));
+      assertEquals(new JsonArray().addString("doc7").addString("doc8"), reply.getArray("missing"));
+
+      reply = persistor.send(findByIds(ids).putNumber("chunk_size", chunkSize));
+      assertOK(reply);
+      assertEquals(DOCUMENTS, reply.getObject("result").size());
+    }
+  }
+
+  @Test
+  public void testClientPool() throws Exception {
+    // the bulk gets are split by the client of each id
+    persistor.deployAgain(new JsonObject().putString("address", "test.persistor.pooled").putNumber("client_pool_size", 3));
+
+    String[] ids = new String[DOCUMENTS + 1];
+    for (int i = 0; i < ids.length; i++) {
+      ids[ids.length - 1 - i] = "doc" + i;
+    }
+
+    JsonObject reply = persistor.send("test.persistor.pooled", findByIds(ids).putString("result_format", "list")
+      .putNumber("chunk_size", 2));
+    assertOK(reply);
+    assertEquals(Arrays.asList(ids).subList(1, ids.length), ids(reply.getArray("result")));
+    assertEquals(new JsonArray().addString("doc7"), reply.getArray("missing"));
+
+    reply = persistor.send("test.persistor.pooled", findByIds(ids));
+    assertOK(reply);
+    assertEquals(DOCUMENTS, reply.getObject("result").size());
+  }
+
+  @Test
+  public void testStream() throws Exception {
+    final List<JsonObject> replies = new ArrayList<JsonObject>();
+    final CountDownLatch done = new CountDownLatch(1);
+    persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS,
+      findByIds("doc0", "doc1", "missing", "doc2", "doc3").putBoolean("stream", true).putNumber("chunk_size", 2),
+      new Handler<Message<JsonObject>>() {
+        public void handle(Message<JsonObject> reply) {
+          replies.add(reply.body());
+          if ("more".equals(reply.body().getString("status"))) {
+            reply.reply(new JsonObject(), this);
+          }
+          else {
+            done.countDown();
+          }
+        }
+      });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    assertEquals(3, replies.size());
+    assertEquals("more", replies.get(0).getString("status"));
+    assertEquals("more", replies.get(1).getString("status"));
+    assertOK(replies.get(2));
+
+    assertEquals(Arrays.asList("doc0", "doc1"), ids(replies.get(0).getArray("result")));
+    assertEquals(Arrays.asList("doc2"), ids(replies.get(1).getArray("result")));
+    assertEquals(new JsonArray().addString("missing"), replies.get(1).getArray("missing"));
+    assertEquals(Arrays.asList("doc3"), ids(replies.get(2).getArray("result")));
+  }
+
+  @Test
+  public void testInvalidRequests() throws Exception {
+    assertError(persistor.send(new JsonObject().putString("action", "find_by_ids")));
+    assertError(persistor.send(findByIds("doc0").putString("result_format", "set")));
+
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "find_by_ids")
+      .putArray("ids", new JsonArray().addString("doc0").addNumber(1)));
+    assertError(reply);
+    assertEquals("ids must be an array of strings", reply.getString("message"));
+    reply = persistor.send(new JsonObject().putString("action", "find_by_ids").putString("ids", "doc0"));
+    assertEquals("ids must be an array of strings", reply.getString("message"));
+
+    reply = persistor.send(findByIds("doc0").putArray("fields", new JsonArray().addNumber(1)));
+    assertError(reply);
+    assertEquals("fields must be an array of strings", reply.getString("message"));
+    reply = persistor.send(findByIds("doc0").putString("fields", "n"));
+    assertEquals("fields must be an array of strings", reply.getString("message"));
+  }
+
+  private static List<String> ids(JsonArray documents) {
+    List<String> ids = new ArrayList<String>();
+    for (Object document : documents) {
+      ids.add(((JsonObject) document).getString("id"));
+    }
+    return ids;
+  }
+
+  private static JsonObject findByIds(String... ids) {
+    JsonArray array = new JsonArray();
+    for (String id : ids) {
+      array.addString(id);
+    }
+    return new JsonObject().putString("action", "find_by_ids").putArray("ids", array);
+  }
+}
@@ -0,0 +1,95 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the find_by_view cursors against the in-process couchbase stand-in, over
+ * string keys that look like other json values
+ */
+public class FindByViewPagingTest {
+
+  // the view keys are the document ids
+  private static final List<String> IDS = Arrays.asList("1", "10", "2", "42", "doc", "false", "null", "true", "[1]");
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+
+    for (String id : IDS) {
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", id))));
+    }
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testDocsPages() throws Exception {
+    assertEquals(new ArrayList<String>(new TreeSet<String>(IDS)), readPages("docs", 2));
+  }
+
+  @Test
+  public void testRowsPages() throws Exception {
+    assertEquals(new ArrayList<String>(new TreeSet<String>(IDS)), readPages("rows", 1));
+  }
+
+  @Test
+  public void testRowsKeepStringKeys() throws Exception {
+    JsonObject reply = findByView(new JsonObject(), "rows", null);
+    assertOK(reply);
+
+    for (Object row : reply.getArray("result")) {
+      // the string keys aren't decoded as numbers, booleans, null or arrays
+      assertEquals(((JsonObject) row).getString("id"), ((JsonObject) row).getString("key"));
+    }
+  }
+
+  /**
+   * Reads every page of the view following the cursors, the ids of the rows or documents
+   * in the order they're read
+   */
+  private static List<String> readPages(String resultMode, int pageSize) throws Exception {
+    List<String> ids = new ArrayList<String>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      JsonObject reply = findByView(new JsonObject().putNumber("limit", pageSize), resultMode, cursor);
+      assertOK(reply);
+      assertTrue("too many pages", ++pages <= IDS.size() + 1);
+
+      JsonArray result = reply.getArray("result");
+      for (Object entry : result) {
+        ids.add(((JsonObject) entry).getString("id"));
+      }
+      cursor = reply.getString("cursor");
+    } while (cursor != null);
+    return ids;
+  }
+
+  private static JsonObject findByView(JsonObject query, String resultMode, String cursor) throws Exception {
+    return persistor.send(new JsonObject().putString("action", "find_by_view")
+      .putString("designDoc", "docs")
+      .putString("viewName", "all")
+      .putString("result_mode", resultMode)
+      .putString("cursor", cursor)
+      .putObject("query", query.putString("stale", "FALSE")));
+  }
+}
@@ -0,0 +1,158 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the find_by_view action against the in-process couchbase stand-in
+ */
+public class FindByViewTest {
+
+  private static final int DOCUMENTS = 10;
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    // chunks smaller than the pages, so the documents are fetched by several bulk gets
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("view_fetch_chunk_size", 3));
+
+    for (int i = 0; i < DOCUMENTS; i++) {
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", id(i)).putNumber("n", i))));
+    }
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testDocs() throws Exception {
+    JsonObject reply = findByView(new JsonObject(), null);
+    assertOK(reply);
+
+    JsonArray result = reply.getArray("result");
+    assertEquals(DOCUMENTS, result.size());
+    for (int i = 0; i < DOCUMENTS; i++) {
+      JsonObject doc = result.get(i);
+      assertEquals(id(i), doc.getString("id"));
+      assertEquals(i, doc.getInteger("n").intValue());
+    }
+    assertNull(reply.getArray("missing"));
+  }
+
+  @Test
+  public void testDocsKeepViewOrder() throws Exception {
+    JsonObject reply = findByView(new JsonObject().putBoolean("descending", true).putNumber("limit", 7), null);
+    assertOK(reply);
+
+    JsonArray result = reply.getArray("result");
+    assertEquals(7, result.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(id(DOCUMENTS - 1 - i), ((JsonObject) result.get(i)).getString("id"));
+    }
+  }
+
+  @Test
+  public void testRows() throws Exception {
+    JsonObject reply = findByView(new JsonObject().putString("rangeStart", id(2)).putNumber("limit", 3), "rows");
+    assertOK(reply);
+
+    JsonArray result = reply.getArray("result");
+    assertEquals(3, result.size());
+    for (int i = 0; i < 3; i++) {
+      JsonObject row = result.get(i);
+      assertEquals(id(i + 2), row.getString("id"));
+      assertEquals(id(i + 2), row.getString("key"));
+      // the rows don't carry the documents
+      assertNull(row.getInteger("n"));
+    }
+  }
+
+  @Test
+  public void testMissingDocument() throws Exception {
+    // the index still has the row of the deleted document
+    persistor.standIn().freezeViews();
+    try {
+      assertOK(persistor.send(new JsonObject().putString("action", "delete")
+        .putObject("document", new JsonObject().putString("id", id(3)))));
+
+      JsonObject reply = findByView(new JsonObject().putNumber("limit", 5), null);
+      assertOK(reply);
+
+      JsonArray result = reply.getArray("result");
+      assertEquals(4, result.size());
+      assertEquals(id(2), ((JsonObject) result.get(2)).getString("id"));
+      assertEquals(id(4), ((JsonObject) result.get(3)).getString("id"));
+      assertEquals(new JsonArray().addString(id(3)), reply.getArray("missing"));
+    } finally {
+      persistor.standIn().thawViews();
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", id(3)).putNumber("n", 3))));
+    }
+  }
+
+  @Test
+  public void testReduce() throws Exception {
+    JsonObject reply = findByView(new JsonObject(), "reduce");
+    assertOK(reply);
+
+    JsonArray result = reply.getArray("result");
+    assertEquals(1, result.size());
+    assertEquals(DOCUMENTS, ((JsonObject) result.get(0)).getInteger("value").intValue());
+  }
+
+  @Test
+  public void testInvalidResultMode() throws Exception {
+    assertError(findByView(new JsonObject(), "values"));
+  }
+
+  @Test
+  public void testInvalidFields() throws Exception {
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "find_by_view").putString("designDoc", "docs")
+      .putString("viewName", "all").putObject("query", new JsonObject().putString("stale", "FALSE"))
+      .putArray("fields", new JsonArray().addBoolean(true)));
+    assertError(reply);
+    assertEquals("fields must be an array of strings", reply.getString("message"));
+  }
+
+  @Test
+  public void testMissingView() throws Exception {
+    JsonObject request = new JsonObject().putString("action", "find_by_view").putString("designDoc", "later")
+      .putString("viewName", "all").putObject("query", new JsonObject().putString("stale", "FALSE"));
+    JsonObject reply = persistor.send(request.copy());
+    assertError(reply);
+    assertEquals("view later/all does not exist", reply.getString("message"));
+
+    // the missing view isn't cached, it's found once it's created
+    persistor.standIn().putDesignDoc("later", new JsonObject("{\"views\":{\"all\":{\"map\":\"function (doc, meta) { emit(meta.id, null); }\"}}}"));
+    reply = persistor.send(request.copy());
+    assertOK(reply);
+    assertEquals(DOCUMENTS, reply.getArray("result").size());
+  }
+
+  static JsonObject findByView(JsonObject query, String resultMode) throws Exception {
+    JsonObject request = new JsonObject().putString("action", "find_by_view")
+      .putString("designDoc", "docs")
+      .putString("viewName", resultMode != null && resultMode.equals("reduce") ? "count" : "all")
+      .putObject("query", query.putString("stale", "FALSE"));
+    if (resultMode != null) {
+      request.putString("result_mode", resultMode);
+    }
+    return persistor.send(request);
+  }
+
+  private static String id(int i) {
+    return String.format("doc%02d", i);
+  }
+}
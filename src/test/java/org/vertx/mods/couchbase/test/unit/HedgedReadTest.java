@@ -0,0 +1,157 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the hedged find_by_id reads against the in-process couchbase stand-in,
+ * whose active node holds back its responses while the replica node keeps answering
+ */
+public class HedgedReadTest {
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.standIn().releaseResponses();
+    persistor.stop();
+  }
+
+  @Test
+  public void testReplicaReadOnDelay() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("hedged_read_delay", 50));
+    assertOK(persistor.send(save("hedged")));
+
+    persistor.standIn().holdResponses();
+    JsonObject reply = persistor.send(findById("hedged"));
+    assertOK(reply);
+    assertTrue(reply.getBoolean("replica", false));
+    assertEquals(1, reply.getInteger("n").intValue());
+    assertEquals(1, persistor.standIn().replicaReads());
+  }
+
+  @Test
+  public void testNoReplicaReadWhenActiveAnswers() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("hedged_read_delay", 1000));
+    assertOK(persistor.send(save("fast")));
+
+    JsonObject reply = persistor.send(findById("fast"));
+    assertOK(reply);
+    assertFalse(reply.getBoolean("replica", false));
+    assertEquals(0, persistor.standIn().replicaReads());
+
+    // skipped on request even when the active node is slow
+    persistor.standIn().holdResponses();
+    Reply pending = new Reply(findById("fast").putBoolean("hedge", false));
+    Thread.sleep(1500);
+    persistor.standIn().releaseResponses();
+    assertFalse(pending.await().getBoolean("replica", false));
+    assertEquals(0, persistor.standIn().replicaReads());
+  }
+
+  @Test
+  public void testLearnedPercentile() throws Exception {
+    // the fixed delay is far longer than the send timeout, the learned one much shorter
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("hedged_read_delay", 60000)
+      .putNumber("hedged_read_percentile", 90));
+    assertOK(persistor.send(save("learned")));
+
+    for (int i = 0; i < 100; i++) {
+      assertOK(persistor.send(findById("learned")));
+    }
+    assertEquals(0, persistor.standIn().replicaReads());
+
+    persistor.standIn().holdResponses();
+    long started = System.currentTimeMillis();
+    JsonObject reply = persistor.send(findById("learned"));
+    assertOK(reply);
+    assertTrue(reply.getBoolean("replica", false));
+    assertTrue(System.currentTimeMillis() - started < 5000);
+  }
+
+  @Test
+  public void testNotFoundFromActiveIsAuthoritative() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("hedged_read_delay", 50));
+
+    persistor.standIn().holdResponses();
+    Reply pending = new Reply(findById("missing"));
+    awaitReplicaReads(1);
+    persistor.standIn().releaseResponses();
+
+    JsonObject reply = pending.await();
+    assertError(reply);
+    assertEquals("not found", reply.getString("message"));
+  }
+
+  @Test
+  public void testFailedReadsReported() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("hedged_read_delay", 50)
+      .putNumber("operation_timeout", 1000));
+    assertOK(persistor.send(save("failed")));
+
+    persistor.standIn().failReads(true);
+    persistor.standIn().holdResponses();
+    Reply pending = new Reply(findById("failed"));
+    awaitReplicaReads(1);
+    persistor.standIn().releaseResponses();
+
+    // both reads failed, the error is replied instead of not found
+    JsonObject reply = pending.await();
+    assertError(reply);
+    assertNotEquals("not found", reply.getString("message"));
+  }
+
+  private void awaitReplicaReads(int reads) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persistor.standIn().replicaReads() < reads && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(reads, persistor.standIn().replicaReads());
+  }
+
+  private static JsonObject findById(String id) {
+    return new JsonObject().putString("action", "find_by_id").putString("id", id);
+  }
+
+  private static JsonObject save(String id) {
+    return new JsonObject().putString("action", "save")
+      .putObject("document", new JsonObject().putString("id", id).putNumber("n", 1));
+  }
+
+  /**
+   * Request sent without waiting, whose reply is awaited later
+   */
+  private class Reply implements Handler<Message<JsonObject>> {
+
+    private final AtomicReference<JsonObject> reply = new AtomicReference<JsonObject>();
+    private final CountDownLatch replied = new CountDownLatch(1);
+
+    Reply(JsonObject request) {
+      persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, request, this);
+    }
+
+    public void handle(Message<JsonObject> message) {
+      reply.set(message.body());
+      replied.countDown();
+    }
+
+    JsonObject await() throws Exception {
+      assertTrue(replied.await(10, TimeUnit.SECONDS));
+      return reply.get();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.mods.Histogram;
+import org.vertx.mods.SlidingHistogram;
+
+/**
+ * Unit tests for the latency histograms
+ */
+public class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(10, histogram.getCount());
+    assertEquals(5, histogram.getPercentile(50));
+    assertEquals(10, histogram.getPercentile(100));
+    assertEquals(5.5, histogram.getMean(), 0.001);
+  }
+
+  @Test
+  public void testPercentilePrecision() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+
+    assertWithin(50000, histogram.getPercentile(50));
+    assertWithin(99000, histogram.getPercentile(99));
+    assertWithin(99900, histogram.getPercentile(99.9));
+    assertEquals(100000, histogram.getMax());
+  }
+
+  @Test
+  public void testSlidingWindow() throws Exception {
+    SlidingHistogram histogram = new SlidingHistogram(200);
+    for (int i = 0; i < 1000; i++) {
+      histogram.record(1);
+    }
+    assertEquals(1000, histogram.snapshot().getCount());
+
+    // still within the window after the first half rotates
+    Thread.sleep(120);
+    histogram.record(1000);
+    assertEquals(1001, histogram.snapshot().getCount());
+    assertEquals(1000, histogram.snapshot().getMax());
+
+    // the first half left the window
+    Thread.sleep(120);
+    histogram.record(1000);
+    Histogram snapshot = histogram.snapshot();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(1000, snapshot.getPercentile(99));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected * 0.07);
+  }
+}
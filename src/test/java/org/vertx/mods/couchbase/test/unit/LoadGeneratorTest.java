@@ -0,0 +1,100 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+import org.vertx.mods.LoadGenerator;
+
+/**
+ * Unit tests of the load generator against the in-process couchbase stand-in
+ */
+public class LoadGeneratorTest {
+
+  private PlatformManager platform;
+
+  @Before
+  public void start() {
+    platform = PlatformLocator.factory.createPlatformManager();
+  }
+
+  @After
+  public void stop() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    platform.undeployAll(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        latch.countDown();
+      }
+    });
+    latch.await(10, TimeUnit.SECONDS);
+    platform.stop();
+  }
+
+  @Test
+  public void testConcurrency() throws Exception {
+    JsonObject report = run(new JsonObject().putNumber("concurrency", 4));
+
+    assertEquals("concurrency", report.getString("mode"));
+    assertTrue(report.getLong("completed") > 0);
+    assertEquals(0L, report.getLong("errors").longValue());
+    assertEquals(0L, report.getLong("timeouts").longValue());
+    for (String action : new String[] { "insert", "save", "find_by_id", "find_by_ids", "find_by_view", "counter" }) {
+      assertNotNull(action, report.getObject("actions").getObject(action));
+    }
+  }
+
+  @Test
+  public void testRate() throws Exception {
+    JsonObject report = run(new JsonObject().putNumber("rate", 200)
+      .putObject("mix", new JsonObject().putNumber("find_by_id", 1)));
+
+    assertEquals("rate", report.getString("mode"));
+    assertEquals(0L, report.getLong("errors").longValue());
+    // requests due before the warmup ended can be sent late, up to a tenth of a second of them
+    long scheduled = report.getLong("scheduled");
+    long due = 200 * report.getLong("elapsed") / 1000;
+    assertTrue("scheduled " + scheduled + " of " + due, scheduled > 0 && scheduled <= due + 20);
+    // every scheduled request is accounted for
+    assertEquals(scheduled, report.getLong("completed") + report.getLong("dropped"));
+    assertEquals(1, report.getObject("actions").getFieldNames().size());
+  }
+
+  private JsonObject run(JsonObject config) throws Exception {
+    config.putBoolean("stand_in", true)
+      .putString("address", "test.load.persistor")
+      .putString("report_address", "test.load.report")
+      .putNumber("documents", 100)
+      .putNumber("warmup", 500)
+      .putNumber("duration", 1000)
+      .putNumber("report_interval", 0);
+
+    final AtomicReference<JsonObject> report = new AtomicReference<JsonObject>();
+    final CountDownLatch reported = new CountDownLatch(1);
+    platform.vertx().eventBus().registerHandler("test.load.report", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        report.set(message.body());
+        reported.countDown();
+      }
+    });
+
+    URL classpath = LoadGenerator.class.getProtectionDomain().getCodeSource().getLocation();
+    platform.deployVerticle(LoadGenerator.class.getName(), config, new URL[] { classpath }, 1, null, null);
+
+    assertTrue(reported.await(20, TimeUnit.SECONDS));
+    return report.get();
+  }
+}
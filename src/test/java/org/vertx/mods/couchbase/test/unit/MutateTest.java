@@ -0,0 +1,153 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASValue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the mutate action against the in-process couchbase stand-in, which holds
+ * back its responses so concurrent mutations read the same cas and conflict
+ */
+public class MutateTest {
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.standIn().releaseResponses();
+    persistor.stop();
+  }
+
+  @Test
+  public void testConflictRetried() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("mutate_retry_delay", 1));
+    assertOK(persistor.send(save("retried")));
+
+    for (JsonObject reply : concurrentIncrements("retried", 2)) {
+      assertOK(reply);
+    }
+    // the mutation that lost the cas race read the document again
+    assertEquals(2, visits("retried"));
+  }
+
+  @Test
+  public void testTooManyConflicts() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("mutate_max_retries", 0));
+    assertOK(persistor.send(save("conflicted")));
+
+    List<JsonObject> replies = concurrentIncrements("conflicted", 2);
+    int ok = 0;
+    for (JsonObject reply : replies) {
+      if ("ok".equals(reply.getString("status"))) {
+        ok++;
+      }
+      else {
+        assertEquals("too many conflicts", reply.getString("message"));
+      }
+    }
+    assertEquals(1, ok);
+    assertEquals(1, visits("conflicted"));
+  }
+
+  @Test
+  public void testManyConcurrentMutations() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("mutate_max_retries", 100)
+      .putNumber("mutate_retry_delay", 1));
+    assertOK(persistor.send(save("hot")));
+
+    for (JsonObject reply : concurrentIncrements("hot", 10)) {
+      assertOK(reply);
+    }
+    assertEquals(10, visits("hot"));
+  }
+
+  @Test
+  public void testUpsert() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+
+    JsonObject notFound = persistor.send(increment("upserted"));
+    assertError(notFound);
+    assertEquals("not found", notFound.getString("message"));
+
+    JsonObject reply = persistor.send(increment("upserted").putBoolean("upsert", true).putBoolean("return_document", true));
+    assertOK(reply);
+    assertEquals(new JsonObject().putString("id", "upserted").putNumber("visits", 1), reply.getObject("document"));
+    assertEquals(1, visits("upserted"));
+  }
+
+  @Test
+  public void testReturnedCas() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+    assertOK(persistor.send(save("cas")));
+
+    JsonObject reply = persistor.send(increment("cas"));
+    assertOK(reply);
+    assertEquals("cas", reply.getString("id"));
+
+    CASValue<Object> stored = persistor.client().gets("cas");
+    assertEquals(stored.getCas(), reply.getLong("cas").longValue());
+
+    // the returned cas can be used by the cas action right away
+    assertOK(persistor.send(new JsonObject().putString("action", "cas").putString("key", "cas")
+      .putNumber("cas", reply.getLong("cas")).putString("value", "{\"id\":\"cas\",\"visits\":5}")));
+  }
+
+  /**
+   * Sends the increments once the responses are held back, so every mutation reads the
+   * same cas before any of them writes
+   */
+  private List<JsonObject> concurrentIncrements(String id, int count) throws Exception {
+    final List<JsonObject> replies = new ArrayList<JsonObject>();
+    final CountDownLatch replied = new CountDownLatch(count);
+    Handler<Message<JsonObject>> replyHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        synchronized (replies) {
+          replies.add(message.body());
+        }
+        replied.countDown();
+      }
+    };
+
+    int reads = persistor.standIn().reads();
+    persistor.standIn().holdResponses();
+    for (int i = 0; i < count; i++) {
+      persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, increment(id), replyHandler);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persistor.standIn().reads() < reads + count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    persistor.standIn().releaseResponses();
+
+    assertTrue(replied.await(10, TimeUnit.SECONDS));
+    return replies;
+  }
+
+  private int visits(String id) {
+    return new JsonObject(String.valueOf(persistor.client().get(id))).getInteger("visits", 0);
+  }
+
+  private static JsonObject save(String id) {
+    return new JsonObject().putString("action", "save").putObject("document", new JsonObject().putString("id", id));
+  }
+
+  private static JsonObject increment(String id) {
+    return new JsonObject().putString("action", "mutate").putString("id", id)
+      .putArray("operations", new JsonArray("[{\"op\":\"increment\",\"path\":\"visits\"}]"));
+  }
+}
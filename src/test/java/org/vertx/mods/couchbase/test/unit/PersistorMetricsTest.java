@@ -0,0 +1,110 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.mods.PersistorMetrics;
+
+/**
+ * Unit tests of the persistor metrics over event bus messages, requests that are never
+ * replied must not stay in flight
+ */
+public class PersistorMetricsTest {
+
+  private Vertx vertx;
+  private PersistorMetrics metrics;
+  private final BlockingQueue<Message<JsonObject>> messages = new LinkedBlockingQueue<Message<JsonObject>>();
+
+  @Before
+  public void start() {
+    vertx = VertxFactory.newVertx();
+    vertx.eventBus().registerHandler("test.metrics", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        messages.add(message);
+      }
+    });
+    metrics = new PersistorMetrics("org.vertx.mods:type=PersistorMetricsTest", LoggerFactory.getLogger(PersistorMetricsTest.class));
+  }
+
+  @After
+  public void stop() {
+    metrics.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testExpire() throws Exception {
+    Message<JsonObject> replied = receive();
+    Message<JsonObject> abandoned = receive();
+    metrics.started(replied, "find_by_id");
+    metrics.started(abandoned, "find_by_id");
+    assertEquals(0, metrics.expire(60000));
+
+    metrics.completed(replied, true, false);
+    Thread.sleep(20);
+    assertEquals(1, metrics.expire(10));
+    assertEquals(0, metrics.expire(10));
+
+    JsonObject action = metrics.snapshot().getObject("actions").getObject("find_by_id");
+    assertEquals(1, action.getLong("success").longValue());
+    assertEquals(1, action.getLong("error").longValue());
+    assertEquals(1, action.getLong("timeout").longValue());
+    assertEquals(0, action.getLong("in_flight").longValue());
+
+    // a late reply of the given up request isn't recorded twice
+    metrics.completed(abandoned, true, false);
+    action = metrics.snapshot().getObject("actions").getObject("find_by_id");
+    assertEquals(1, action.getLong("success").longValue());
+    assertEquals(0, action.getLong("in_flight").longValue());
+  }
+
+  @Test
+  public void testRecentLatency() throws Exception {
+    PersistorMetrics metrics = new PersistorMetrics("org.vertx.mods:type=PersistorMetricsTest,window=200",
+      LoggerFactory.getLogger(PersistorMetricsTest.class), 200);
+    try {
+      Message<JsonObject> message = receive();
+      for (int i = 0; i < 1000; i++) {
+        metrics.started(message, "find_by_id");
+        metrics.completed(message, true, false);
+      }
+
+      // a slow interval after the fast requests left the window
+      Thread.sleep(250);
+      for (int i = 0; i < 5; i++) {
+        metrics.started(message, "find_by_id");
+        Thread.sleep(30);
+        metrics.completed(message, true, false);
+      }
+
+      JsonObject action = metrics.snapshot().getObject("actions").getObject("find_by_id");
+      // diluted among the lifetime samples, but not among the recent ones
+      assertTrue(action.getObject("latency").getNumber("p99").doubleValue() < 30);
+      assertEquals(5, action.getObject("recent_latency").getLong("count").longValue());
+      assertTrue(action.getObject("recent_latency").getNumber("p99").doubleValue() >= 25);
+    } finally {
+      metrics.close();
+    }
+  }
+
+  private Message<JsonObject> receive() throws Exception {
+    vertx.eventBus().send("test.metrics", new JsonObject());
+    Message<JsonObject> message = messages.poll(5, TimeUnit.SECONDS);
+    assertNotNull(message);
+    return message;
+  }
+}
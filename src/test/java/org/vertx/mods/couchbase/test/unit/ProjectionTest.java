@@ -0,0 +1,76 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.Projection;
+
+/**
+ * Unit tests for the document field projection
+ */
+public class ProjectionTest {
+
+  private static final JsonObject DOCUMENT = new JsonObject("{\"id\":\"user1\",\"name\":\"John\",\"age\":30,\"nickname\":null,"
+    + "\"address\":{\"city\":\"Paris\",\"street\":\"Rivoli\",\"geo\":{\"lat\":48.8,\"lon\":2.3}},"
+    + "\"phones\":[{\"type\":\"home\",\"number\":\"123\"},{\"type\":\"work\",\"number\":\"456\"}]}");
+
+  @Test
+  public void testNoFields() {
+    assertNull(Projection.of(null));
+    assertNull(Projection.of(new JsonArray()));
+  }
+
+  @Test
+  public void testTopLevelFields() {
+    JsonObject result = project("id", "name", "nickname", "unknown");
+    assertEquals(new JsonObject("{\"id\":\"user1\",\"name\":\"John\",\"nickname\":null}"), result);
+  }
+
+  @Test
+  public void testNestedPaths() {
+    assertEquals(new JsonObject("{\"address\":{\"city\":\"Paris\",\"geo\":{\"lat\":48.8}}}"),
+      project("address.city", "address.geo.lat", "address.unknown.field"));
+
+    // the whole field wins over its nested paths, whatever the order
+    assertEquals(new JsonObject("{\"address\":" + DOCUMENT.getObject("address").encode() + "}"),
+      project("address.city", "address"));
+    assertEquals(new JsonObject("{\"address\":" + DOCUMENT.getObject("address").encode() + "}"),
+      project("address", "address.city"));
+
+    // paths through values that aren't objects are left out
+    assertEquals(new JsonObject(), project("name.first"));
+  }
+
+  @Test
+  public void testPathsThroughArrays() {
+    assertEquals(new JsonObject("{\"phones\":[{\"number\":\"123\"},{\"number\":\"456\"}]}"), project("phones.number"));
+  }
+
+  @Test
+  public void testInvalidFields() {
+    assertInvalid(new JsonArray().addString("name").addNumber(1));
+    assertInvalid(new JsonArray().addObject(new JsonObject()));
+    assertInvalid("name");
+  }
+
+  private static void assertInvalid(Object paths) {
+    try {
+      Projection.of(paths);
+      fail("invalid fields " + paths + " accepted");
+    } catch (IllegalArgumentException e) {
+      assertEquals("fields must be an array of strings", e.getMessage());
+    }
+  }
+
+  private static JsonObject project(String... fields) {
+    JsonArray paths = new JsonArray();
+    for (String field : fields) {
+      paths.addString(field);
+    }
+    return Projection.of(paths).apply(DOCUMENT);
+  }
+}
@@ -0,0 +1,109 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the coalesced saves against the in-process couchbase stand-in, with a
+ * window long enough that only the flushes write the documents
+ */
+public class SaveCoalescingTest {
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Test
+  public void testBurstWrittenOnce() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("save_coalescing_window", 200));
+
+    BlockingQueue<JsonObject> replies = new LinkedBlockingQueue<JsonObject>();
+    for (int i = 0; i < 5; i++) {
+      sendSave("burst", i, replies);
+    }
+    for (int i = 0; i < 5; i++) {
+      assertOK(replies.poll(5, TimeUnit.SECONDS));
+    }
+
+    assertEquals(4, new JsonObject((String) persistor.client().get("burst")).getInteger("n").intValue());
+  }
+
+  @Test
+  public void testTouchFlushesSaves() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("save_coalescing_window", 60000));
+
+    BlockingQueue<JsonObject> replies = new LinkedBlockingQueue<JsonObject>();
+    sendSave("touched", 1, replies);
+    assertOK(persistor.send(new JsonObject().putString("action", "touch").putString("key", "touched")
+      .putNumber("expiration", 3600)));
+
+    assertOK(replies.poll(5, TimeUnit.SECONDS));
+    assertNotNull(persistor.client().get("touched"));
+  }
+
+  @Test
+  public void testBulkTouchFlushesSaves() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("save_coalescing_window", 60000));
+
+    BlockingQueue<JsonObject> replies = new LinkedBlockingQueue<JsonObject>();
+    sendSave("bulk-touched", 1, replies);
+    JsonObject reply = persistor.send(new JsonObject().putString("action", "bulk_touch")
+      .putArray("keys", new JsonArray().addString("bulk-touched")).putNumber("expiration", 3600));
+    assertOK(reply);
+
+    assertOK(replies.poll(5, TimeUnit.SECONDS));
+    assertNotNull(persistor.client().get("bulk-touched"));
+  }
+
+  @Test
+  public void testStopRepliesBufferedSaves() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putNumber("save_coalescing_window", 60000));
+
+    BlockingQueue<JsonObject> replies = new LinkedBlockingQueue<JsonObject>();
+    sendSave("stopped", 1, replies);
+    sendSave("stopped", 2, replies);
+    Thread.sleep(200);
+    assertNull(persistor.client().get("stopped"));
+
+    final CountDownLatch undeployed = new CountDownLatch(1);
+    persistor.platform().undeployAll(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        undeployed.countDown();
+      }
+    });
+    assertTrue(undeployed.await(10, TimeUnit.SECONDS));
+
+    // both senders are replied before the persistor clients are shut down
+    assertOK(replies.poll(5, TimeUnit.SECONDS));
+    assertOK(replies.poll(5, TimeUnit.SECONDS));
+    assertEquals(2, new JsonObject((String) persistor.client().get("stopped")).getInteger("n").intValue());
+  }
+
+  private void sendSave(String id, int n, final BlockingQueue<JsonObject> replies) {
+    persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, new JsonObject().putString("action", "save")
+      .putObject("document", new JsonObject().putString("id", id).putNumber("n", n)), new Handler<Message<JsonObject>>() {
+        public void handle(Message<JsonObject> message) {
+          replies.add(message.body());
+        }
+      });
+  }
+}
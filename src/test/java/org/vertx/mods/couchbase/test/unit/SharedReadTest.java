@@ -0,0 +1,143 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the standard find_by_id reads shared by concurrent readers against the
+ * in-process couchbase stand-in, which holds back its responses so the reads overlap
+ */
+public class SharedReadTest {
+
+  private static final int READERS = 20;
+
+  private StandInPersistor persistor;
+
+  @After
+  public void stop() throws Exception {
+    persistor.standIn().releaseResponses();
+    persistor.stop();
+  }
+
+  @Test
+  public void testConcurrentReadsShareOneOperation() throws Exception {
+    // a multi-threaded worker handles the reads concurrently
+    persistor = StandInPersistor.deploy(new JsonObject(), true);
+    assertOK(persistor.send(save("shared", 1)));
+
+    int reads = persistor.standIn().reads();
+    persistor.standIn().holdResponses();
+    Replies replies = new Replies(READERS);
+    for (int i = 0; i < READERS; i++) {
+      replies.send(findById("shared"));
+    }
+    awaitReads(reads + 1);
+    Thread.sleep(300);
+    persistor.standIn().releaseResponses();
+
+    for (JsonObject reply : replies.await()) {
+      assertOK(reply);
+      assertEquals(1, reply.getInteger("n").intValue());
+    }
+    assertEquals(reads + 1, persistor.standIn().reads());
+  }
+
+  @Test
+  public void testReadAfterWriteNotShared() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+    assertOK(persistor.send(save("written", 1)));
+
+    int reads = persistor.standIn().reads();
+    persistor.standIn().holdResponses();
+    Replies replies = new Replies(2);
+    // the read is executed before the write, so it can't see it
+    replies.send(findById("written"));
+    replies.send(save("written", 2));
+    awaitReads(reads + 1);
+    persistor.standIn().releaseResponses();
+    for (JsonObject reply : replies.await()) {
+      assertOK(reply);
+    }
+
+    JsonObject reply = persistor.send(findById("written"));
+    assertOK(reply);
+    assertEquals(2, reply.getInteger("n").intValue());
+    assertEquals(reads + 2, persistor.standIn().reads());
+  }
+
+  @Test
+  public void testReadsNotSharedWhenDisabled() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject().putBoolean("coalesce_reads", false));
+    assertOK(persistor.send(save("unshared", 1)));
+
+    int reads = persistor.standIn().reads();
+    persistor.standIn().holdResponses();
+    Replies replies = new Replies(3);
+    for (int i = 0; i < 3; i++) {
+      replies.send(findById("unshared"));
+    }
+    awaitReads(reads + 3);
+    persistor.standIn().releaseResponses();
+
+    for (JsonObject reply : replies.await()) {
+      assertOK(reply);
+    }
+    assertEquals(reads + 3, persistor.standIn().reads());
+  }
+
+  private void awaitReads(int reads) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persistor.standIn().reads() < reads && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(reads, persistor.standIn().reads());
+  }
+
+  private static JsonObject findById(String id) {
+    return new JsonObject().putString("action", "find_by_id").putString("id", id);
+  }
+
+  private static JsonObject save(String id, int n) {
+    return new JsonObject().putString("action", "save")
+      .putObject("document", new JsonObject().putString("id", id).putNumber("n", n));
+  }
+
+  /**
+   * Requests sent without waiting, whose replies are awaited at once
+   */
+  private class Replies implements Handler<Message<JsonObject>> {
+
+    private final Queue<JsonObject> replies = new ConcurrentLinkedQueue<JsonObject>();
+    private final CountDownLatch replied;
+
+    Replies(int count) {
+      replied = new CountDownLatch(count);
+    }
+
+    void send(JsonObject request) {
+      persistor.platform().vertx().eventBus().send(StandInPersistor.ADDRESS, request, this);
+    }
+
+    public void handle(Message<JsonObject> message) {
+      replies.add(message.body());
+      replied.countDown();
+    }
+
+    Queue<JsonObject> await() throws Exception {
+      assertTrue(replied.await(10, TimeUnit.SECONDS));
+      return replies;
+    }
+  }
+}
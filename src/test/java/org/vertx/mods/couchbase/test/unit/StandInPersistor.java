@@ -0,0 +1,190 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+import org.vertx.mods.CouchbasePersistor;
+import org.vertx.mods.CouchbaseStandIn;
+
+import com.couchbase.client.CouchbaseClient;
+
+/**
+ * Deploys the persistor against the in-process couchbase stand-in, so the action
+ * tests can exchange messages with it. The stand-in has a <code>docs</code> design
+ * document with an <code>all</code> view and a reduced <code>count</code> view, and
+ * a replica node apart from the active one.
+ *
+ * @author Juan Manuel Musacchio
+ */
+public class StandInPersistor {
+
+  public static final String ADDRESS = "test.persistor";
+
+  private final PlatformManager platform;
+  private final int httpPort;
+  private final Vertx standInVertx;
+  private final CouchbaseStandIn standIn;
+  private final CouchbaseClient client;
+
+  private StandInPersistor(PlatformManager platform, int httpPort, Vertx standInVertx, CouchbaseStandIn standIn,
+      CouchbaseClient client) {
+    this.platform = platform;
+    this.httpPort = httpPort;
+    this.standInVertx = standInVertx;
+    this.standIn = standIn;
+    this.client = client;
+  }
+
+  /**
+   * Starts the stand-in and deploys the persistor as a standard verticle with the given config plus
+   * the connection settings
+   */
+  public static StandInPersistor deploy(JsonObject config) throws Exception {
+    return deploy(config, false);
+  }
+
+  /**
+   * Starts the stand-in and deploys the persistor, as a multi-threaded worker or a standard verticle,
+   * with the given config plus the connection settings
+   */
+  public static StandInPersistor deploy(JsonObject config, boolean worker) throws Exception {
+    int httpPort = freePort();
+    PlatformManager platform = PlatformLocator.factory.createPlatformManager();
+    // the stand-in has its own event loops, like a remote server it keeps answering while the persistor blocks its own
+    Vertx standInVertx = VertxFactory.newVertx();
+    CouchbaseStandIn standIn = new CouchbaseStandIn(standInVertx, "127.0.0.1", httpPort, freePort(), freePort(), "default");
+    standIn.putDesignDoc("docs", new JsonObject("{\"views\":{\"all\":{\"map\":\"function (doc, meta) { emit(meta.id, null); }\"},"
+      + "\"count\":{\"map\":\"function (doc, meta) { emit(meta.id, null); }\",\"reduce\":\"_count\"}}}"));
+
+    final CountDownLatch started = new CountDownLatch(1);
+    standIn.start(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        started.countDown();
+      }
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    deployPersistor(platform, httpPort, config, worker);
+
+    CouchbaseClient client = new CouchbaseClient(Arrays.asList(new URI("http://127.0.0.1:" + httpPort + "/pools")), "default", "");
+    return new StandInPersistor(platform, httpPort, standInVertx, standIn, client);
+  }
+
+  /**
+   * Deploys one more persistor as a standard verticle against the same stand-in, e.g. to check what
+   * a restart of the module does, with the given config plus the connection settings
+   */
+  public void deployAgain(JsonObject config) throws Exception {
+    deployPersistor(platform, httpPort, config, false);
+  }
+
+  private static void deployPersistor(PlatformManager platform, int httpPort, JsonObject config, boolean worker)
+      throws Exception {
+    config.putString("address", config.getString("address", ADDRESS))
+      .putString("host", "127.0.0.1")
+      .putNumber("port", httpPort)
+      .putString("bucket_password", "");
+
+    final AtomicReference<AsyncResult<String>> deployment = new AtomicReference<AsyncResult<String>>();
+    final CountDownLatch deployed = new CountDownLatch(1);
+    URL classpath = CouchbasePersistor.class.getProtectionDomain().getCodeSource().getLocation();
+    Handler<AsyncResult<String>> deploymentHandler = new Handler<AsyncResult<String>>() {
+      public void handle(AsyncResult<String> result) {
+        deployment.set(result);
+        deployed.countDown();
+      }
+    };
+    if (worker) {
+      platform.deployWorkerVerticle(true, CouchbasePersistor.class.getName(), config, new URL[] { classpath }, 1, null, deploymentHandler);
+    }
+    else {
+      platform.deployVerticle(CouchbasePersistor.class.getName(), config, new URL[] { classpath }, 1, null, deploymentHandler);
+    }
+    assertTrue(deployed.await(20, TimeUnit.SECONDS));
+    if (deployment.get().failed()) {
+      throw new IllegalStateException("persistor deployment failed", deployment.get().cause());
+    }
+  }
+
+  /**
+   * Undeploys the persistor and stops the stand-in
+   */
+  public void stop() throws Exception {
+    client.shutdown(5, TimeUnit.SECONDS);
+
+    final CountDownLatch undeployed = new CountDownLatch(1);
+    platform.undeployAll(new Handler<AsyncResult<Void>>() {
+      public void handle(AsyncResult<Void> result) {
+        undeployed.countDown();
+      }
+    });
+    undeployed.await(10, TimeUnit.SECONDS);
+    standIn.stop();
+    standInVertx.stop();
+    platform.stop();
+  }
+
+  /**
+   * Sends the request to the persistor and waits for its reply
+   */
+  public JsonObject send(JsonObject request) throws Exception {
+    return send(ADDRESS, request);
+  }
+
+  /**
+   * Sends the request to the persistor listening on the given address and waits for its reply
+   */
+  public JsonObject send(String address, JsonObject request) throws Exception {
+    final AtomicReference<JsonObject> reply = new AtomicReference<JsonObject>();
+    final CountDownLatch replied = new CountDownLatch(1);
+    platform.vertx().eventBus().send(address, request, new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        reply.set(message.body());
+        replied.countDown();
+      }
+    });
+
+    if (!replied.await(10, TimeUnit.SECONDS)) {
+      fail("no reply to " + request);
+    }
+    return reply.get();
+  }
+
+  public PlatformManager platform() {
+    return platform;
+  }
+
+  public CouchbaseStandIn standIn() {
+    return standIn;
+  }
+
+  /**
+   * Client connected straight to the stand-in, to check or prepare documents behind the persistor
+   */
+  public CouchbaseClient client() {
+    return client;
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
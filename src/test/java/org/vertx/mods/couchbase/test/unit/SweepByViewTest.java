@@ -0,0 +1,117 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertError;
+import static org.vertx.mods.couchbase.test.unit.CouchbasePersistorTest.assertOK;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Unit tests of the delete_by_view and touch_by_view actions against the in-process
+ * couchbase stand-in, over string keys that look like other json values
+ */
+public class SweepByViewTest {
+
+  // the view keys are the document ids
+  private static final List<String> IDS = Arrays.asList("1", "10", "2", "42", "doc", "false", "null", "true", "[1]");
+
+  private static StandInPersistor persistor;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    persistor = StandInPersistor.deploy(new JsonObject());
+  }
+
+  @AfterClass
+  public static void stop() throws Exception {
+    persistor.stop();
+  }
+
+  @Before
+  public void load() throws Exception {
+    persistor.standIn().clear();
+    for (String id : IDS) {
+      assertOK(persistor.send(new JsonObject().putString("action", "save")
+        .putObject("document", new JsonObject().putString("id", id))));
+    }
+  }
+
+  @Test
+  public void testDeleteByView() throws Exception {
+    JsonObject reply = persistor.send(sweep("delete_by_view", new JsonObject()).putNumber("page_size", 2));
+    assertOK(reply);
+    assertEquals(IDS.size(), reply.getInteger("rows").intValue());
+    assertEquals(IDS.size(), reply.getInteger("deleted").intValue());
+    assertEquals(0, reply.getInteger("missing").intValue());
+    assertEquals(0, reply.getInteger("failed").intValue());
+
+    for (String id : IDS) {
+      assertNull(id, persistor.client().get(id));
+    }
+  }
+
+  @Test
+  public void testTouchByView() throws Exception {
+    // the touched rows stay in the index, every page must start after the previous one
+    JsonObject reply = persistor.send(sweep("touch_by_view", new JsonObject().putNumber("limit", 0))
+      .putNumber("page_size", 2).putNumber("concurrency", 1).putNumber("expiration", 3600));
+    assertOK(reply);
+    assertEquals(IDS.size(), reply.getInteger("rows").intValue());
+    assertEquals(IDS.size(), reply.getInteger("touched").intValue());
+    assertEquals(0, reply.getInteger("failed").intValue());
+
+    for (String id : IDS) {
+      assertNotNull(id, persistor.client().get(id));
+    }
+  }
+
+  @Test
+  public void testLimit() throws Exception {
+    JsonObject reply = persistor.send(sweep("touch_by_view", new JsonObject().putNumber("limit", 5)).putNumber("page_size", 2));
+    assertOK(reply);
+    assertEquals(5, reply.getInteger("rows").intValue());
+    assertEquals(5, reply.getInteger("touched").intValue());
+  }
+
+  @Test
+  public void testKeys() throws Exception {
+    JsonObject reply = persistor.send(sweep("delete_by_view", new JsonObject().putString("key", "doc")));
+    assertOK(reply);
+    assertEquals(1, reply.getInteger("rows").intValue());
+    assertEquals(1, reply.getInteger("deleted").intValue());
+    assertNull(persistor.client().get("doc"));
+    assertNotNull(persistor.client().get("1"));
+  }
+
+  @Test
+  public void testInvalidRequests() throws Exception {
+    assertError(persistor.send(new JsonObject().putString("action", "delete_by_view").putString("designDoc", "docs")
+      .putString("viewName", "all")));
+    assertError(persistor.send(sweep("touch_by_view", new JsonObject()).putNumber("page_size", 0)));
+    assertError(persistor.send(sweep("delete_by_view", new JsonObject()).putNumber("concurrency", 0)));
+    for (String action : new String[] { "delete_by_view", "touch_by_view" }) {
+      JsonObject reply = persistor.send(new JsonObject().putString("action", action).putString("designDoc", "docs")
+        .putString("viewName", "missing").putObject("query", new JsonObject()));
+      assertError(reply);
+      assertEquals("view docs/missing does not exist", reply.getString("message"));
+    }
+
+    assertEquals(IDS.size(), persistor.standIn().size());
+  }
+
+  private static JsonObject sweep(String action, JsonObject query) {
+    return new JsonObject().putString("action", action)
+      .putString("designDoc", "docs")
+      .putString("viewName", "all")
+      .putObject("query", query.putString("stale", "FALSE"));
+  }
+}
@@ -0,0 +1,54 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.mods.ViewCursor;
+
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.ViewRowNoDocs;
+
+/**
+ * Unit tests for the find_by_view continuation cursor
+ */
+public class ViewCursorTest {
+
+  @Test
+  public void testRoundTrip() {
+    ViewCursor cursor = ViewCursor.decode(ViewCursor.encode("user1", "doc1"));
+    assertEquals("\"user1\"", cursor.getKey());
+    assertEquals("doc1", cursor.getId());
+
+    assertEquals("[\"a\",[1,2]]", ViewCursor.decode(ViewCursor.encode(new JsonArray("[\"a\",[1,2]]"), "doc1")).getKey());
+    assertEquals("42", ViewCursor.decode(ViewCursor.encode(42, "doc1")).getKey());
+    assertEquals("null", ViewCursor.decode(ViewCursor.encode(null, "doc1")).getKey());
+  }
+
+  @Test
+  public void testRawRow() {
+    // rows read by the persistor client keep their keys as json text
+    assertEquals("\"42\"", ViewCursor.decode(ViewCursor.encode(new ViewRowNoDocs("doc1", "\"42\"", null))).getKey());
+    assertEquals("42", ViewCursor.decode(ViewCursor.encode(new ViewRowNoDocs("doc1", "42", null))).getKey());
+    assertEquals("\"null\"", ViewCursor.decode(ViewCursor.encode(new ViewRowNoDocs("doc1", "\"null\"", null))).getKey());
+  }
+
+  @Test
+  public void testApply() {
+    Query query = new Query();
+    ViewCursor.decode(ViewCursor.encode(new JsonArray("[\"a\",1]"), "doc1")).apply(query);
+
+    assertEquals("?skip=1&startkey=%5B%22a%22%2C1%5D&startkey_docid=doc1", query.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCursor() {
+    ViewCursor.decode("garbage");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncompleteCursor() {
+    ViewCursor.decode(Base64.encodeBase64URLSafeString("{\"key\":\"1\"}".getBytes()));
+  }
+}
@@ -0,0 +1,76 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.ViewQueryBuilder;
+
+import com.couchbase.client.protocol.views.Query;
+
+/**
+ * Unit tests for the view query builder
+ */
+public class ViewQueryBuilderTest {
+
+  @Test
+  public void testBuild() {
+    JsonObject json = new JsonObject()
+      .putString("stale", "FALSE")
+      .putNumber("limit", 10)
+      .putNumber("skip", 5)
+      .putBoolean("descending", true)
+      .putBoolean("reduce", false);
+
+    Query query = ViewQueryBuilder.build(json);
+
+    assertEquals(10, query.getLimit());
+    assertFalse(query.willReduce());
+    assertEquals("false", String.valueOf(query.getArgs().get("stale")));
+    assertEquals("5", String.valueOf(query.getArgs().get("skip")));
+    assertEquals("true", String.valueOf(query.getArgs().get("descending")));
+  }
+
+  @Test
+  public void testCompoundKey() {
+    JsonObject json = new JsonObject().putArray("key", new JsonArray().add("user").add(1));
+
+    Query query = ViewQueryBuilder.build(json);
+
+    assertTrue(query.toString().contains("key=%5B%22user%22%2C1%5D"));
+  }
+
+  @Test
+  public void testKeysQuotedByJsonType() {
+    // strings are quoted whatever they look like
+    assertTrue(query("{\"key\":\"1e-5\"}").contains("key=%221e-5%22"));
+    assertTrue(query("{\"rangeStart\":\"12345678901234567890\"}").contains("startkey=%2212345678901234567890%22"));
+    assertTrue(query("{\"rangeEnd\":\"true\"}").contains("endkey=%22true%22"));
+    assertTrue(query("{\"key\":\"say \\\"hi\\\"\"}").contains("key=%22say+%5C%22hi%5C%22%22"));
+
+    // numbers aren't, nor reformatted however long they are
+    assertTrue(query("{\"key\":12345678901234567890}").contains("key=12345678901234567890"));
+    assertTrue(query("{\"rangeStart\":-5}").contains("startkey=-5"));
+    assertTrue(query("{\"key\":null}").contains("key=null"));
+
+    // a single key is still an array
+    assertTrue(query("{\"keys\":[\"1e-5\"]}").contains("keys=%5B%221e-5%22%5D"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParameter() {
+    ViewQueryBuilder.build(new JsonObject().putString("unknown", "value"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidValue() {
+    ViewQueryBuilder.build(new JsonObject().putString("limit", "ten"));
+  }
+
+  private static String query(String json) {
+    return ViewQueryBuilder.build(new JsonObject(json)).toString();
+  }
+}
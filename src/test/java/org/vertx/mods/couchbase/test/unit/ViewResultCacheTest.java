@@ -0,0 +1,80 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.ViewResultCache;
+
+/**
+ * Unit tests for the find_by_view reply cache
+ */
+public class ViewResultCacheTest {
+
+  private static final JsonObject REPLY = new JsonObject("{\"result\":[{\"id\":\"id1\"}]}");
+
+  @Test
+  public void testNormalizedKey() {
+    JsonObject query = new JsonObject("{\"stale\":\"OK\",\"rangeStart\":{\"b\":1,\"a\":2},\"limit\":10}");
+    JsonObject reordered = new JsonObject("{\"limit\":10,\"rangeStart\":{\"a\":2,\"b\":1},\"stale\":\"OK\"}");
+
+    assertEquals(ViewResultCache.key("d", "v", "docs", query, null, null), ViewResultCache.key("d", "v", "docs", reordered, null, null));
+    assertNotEquals(ViewResultCache.key("d", "v", "docs", query, null, null), ViewResultCache.key("d", "v", "rows", query, null, null));
+    assertNotEquals(ViewResultCache.key("d", "v", "docs", query, null, null),
+      ViewResultCache.key("d", "v", "docs", query, new JsonArray().addString("id"), null));
+    assertNotEquals(ViewResultCache.key("d", "v", "docs", query, null, null),
+      ViewResultCache.key("d", "v", "docs", query.copy().putNumber("limit", 20), null, null));
+    assertNotEquals(ViewResultCache.key("d", "v", "docs", query, null, null), ViewResultCache.key("d", "v", "docs", query, null, "cursor"));
+  }
+
+  @Test
+  public void testSingleFlight() {
+    ViewResultCache<String> cache = new ViewResultCache<String>(10, 0);
+
+    assertTrue(cache.join("key", "leader"));
+    assertFalse(cache.join("key", "waiter1"));
+    assertFalse(cache.join("key", "waiter2"));
+    assertTrue(cache.join("other", "leader2"));
+
+    assertEquals(Arrays.asList("waiter1", "waiter2"), cache.complete("key", REPLY));
+    assertEquals(REPLY, cache.get("key"));
+
+    // once completed the next query executes again
+    assertTrue(cache.join("key", "leader3"));
+  }
+
+  @Test
+  public void testFailedQueryIsNotCached() {
+    ViewResultCache<String> cache = new ViewResultCache<String>(10, 0);
+
+    assertTrue(cache.join("key", "leader"));
+    assertFalse(cache.join("key", "waiter"));
+
+    assertEquals(Arrays.asList("waiter"), cache.complete("key", null));
+    assertNull(cache.get("key"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testEvictionAndExpiration() throws Exception {
+    ViewResultCache<String> cache = new ViewResultCache<String>(2, 0);
+    cache.complete("key1", REPLY);
+    cache.complete("key2", REPLY);
+    cache.complete("key3", REPLY);
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get("key1"));
+
+    ViewResultCache<String> expiring = new ViewResultCache<String>(10, 10);
+    expiring.complete("key", REPLY);
+    Thread.sleep(50);
+    assertNull(expiring.get("key"));
+  }
+}
@@ -0,0 +1,116 @@
+package org.vertx.mods.couchbase.test.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.mods.WriteCoalescer;
+import org.vertx.mods.WriteCoalescer.Batch;
+
+/**
+ * Unit tests for the write coalescer
+ */
+public class WriteCoalescerTest {
+
+  private static Vertx vertx;
+
+  private BlockingQueue<Batch<String>> flushed;
+  private Handler<Batch<String>> flusher;
+
+  @BeforeClass
+  public static void start() {
+    vertx = VertxFactory.newVertx();
+  }
+
+  @AfterClass
+  public static void stop() {
+    vertx.stop();
+  }
+
+  @Before
+  public void setUp() {
+    flushed = new LinkedBlockingQueue<Batch<String>>();
+    flusher = new Handler<Batch<String>>() {
+      public void handle(Batch<String> batch) {
+        flushed.add(batch);
+      }
+    };
+  }
+
+  @Test
+  public void testLatestVersionIsFlushedAfterTheWindow() throws Exception {
+    WriteCoalescer<String> coalescer = new WriteCoalescer<String>(vertx, 50, 0, flusher);
+
+    coalescer.add("doc1", document(1), 0, "a");
+    coalescer.add("doc1", document(2), 10, "b");
+    coalescer.add("doc2", document(3), 0, "c");
+    assertEquals(2, coalescer.size());
+    assertTrue(flushed.isEmpty());
+
+    Batch<String> first = flushed.poll(5, TimeUnit.SECONDS);
+    Batch<String> second = flushed.poll(5, TimeUnit.SECONDS);
+    Batch<String> doc1 = first.getId().equals("doc1") ? first : second;
+    Batch<String> doc2 = first.getId().equals("doc1") ? second : first;
+
+    assertEquals(2, doc1.getDocument().getInteger("version").intValue());
+    assertEquals(10, doc1.getExpiration());
+    assertEquals(Arrays.asList("a", "b"), doc1.getWriters());
+    assertEquals(Arrays.asList("c"), doc2.getWriters());
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void testBatchSizeFlushesRightAway() throws Exception {
+    WriteCoalescer<String> coalescer = new WriteCoalescer<String>(vertx, 60000, 3, flusher);
+
+    coalescer.add("doc1", document(1), 0, "a");
+    coalescer.add("doc1", document(2), 0, "b");
+    assertTrue(flushed.isEmpty());
+    coalescer.add("doc1", document(3), 0, "c");
+
+    Batch<String> batch = flushed.poll();
+    assertEquals(3, batch.getDocument().getInteger("version").intValue());
+    assertEquals(Arrays.asList("a", "b", "c"), batch.getWriters());
+
+    // a new window is opened for the next writes
+    coalescer.add("doc1", document(4), 0, "d");
+    assertEquals(1, coalescer.size());
+    assertTrue(flushed.isEmpty());
+  }
+
+  @Test
+  public void testExplicitFlush() throws Exception {
+    WriteCoalescer<String> coalescer = new WriteCoalescer<String>(vertx, 60000, 0, flusher);
+
+    coalescer.flush("doc1");
+    assertTrue(flushed.isEmpty());
+
+    coalescer.add("doc1", document(1), 0, "a");
+    coalescer.add("doc2", document(1), 0, "b");
+    coalescer.add("doc3", document(1), 0, "c");
+
+    coalescer.flush("doc1");
+    assertEquals("doc1", flushed.poll().getId());
+    assertEquals(2, coalescer.size());
+
+    coalescer.flushAll();
+    assertEquals(2, flushed.size());
+    assertEquals(0, coalescer.size());
+  }
+
+  private static JsonObject document(int version) {
+    return new JsonObject().putString("id", "doc").putNumber("version", version);
+  }
+}